@@ -0,0 +1,208 @@
+package database_templatefinder.templatefinder;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map.Entry;
+
+import org.apache.commons.collections4.trie.PatriciaTrie;
+
+/**
+ * The prefix and suffix rules of equivalence.json ({@link App#prefixRemovalWeights}, {@link App#suffixRemovalWeights},
+ * {@link App#prefixSubstitutionWeights} and {@link App#suffixSubstitutionWeights}) compiled into a character tree for each end of
+ * the words, so the fuzzy matching can find the rules that apply to a word by walking the tree along the word without creating any
+ * strings.
+ * <p>
+ * The rules that apply to an input word are found once with {@link Side#getAffixes(String)}, and then used for every candidate.
+ */
+public class AffixRules {
+
+	/**Prefix rules, used by the suffix matches*/
+	public final Side prefixes;
+	/**Suffix rules, used by the prefix matches*/
+	public final Side suffixes;
+
+	/**
+	 * No rules
+	 */
+	public AffixRules() {
+		this(new PatriciaTrie<Double>(), new PatriciaTrie<Double>(), new PatriciaTrie<HashMap<String, Double>>(),
+				new PatriciaTrie<HashMap<String, Double>>());
+	}
+
+	/**
+	 * Compile the rules. The keys of the suffix maps are reversed, as in {@link App}.
+	 */
+	public AffixRules(PatriciaTrie<Double> prefixRemovalWeights, PatriciaTrie<Double> suffixRemovalWeights,
+			PatriciaTrie<HashMap<String, Double>> prefixSubstitutionWeights, PatriciaTrie<HashMap<String, Double>> suffixSubstitutionWeights) {
+		prefixes = new Side(false, prefixRemovalWeights, prefixSubstitutionWeights);
+		suffixes = new Side(true, suffixRemovalWeights, suffixSubstitutionWeights);
+	}
+
+	/**
+	 * A node of the tree, for the fix spelled by the path to it (from the end of the word for suffixes)
+	 */
+	static class Node {
+		final int length;
+		char[] letters = new char[0];
+		Node[] children = new Node[0];
+		/**Whether the fix can be removed, and the weight of removing it*/
+		boolean removable;
+		double removalWeight;
+		/**Fixes the fix can be substituted with, in normal spelling, and the weights of the substitutions*/
+		String[] targets = new String[0];
+		double[] targetWeights = new double[0];
+
+		Node(int length) {
+			this.length = length;
+		}
+
+		Node getChild(char c) {
+			for(int i = 0; i < letters.length; i++) {
+				if(letters[i] == c) return children[i];
+			}
+			return null;
+		}
+
+		Node getOrAddChild(char c) {
+			Node child = getChild(c);
+			if(child == null) {
+				child = new Node(length + 1);
+				letters = Arrays.copyOf(letters, letters.length + 1);
+				letters[letters.length - 1] = c;
+				children = Arrays.copyOf(children, children.length + 1);
+				children[children.length - 1] = child;
+			}
+			return child;
+		}
+	}
+
+	/**
+	 * The rules for one end of the words
+	 */
+	public static class Side {
+		final boolean suffix;
+		final Node root = new Node(0);
+		// Longest fix and highest weight factor (weight * 0.9 + 0.1) of the rules, for bounding matches
+		int removalLength, substitutionLength;
+		double removalScale, substitutionScale;
+
+		Side(boolean suffix, PatriciaTrie<Double> removalWeights, PatriciaTrie<HashMap<String, Double>> substitutionWeights) {
+			this.suffix = suffix;
+			for(Entry<String, Double> entry : removalWeights.entrySet()) {
+				if(entry.getKey().isEmpty()) continue;
+				Node node = addPath(entry.getKey());
+				node.removable = true;
+				node.removalWeight = entry.getValue();
+				removalLength = Math.max(removalLength, entry.getKey().length());
+				removalScale = Math.max(removalScale, entry.getValue() * 0.9 + 0.1);
+			}
+			for(Entry<String, HashMap<String, Double>> entry : substitutionWeights.entrySet()) {
+				if(entry.getKey().isEmpty()) continue;
+				Node node = addPath(entry.getKey());
+				node.targets = new String[entry.getValue().size()];
+				node.targetWeights = new double[entry.getValue().size()];
+				int i = 0;
+				for(Entry<String, Double> subEntry : entry.getValue().entrySet()) {
+					node.targets[i] = suffix ? new StringBuilder(subEntry.getKey()).reverse().toString() : subEntry.getKey();
+					node.targetWeights[i] = subEntry.getValue();
+					i++;
+					substitutionLength = Math.max(substitutionLength, Math.max(entry.getKey().length(), subEntry.getKey().length()));
+					substitutionScale = Math.max(substitutionScale, subEntry.getValue() * 0.9 + 0.1);
+				}
+			}
+		}
+
+		/**
+		 * Add the path of a key (reversed for suffixes, like the word is walked)
+		 */
+		Node addPath(String key) {
+			Node node = root;
+			for(int i = 0; i < key.length(); i++) node = node.getOrAddChild(key.charAt(i));
+			return node;
+		}
+
+		/**
+		 * Letter of a word at a distance from this side's end
+		 */
+		char letterAt(String word, int distance) {
+			return word.charAt(suffix ? word.length() - 1 - distance : distance);
+		}
+
+		/**
+		 * Find the rules that apply to a word
+		 * @param word
+		 * @return
+		 */
+		public WordAffixes getAffixes(String word) {
+			WordAffixes out = new WordAffixes(this, word);
+			Node node = root;
+			for(int i = 0; i < word.length(); i++) {
+				node = node.getChild(letterAt(word, i));
+				if(node == null) break;
+				if(node.removable) out.removable = append(out.removable, node);
+				if(node.targets.length > 0) out.substitutable = append(out.substitutable, node);
+			}
+			return out;
+		}
+
+		static Node[] append(Node[] nodes, Node node) {
+			Node[] out = Arrays.copyOf(nodes, nodes.length + 1);
+			out[nodes.length] = node;
+			return out;
+		}
+
+		/**
+		 * Find the longest fix of a word that can be removed and is at most maxLength long
+		 * @param word
+		 * @param maxLength
+		 * @return The node of the fix, or null if there is none
+		 */
+		Node getLongestRemovable(String word, int maxLength) {
+			Node longest = null;
+			Node node = root;
+			for(int i = 0; i < maxLength && i < word.length(); i++) {
+				node = node.getChild(letterAt(word, i));
+				if(node == null) break;
+				if(node.removable) longest = node;
+			}
+			return longest;
+		}
+
+		/**
+		 * Check whether a word has a fix at this side's end
+		 */
+		boolean hasFix(String word, String fix) {
+			return suffix ? word.endsWith(fix) : word.startsWith(fix);
+		}
+	}
+
+	/**
+	 * The rules that apply to one word
+	 */
+	public static class WordAffixes {
+		/**The rules the fixes are from*/
+		final Side side;
+		public final String word;
+		/**Fixes of the word that can be removed, shortest first*/
+		Node[] removable = new Node[0];
+		/**Fixes of the word that can be substituted*/
+		Node[] substitutable = new Node[0];
+
+		WordAffixes(Side side, String word) {
+			this.side = side;
+			this.word = word;
+		}
+
+		/**
+		 * Get the longest fix of the word that can be removed and is at most maxLength long
+		 * @param maxLength
+		 * @return The node of the fix, or null if there is none
+		 */
+		Node getLongestRemovable(int maxLength) {
+			for(int i = removable.length - 1; i >= 0; i--) {
+				if(removable[i].length <= maxLength) return removable[i];
+			}
+			return null;
+		}
+	}
+}
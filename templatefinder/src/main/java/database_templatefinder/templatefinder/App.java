@@ -1,10 +1,13 @@
 package database_templatefinder.templatefinder;
 
+import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
-import java.net.MalformedURLException;
+import java.io.Reader;
 import java.net.URL;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
@@ -14,6 +17,7 @@ import java.util.LinkedList;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Scanner;
+import java.util.TreeMap;
 
 import org.apache.commons.collections4.trie.PatriciaTrie;
 
@@ -25,6 +29,7 @@ import com.google.gson.JsonParser;
 import com.google.gson.JsonPrimitive;
 import com.google.gson.JsonSyntaxException;
 
+import database_templatefinder.templatefinder.SpellingVariants.VariantWordIndex;
 import database_templatefinder.templatefinder.types.Item;
 import database_templatefinder.templatefinder.types.ItemProgression;
 import database_templatefinder.templatefinder.types.Template;
@@ -47,6 +52,9 @@ public class App {
 	public static PatriciaTrie<HashMap<String, Double>> prefixSubstitutionWeights = new PatriciaTrie<>();
 	/**Keys are reversed since this map is for suffixes*/
 	public static PatriciaTrie<HashMap<String, Double>> suffixSubstitutionWeights = new PatriciaTrie<>();
+	// Substitutions anywhere in a word, mostly for British vs American spellings. Words made by them are looked up as the index
+	// word they were made from (see SpellingVariants), so the index doesn't store them and the rules can be reloaded
+	public static PatriciaTrie<HashMap<String, Double>> anywhereSubstitutionWeights = new PatriciaTrie<>();
 	
 	public static ArrayList<Template> templates = new ArrayList<>();
 	public static HashMap<String, HashMap<String, HashMap<String, TemplateString>>> templatesExpanded = new HashMap<>();
@@ -57,197 +65,140 @@ public class App {
 	// Word -> TemplateString -> Value
 	public static PatriciaTrie<HashMap<TemplateString, Double>> stringWeightsInTemplate = new PatriciaTrie<>();
 	public static PatriciaTrie<HashMap<TemplateString, Double>> stringWeightsAcrossTemplates = new PatriciaTrie<>();
+	// Word -> Index in templates -> Value (same as templateWordWeights, for every template with the name, sorted by index)
+	public static PatriciaTrie<TreeMap<Integer, Double>> templateWordWeightsByOrdinal = new PatriciaTrie<>();
 	
 	public static PatriciaTrie<String> allWordsInReverse = new PatriciaTrie<>();
+	// Which weight tables have a word, as flags of the words in terms
+	public static final int TEMPLATE_TABLE = 1;
+	public static final int IN_TEMPLATE_TABLE = 2;
+	public static final int ACROSS_TEMPLATES_TABLE = 4;
+	/**Maximum size of the word cache of each index, see {@link WordCache}. Set with the argument wordcache=[size]*/
+	public static long wordCacheSize = WordCache.DEFAULT_MAX_SIZE;
+	/**Everything the queries read, replaced as a whole when the index is built or the rules are reloaded. Read it once per query.*/
+	public static volatile QueryIndex index = emptyIndex(new TermDictionary(null, null));
+	
+	// Word -> Number of templates the word appears in
+	public static HashMap<String, Integer> templateWordAppearances = new HashMap<>();
+	
+	/**Read equivalence.json from this file instead of the bundled one, so it can be edited and reloaded while running (HTTP
+	 * parameter reloadequivalences=true). Set with the argument equivalence=[file]*/
+	public static String equivalenceFile = null;
+	/**Maximum number of strings to expand each template format into. Set with the argument maxstrings=[number]*/
+	public static int maxStringsPerTemplate = Integer.MAX_VALUE;
+	// Number of top strings printed by the interactive lookups (argument top=[count])
+	public static int topCount = InputProcessing.DEFAULT_TOP_COUNT;
+	/**Whether to skip the strings that can't get above the threshold or into the top strings when scoring an input, see
+	 * {@link InputScores}. The weights of the strings that are kept are the same. Set with the argument prune=false to score all strings.*/
+	public static boolean pruneScores = true;
+	/**Score the strings of the top templates whose squared template weights add up to this portion of all of them first, and then only
+	 * the other templates that can still have needed strings, or 0 to score all templates at once, see {@link InputScores}. Only
+	 * saves work with {@link #pruneScores}. Set with the argument cascade=[portion]*/
+	public static double cascadeCoverage = 0;
+	/**Score all strings anyway if the in template weight portion of an input is below this. Set with the argument cascadeguard=[portion]*/
+	public static double cascadeMinPortion = 0.2;
+	/**Number of threads of the pool the sentences of documents are scored on, shared by all inputs. Set with the argument scorethreads=[count]*/
+	public static int scoringThreads = Runtime.getRuntime().availableProcessors();
+	/**Default maximum number of threads scoring the sentences of one input, see {@link InputProcessing#preProcessInput(String, int)}.
+	 * Set with the argument sentencethreads=[count] or the HTTP parameter parallelism*/
+	public static int sentenceParallelism = Math.min(4, scoringThreads);
 	
 	public static final String BASE_FORMAT = "English";
 	public static final String TEMPLATES_FILE_URL = "https://raw.githubusercontent.com/hms-bcl/Templates/master/templates.json";
 
 	public static void main( String[] args )
 	{
+		int numThreads = Runtime.getRuntime().availableProcessors();
 		HashSet<String> argsSet = new HashSet<>();
-		for(String s : args) argsSet.add(s);
+		// Write the built index to this file and exit
+		String buildFile = null;
+		// Load the index from this file instead of building it
+		String indexFile = null;
+		for(String s : args) {
+			argsSet.add(s);
+			if(s.startsWith("maxstrings=")) maxStringsPerTemplate = Integer.parseInt(s.substring("maxstrings=".length()));
+			if(s.startsWith("threads=")) numThreads = Integer.parseInt(s.substring("threads=".length()));
+			if(s.startsWith("build=")) buildFile = s.substring("build=".length());
+			if(s.startsWith("index=")) indexFile = s.substring("index=".length());
+			if(s.startsWith("top=")) topCount = Integer.parseInt(s.substring("top=".length()));
+			if(s.startsWith("prune=")) pruneScores = Boolean.parseBoolean(s.substring("prune=".length()));
+			if(s.startsWith("cascade=")) cascadeCoverage = Double.parseDouble(s.substring("cascade=".length()));
+			if(s.startsWith("cascadeguard=")) cascadeMinPortion = Double.parseDouble(s.substring("cascadeguard=".length()));
+			if(s.startsWith("scorethreads=")) scoringThreads = Integer.parseInt(s.substring("scorethreads=".length()));
+			if(s.startsWith("sentencethreads=")) sentenceParallelism = Integer.parseInt(s.substring("sentencethreads=".length()));
+			if(s.startsWith("wordcache=")) wordCacheSize = Long.parseLong(s.substring("wordcache=".length()));
+			if(s.startsWith("equivalence=")) equivalenceFile = s.substring("equivalence=".length());
+		}
 		boolean jsonInterface = argsSet.contains("json");
 		
 		long startTime = System.currentTimeMillis();
 
-		// Temp variables to use in the loading process
-		final HashMap<String, HashMap<String, Double>> rawTemplateWordWeights = new HashMap<>();
-		
-		// These would be too costly to check at runtime so they are just added to the weights map at startup
-		// This might cause a weak effect of a few words being counted "twice" but this is worth it
-		// to distinguish common spelling differences (mostly for British vs American)
-		final PatriciaTrie<HashMap<String, Double>> anywhereSubstitutionWeights = new PatriciaTrie<>();
-		
-		// -----Load files
-		// google-10000-english-usa - list of the 10,000 most common English words
-
-		// If a word is not on this list it's treated as a technical word
-		Scanner sc;
-		sc = new Scanner(App.class.getResourceAsStream("/google-10000-english-usa.txt"));
-		commonWordsSet = new LinkedHashSet<String>();
-		while(sc.hasNext()) {
-			commonWordsSet.add(sc.next());
-		}
-		sc.close();
-
-		// If a word is in the first 75 in the list it's treated as a very common word
-		veryCommonWordsSet = new LinkedHashSet<String>();
-		Iterator<String> iter = commonWordsSet.iterator();
-		for(int i = 0; i < 75 && iter.hasNext(); i++) {
-			veryCommonWordsSet.add(iter.next());
-		}
-		// Add all the single-digit numbers
-		for(int i = 0; i <= 9; i++) {
-			veryCommonWordsSet.add(String.valueOf(i));
-		}
-		
-		// equivalence.json - prefixes and suffixes
-		{
-			JsonObject json;
+		if(indexFile != null) {
+			// Load the prebuilt index instead of computing it
 			try {
-				json = new JsonParser().parse(new InputStreamReader(App.class.getResourceAsStream("/equivalence.json"))).getAsJsonObject();
-			} catch (JsonIOException | JsonSyntaxException e1) {
-				System.out.println("Could not find file");
+				IndexSnapshot.read(new File(indexFile));
+			} catch (IOException e) {
+				System.out.println("Could not load index file: " + e.getMessage());
 				return;
 			}
-			// Suffixes
-			JsonArray suffixArray = json.getAsJsonArray("suffixes");
-			for(JsonElement e : suffixArray) {
-				JsonArray arr = e.getAsJsonArray();
-				Double weight = null;
-				LinkedList<String> list = new LinkedList<>();
-				
-				for(JsonElement ee : arr) {
-					JsonPrimitive prim = ee.getAsJsonPrimitive();
-					if(prim.isNumber()) {
-						weight = prim.getAsDouble();
-					}
-					else if(prim.isString()){
-						list.add(prim.getAsString());
-					}
-					else {
-						System.out.println("Suffix " + prim + " has an invalid format, skipping");
-					}
-				}
-				
-				if(weight == null) {
-					System.out.println("No weight found in suffixes " + list + ", skipping");
-				}
-
-				// Suffixes ONLY: reverse strings in list
-				for(int i = 0; i < list.size(); i++) {
-					list.set(i, new StringBuilder(list.get(i)).reverse().toString());
-				}
-				if(list.size() > 1) {
-					// Load substitution between 2 or more prefixes (used in loading)
-					for(String s : list) {
-						HashMap<String, Double> weightMap;
-						if(!suffixSubstitutionWeights.containsKey(s))
-							suffixSubstitutionWeights.put(s, weightMap = new HashMap<String, Double>());
-						else
-							weightMap = suffixSubstitutionWeights.get(s);
-						for(String s2 : list) {
-							if(s == s2) continue;
-							// Taking max weight so we don't override larger weights with smaller ones
-							if(weightMap.containsKey(s2) && weightMap.get(s2) > weight) continue;
-							weightMap.put(s2, weight);
-						}
-					}
-				}
-				else {
-					// Load removal of 1 prefix (used in runtime)
-					String str = list.get(0);
-					suffixRemovalWeights.put(str, weight);
+		}
+		else {
+			IndexBuilder builder = new IndexBuilder(numThreads);
+			if(buildFile != null) builder.templateSources = new ArrayList<>();
+			if(!buildIndex(builder, startTime)) return;
+			
+			// Builder mode: save the index and exit
+			if(buildFile != null) {
+				try {
+					IndexSnapshot.write(new File(buildFile), builder.templateSources);
+				} catch (IOException e) {
+					System.out.println("Could not write index file: " + e.getMessage());
+					return;
 				}
+				System.out.println("Wrote index to " + buildFile + " in " + (System.currentTimeMillis() - startTime) + "ms.");
+				return;
 			}
-
-			// Prefixes
-			JsonArray prefixArray = json.getAsJsonArray("prefixes");
-			for(JsonElement e : prefixArray) {
-				JsonArray arr = e.getAsJsonArray();
-				Double weight = null;
-				LinkedList<String> list = new LinkedList<>();
-				
-				for(JsonElement ee : arr) {
-					JsonPrimitive prim = ee.getAsJsonPrimitive();
-					if(prim.isNumber()) {
-						weight = prim.getAsDouble();
-					}
-					else if(prim.isString()){
-						list.add(prim.getAsString());
-					}
-					else {
-						System.out.println("Prefix " + prim + " has an invalid format, skipping");
-					}
-				}
-				
-				if(weight == null) {
-					System.out.println("No weight found in prefixes " + list + ", skipping");
-					continue;
-				}
-				
-				if(list.size() > 1) {
-					// Load substitution between 2 or more prefixes (used in loading)
-					for(String s : list) {
-						HashMap<String, Double> weightMap;
-						if(!prefixSubstitutionWeights.containsKey(s))
-							prefixSubstitutionWeights.put(s, weightMap = new HashMap<String, Double>());
-						else
-							weightMap = prefixSubstitutionWeights.get(s);
-						for(String s2 : list) {
-							if(s == s2) continue;
-							// Taking max weight so we don't override larger weights with smaller ones
-							if(weightMap.containsKey(s2) && weightMap.get(s2) > weight) continue;
-							weightMap.put(s2, weight);
-						}
-					}
-				}
-				else if(list.size() == 1){
-					// Load removal of 1 prefix (used in runtime)
-					String str = list.get(0);
-					prefixRemovalWeights.put(str, weight);
-				}
+		}
+		
+		long endTime = System.currentTimeMillis();
+		System.out.println("Program startup took " + (endTime - startTime) + "ms for " + templates.size() + " templates.");
+		
+		// Start web server
+		if(!jsonInterface) {
+			try {
+				new HttpHandler();
+			} catch (IOException e) {
+				System.err.println("Couldn't start web server:\n" + e);
 			}
-			
-			// Anywhere (diff format than prefix/suffix)
-			JsonObject anywhereObj = json.getAsJsonObject("anywhere");
-			for(Entry<String, JsonElement> entry : anywhereObj.entrySet()) {
-				JsonArray arr = entry.getValue().getAsJsonArray();
-				String from = entry.getKey();
-
-				// Copied code
-				Double weight = null;
-				LinkedList<String> list = new LinkedList<>();
-				
-				for(JsonElement ee : arr) {
-					JsonPrimitive prim = ee.getAsJsonPrimitive();
-					if(prim.isNumber()) {
-						weight = prim.getAsDouble();
-					}
-					else if(prim.isString()){
-						list.add(prim.getAsString());
-					}
-					else {
-						System.out.println("Prefix " + prim + " has an invalid format, skipping");
-					}
-				}
-				
-				if(weight == null) {
-					System.out.println("No weight found in prefixes " + list + ", skipping");
-					continue;
-				}
-				if(list.isEmpty()) {
-					continue;
-				}
-				
-				HashMap<String, Double> weightMap = new HashMap<>();
-				anywhereSubstitutionWeights.put(from, weightMap);
-				for(String to : list) {
-					weightMap.put(to, weight);
-				}
+		}
+		
+		// Interactive cmdline starts here
+		@SuppressWarnings("resource")
+		Scanner scanner = new Scanner(System.in);
+		while(true) {
+			if(jsonInterface) {
+				String line = scanner.nextLine();
+				JsonArray js = InputProcessing.toJson(InputProcessing.process(line));
+				System.out.print(js.toString());
+			}
+			else {
+				System.out.println("Please input the string to check.");
+				String line = scanner.nextLine();
+				InputProcessing.legacyProcessInput(line, System.out, topCount);
 			}
 		}
+	}
+	
+	/**
+	 * Loads the word lists and equivalence.json, then downloads (or reads the local copy of) templates.json and builds the index from it
+	 * @param builder
+	 * @param startTime - Time the program started, for the timing messages
+	 * @return whether the index was built, false if a file could not be read
+	 */
+	static boolean buildIndex(IndexBuilder builder, long startTime) {
+		// -----Load files
+		loadWordLists();
+		if(!loadEquivalences()) return false;
 		
 		// -----Load templates (multi core)
 		long startTimeJson = System.currentTimeMillis();
@@ -272,218 +223,320 @@ public class App {
 			stream = App.class.getResourceAsStream("/templates.json");
 		}
 		
-		JsonArray json;
+		// Templates are handed to the builder as they are read
 		try {
-			json = new JsonParser().parse(new InputStreamReader(stream)).getAsJsonArray();
-		} catch (JsonIOException | JsonSyntaxException e1) {
-			System.out.println("Could not find file");
-			return;
+			builder.build(new InputStreamReader(stream));
+		} catch (IOException | JsonIOException | JsonSyntaxException | IllegalStateException e1) {
+			System.out.println("Could not read templates file: " + e1);
+			return false;
 		}
-		long endTimeJson = System.currentTimeMillis();
-		System.out.println("Loaded JSON file in " + (endTimeJson - startTimeJson) + "ms.");
-		
-
-		int numThreads = Runtime.getRuntime().availableProcessors();
-		
-		System.out.println("Beginning template load with " + numThreads + " threads.");
-		LinkedList<Runnable> taskList = new LinkedList<>();
+		return true;
+	}
+	
+	/**
+	 * Loads the prefix, suffix and "anywhere" rules from equivalence.json ({@link #equivalenceFile} if set), replacing the current rules
+	 * @return whether the file could be read
+	 */
+	public static boolean loadEquivalences() {
+		PatriciaTrie<Double> prefixRemovals = new PatriciaTrie<>();
+		PatriciaTrie<Double> suffixRemovals = new PatriciaTrie<>();
+		PatriciaTrie<HashMap<String, Double>> prefixSubstitutions = new PatriciaTrie<>();
+		PatriciaTrie<HashMap<String, Double>> suffixSubstitutions = new PatriciaTrie<>();
+		PatriciaTrie<HashMap<String, Double>> anywhereSubstitutions = new PatriciaTrie<>();
 		
-		// Add task for each element
-		int templateCount = 0;
-		for(JsonElement tElement : json) {
-			taskList.add(new Runnable() {
-				public void run() {
-					if(tElement.isJsonObject()) {
-						
-						JsonObject tObj = tElement.getAsJsonObject();
-						Template t = new Template(tObj.get("name").getAsString());
-						
-						// TemplateFormat
-						for(Entry<String, JsonElement> tfEntry : tObj.entrySet()) {
-							if(tfEntry.getValue().isJsonObject()) {
-								String formatName = tfEntry.getKey();
-								JsonObject tfObj = tfEntry.getValue().getAsJsonObject();
-								TemplateFormat tf = new TemplateFormat(t, formatName);
-								
-								// baseProgression
-								tf.baseProgression = new ItemProgression(Item.getItemListFromJson(tf, tfObj.get("content").getAsJsonArray()));
-								
-								t.addFormat(tf);
-							}
-						}
-						
-						synchronized(templates) {
-							templates.add(t);
-						}
-						
-						HashMap<String, HashMap<String, TemplateString>> expanded = TFIDFEngine.expandTemplate(t, BASE_FORMAT);
-						
-						synchronized(templatesExpanded) {
-							templatesExpanded.put(t.getName(), expanded);
-							templatesExpandedConcat.putAll(expanded);
-						}
-						
-						// Add new asynchronous task to load template weights.
-						synchronized(taskList) {
-							taskList.add(new Runnable() {
-								public void run() {
-									// !!!!!!!!!! Template Weights
+		JsonObject json;
+		try (Reader reader = equivalenceFile != null ? new InputStreamReader(new FileInputStream(equivalenceFile), StandardCharsets.UTF_8)
+				: new InputStreamReader(App.class.getResourceAsStream("/equivalence.json"))) {
+			json = new JsonParser().parse(reader).getAsJsonObject();
+		} catch (IOException | JsonIOException | JsonSyntaxException | IllegalStateException e1) {
+			System.out.println("Could not read equivalence file: " + e1.getMessage());
+			return false;
+		}
+		// Suffixes
+		JsonArray suffixArray = json.getAsJsonArray("suffixes");
+		for(JsonElement e : suffixArray) {
+			JsonArray arr = e.getAsJsonArray();
+			Double weight = null;
+			LinkedList<String> list = new LinkedList<>();
+			
+			for(JsonElement ee : arr) {
+				JsonPrimitive prim = ee.getAsJsonPrimitive();
+				if(prim.isNumber()) {
+					weight = prim.getAsDouble();
+				}
+				else if(prim.isString()){
+					list.add(prim.getAsString());
+				}
+				else {
+					System.out.println("Suffix " + prim + " has an invalid format, skipping");
+				}
+			}
+			
+			if(weight == null) {
+				System.out.println("No weight found in suffixes " + list + ", skipping");
+			}
 
-									// Find template word frequency (get tf)
-									HashMap<String, Double> wordWeights = TFIDFEngine.getTemplateWeights(t.get(BASE_FORMAT));
-									// Modify by function (divide by idf)
-									TFIDFEngine.tfidfTemplateWeights(wordWeights, TFIDFEngine.listForFormat(templates, BASE_FORMAT));
-									
-									synchronized(rawTemplateWordWeights) {
-										rawTemplateWordWeights.put(t.getName(), wordWeights);
-									}
-									
-									// !!!!!!!!!! String Weights in Template
-									
-									// Get tf (and fill collection of all strings)
-									LinkedList<TemplateString> allStrings = new LinkedList<TemplateString>();
-									
-									HashMap<TemplateString, HashMap<String, Double>> stringWeights = new HashMap<>();
-									for(HashMap<String, TemplateString> localeMapForString : expanded.values()) {
-										TemplateString tStr = localeMapForString.get(BASE_FORMAT);
-										stringWeights.put(tStr, TFIDFEngine.getStringWeights(tStr));
-										allStrings.add(tStr);
-									}
-									
-									// Get idf
-									HashMap<String, HashMap<TemplateString, Double>> stringWeightsByWord = TFIDFEngine.createStringWeightMapByWord(stringWeights);
-									TFIDFEngine.tfidfStringWeightsWithinTemplate(stringWeightsByWord, allStrings);
-									
-									synchronized(stringWeightsInTemplate) {
-										TFIDFEngine.merge(stringWeightsInTemplate, stringWeightsByWord);
-									}
-								}
-							});
-						}
+			// Suffixes ONLY: reverse strings in list
+			for(int i = 0; i < list.size(); i++) {
+				list.set(i, new StringBuilder(list.get(i)).reverse().toString());
+			}
+			if(list.size() > 1) {
+				// Load substitution between 2 or more prefixes (used in loading)
+				for(String s : list) {
+					HashMap<String, Double> weightMap;
+					if(!suffixSubstitutions.containsKey(s))
+						suffixSubstitutions.put(s, weightMap = new HashMap<String, Double>());
+					else
+						weightMap = suffixSubstitutions.get(s);
+					for(String s2 : list) {
+						if(s == s2) continue;
+						// Taking max weight so we don't override larger weights with smaller ones
+						if(weightMap.containsKey(s2) && weightMap.get(s2) > weight) continue;
+						weightMap.put(s2, weight);
 					}
 				}
-			});
-			templateCount++;
+			}
+			else {
+				// Load removal of 1 prefix (used in runtime)
+				String str = list.get(0);
+				suffixRemovals.put(str, weight);
+			}
 		}
-		
-		// Create threads and run
-		ArrayList<Thread> threadList = new ArrayList<Thread>();
-		for(int i = 0; i < numThreads; i++) {
-			int finali = i;
-			Thread t = new Thread() {
-				public void run() {
-					long startTime = System.currentTimeMillis();
-					while(true) {
-						Runnable r;
-						synchronized(taskList) {
-							if(taskList.isEmpty()) break;
-							r = taskList.poll();
-						}
-						r.run();
-					}
-					long endTime = System.currentTimeMillis();
-					System.out.println("Thread " + finali + " finished in " + (endTime - startTime) + "ms.");
+
+		// Prefixes
+		JsonArray prefixArray = json.getAsJsonArray("prefixes");
+		for(JsonElement e : prefixArray) {
+			JsonArray arr = e.getAsJsonArray();
+			Double weight = null;
+			LinkedList<String> list = new LinkedList<>();
+			
+			for(JsonElement ee : arr) {
+				JsonPrimitive prim = ee.getAsJsonPrimitive();
+				if(prim.isNumber()) {
+					weight = prim.getAsDouble();
 				}
-			};
-			threadList.add(t);
-			t.start();
-		}
-		
-		// Sleep main thread until all workers are done
-		boolean stringWeightsAcrossTemplatesThreadsStarted = false;
-		while(true) {
-			boolean alive = false;
-			for(Thread t : threadList) {
-				if(t.isAlive()) {
-					alive = true;
-					// Sleep 1ms if running thread detected
-					try {
-						Thread.sleep(1);
-					} catch (InterruptedException e) {
-						e.printStackTrace();
-					}
+				else if(prim.isString()){
+					list.add(prim.getAsString());
+				}
+				else {
+					System.out.println("Prefix " + prim + " has an invalid format, skipping");
 				}
 			}
-			boolean allTemplatesLoaded;
-			synchronized(templates) { allTemplatesLoaded = templates.size() >= templateCount; }
-			// Check if all templates themselves have been loaded. If this is the case, start the stringWeightsAcrossTemplates threads
-			if(!stringWeightsAcrossTemplatesThreadsStarted && allTemplatesLoaded) {
-				stringWeightsAcrossTemplatesThreadsStarted = true;
-				ArrayList<Template> templatesCopy = new ArrayList<>(templates);
-				for(Template template : templatesCopy) {
-					synchronized(taskList) {
-						taskList.add(new Runnable() {
-							public void run() {
-								// !!!!!!!!!! String weights across templates
-								
-								// Get tf
-								
-								HashMap<TemplateString, HashMap<String, Double>> stringWeights = new HashMap<>();
-								for(HashMap<String, TemplateString> localeMapForString : templatesExpanded.get(template.getName()).values()) {
-									TemplateString tStr = localeMapForString.get(BASE_FORMAT);
-									stringWeights.put(tStr, TFIDFEngine.getStringWeights(tStr));
-								}
-								
-								// Get idf
-								HashMap<String, HashMap<TemplateString, Double>> stringWeightsByWord = TFIDFEngine.createStringWeightMapByWord(stringWeights);
-								TFIDFEngine.tfidfStringWeightsInAllTemplates(stringWeightsByWord, TFIDFEngine.listForFormat(templatesCopy, BASE_FORMAT));
-								
-								synchronized(stringWeightsAcrossTemplates) {
-									TFIDFEngine.merge(stringWeightsAcrossTemplates, stringWeightsByWord);
-								}
-							}
-						});
+			
+			if(weight == null) {
+				System.out.println("No weight found in prefixes " + list + ", skipping");
+				continue;
+			}
+			
+			if(list.size() > 1) {
+				// Load substitution between 2 or more prefixes (used in loading)
+				for(String s : list) {
+					HashMap<String, Double> weightMap;
+					if(!prefixSubstitutions.containsKey(s))
+						prefixSubstitutions.put(s, weightMap = new HashMap<String, Double>());
+					else
+						weightMap = prefixSubstitutions.get(s);
+					for(String s2 : list) {
+						if(s == s2) continue;
+						// Taking max weight so we don't override larger weights with smaller ones
+						if(weightMap.containsKey(s2) && weightMap.get(s2) > weight) continue;
+						weightMap.put(s2, weight);
 					}
 				}
 			}
-			if(!alive && stringWeightsAcrossTemplatesThreadsStarted) break;
+			else if(list.size() == 1){
+				// Load removal of 1 prefix (used in runtime)
+				String str = list.get(0);
+				prefixRemovals.put(str, weight);
+			}
 		}
 		
-		long endTime = System.currentTimeMillis();
-		System.out.println("Program startup took " + (endTime - startTime) + "ms for " + templates.size() + " templates.");
-		
-		// Create the final template word weights map
-		for(Entry<String, HashMap<String, Double>> templateEntry : rawTemplateWordWeights.entrySet()) {
-			for(Entry<String, Double> wordEntry : templateEntry.getValue().entrySet()) {
-				String template = templateEntry.getKey();
-				String word = wordEntry.getKey();
-				if(!templateWordWeights.containsKey(word)) templateWordWeights.put(word, new HashMap<String, Double>());
-				templateWordWeights.get(word).put(template, wordEntry.getValue());
+		// Anywhere (diff format than prefix/suffix)
+		JsonObject anywhereObj = json.getAsJsonObject("anywhere");
+		for(Entry<String, JsonElement> entry : anywhereObj.entrySet()) {
+			JsonArray arr = entry.getValue().getAsJsonArray();
+			String from = entry.getKey();
+
+			// Copied code
+			Double weight = null;
+			LinkedList<String> list = new LinkedList<>();
+			
+			for(JsonElement ee : arr) {
+				JsonPrimitive prim = ee.getAsJsonPrimitive();
+				if(prim.isNumber()) {
+					weight = prim.getAsDouble();
+				}
+				else if(prim.isString()){
+					list.add(prim.getAsString());
+				}
+				else {
+					System.out.println("Prefix " + prim + " has an invalid format, skipping");
+				}
+			}
+			
+			if(weight == null) {
+				System.out.println("No weight found in prefixes " + list + ", skipping");
+				continue;
+			}
+			if(list.isEmpty()) {
+				continue;
+			}
+			
+			HashMap<String, Double> weightMap = new HashMap<>();
+			anywhereSubstitutions.put(from, weightMap);
+			for(String to : list) {
+				weightMap.put(to, weight);
 			}
 		}
-		// Add all maps to reverse word tree
-		addToReverseTree(templateWordWeights);
-		addToReverseTree(stringWeightsInTemplate);
-		addToReverseTree(stringWeightsAcrossTemplates);
-		// Apply "anywhere" substitutions
-		TFIDFEngine.applySubstitutionToWeights(templateWordWeights, anywhereSubstitutionWeights);
-		TFIDFEngine.applySubstitutionToWeights(stringWeightsInTemplate, anywhereSubstitutionWeights);
-		TFIDFEngine.applySubstitutionToWeights(stringWeightsAcrossTemplates, anywhereSubstitutionWeights);
 		
-		// Start web server
-		if(!jsonInterface) {
-			try {
-				new HttpHandler();
-			} catch (IOException e) {
-				System.err.println("Couldn't start web server:\n" + e);
-			}
+		prefixRemovalWeights = prefixRemovals;
+		suffixRemovalWeights = suffixRemovals;
+		prefixSubstitutionWeights = prefixSubstitutions;
+		suffixSubstitutionWeights = suffixSubstitutions;
+		anywhereSubstitutionWeights = anywhereSubstitutions;
+		return true;
+	}
+	
+	/**
+	 * Loads equivalence.json again and applies the new rules to the loaded index, without loading the templates again. Queries that
+	 * already started finish with the old rules.
+	 * @return whether the file could be read, if not the old rules are kept
+	 */
+	public static synchronized boolean reloadEquivalences() {
+		try {
+			if(!loadEquivalences()) return false;
+		} catch (RuntimeException e) {
+			// The rules are only replaced once the whole file is read
+			System.out.println("Invalid equivalence file: " + e);
+			return false;
 		}
+		buildAllWords();
+		return true;
+	}
+	
+	/**
+	 * Removes all templates and weights so they can be loaded again
+	 */
+	public static void clearIndex() {
+		templates.clear();
+		templatesExpanded.clear();
+		templatesExpandedConcat.clear();
+		templateWordWeights.clear();
+		stringWeightsInTemplate.clear();
+		stringWeightsAcrossTemplates.clear();
+		allWordsInReverse.clear();
+		templateWordAppearances = new HashMap<>();
+		templateWordWeightsByOrdinal.clear();
+		index = emptyIndex(new TermDictionary(commonWordsSet, veryCommonWordsSet));
+	}
+	
+	/**
+	 * Make an index of the tries, with no rules and no strings to score
+	 * @param terms
+	 * @return
+	 */
+	static QueryIndex emptyIndex(TermDictionary terms) {
+		return new QueryIndex(new TrieWordIndex<>(templateWordWeightsByOrdinal), new TrieWordIndex<>(stringWeightsInTemplate),
+				new TrieWordIndex<>(stringWeightsAcrossTemplates), terms, new AffixRules(), new FuzzyIndex(), new StringOrdinals(), wordCacheSize);
+	}
+	
+	/**
+	 * Loads the common and very common word lists from google-10000-english-usa.txt (list of the 10,000 most common English words)
+	 */
+	public static void loadWordLists() {
+		// If a word is not on this list it's treated as a technical word
+		Scanner sc;
+		sc = new Scanner(App.class.getResourceAsStream("/google-10000-english-usa.txt"));
+		commonWordsSet = new LinkedHashSet<String>();
+		while(sc.hasNext()) {
+			commonWordsSet.add(sc.next());
+		}
+		sc.close();
+
+		// If a word is in the first 75 in the list it's treated as a very common word
+		veryCommonWordsSet = new LinkedHashSet<String>();
+		Iterator<String> iter = commonWordsSet.iterator();
+		for(int i = 0; i < 75 && iter.hasNext(); i++) {
+			veryCommonWordsSet.add(iter.next());
+		}
+		// Add all the single-digit numbers
+		for(int i = 0; i <= 9; i++) {
+			veryCommonWordsSet.add(String.valueOf(i));
+		}
+		index = index.withTerms(new TermDictionary(commonWordsSet, veryCommonWordsSet));
+	}
+	
+	/**
+	 * Parses a template with all of its formats from its JSON object in templates.json
+	 * @param tObj
+	 * @return
+	 */
+	public static Template parseTemplate(JsonObject tObj) {
+		Template t = new Template(tObj.get("name").getAsString());
 		
-		// Interactive cmdline starts here
-		@SuppressWarnings("resource")
-		Scanner scanner = new Scanner(System.in);
-		while(true) {
-			if(jsonInterface) {
-				String line = scanner.nextLine();
-				JsonArray js = InputProcessing.toJson(InputProcessing.process(line));
-				System.out.print(js.toString());
-			}
-			else {
-				System.out.println("Please input the string to check.");
-				String line = scanner.nextLine();
-				InputProcessing.legacyProcessInput(line, System.out);
+		// TemplateFormat
+		for(Entry<String, JsonElement> tfEntry : tObj.entrySet()) {
+			if(tfEntry.getValue().isJsonObject()) {
+				String formatName = tfEntry.getKey();
+				JsonObject tfObj = tfEntry.getValue().getAsJsonObject();
+				TemplateFormat tf = new TemplateFormat(t, formatName);
+				
+				// baseProgression
+				tf.baseProgression = new ItemProgression(Item.getItemListFromJson(tf, tfObj.get("content").getAsJsonArray()));
+				
+				t.addFormat(tf);
 			}
 		}
+		return t;
+	}
+	
+	/**
+	 * Same as {@link #buildAllWords(WordIndex, WordIndex, WordIndex)} with the weight tables of the current index
+	 */
+	public static void buildAllWords() {
+		QueryIndex current = index;
+		buildAllWords(VariantWordIndex.unwrap(current.templateWordIndex), VariantWordIndex.unwrap(current.stringInTemplateIndex),
+				VariantWordIndex.unwrap(current.stringAcrossTemplatesIndex));
+	}
+	
+	/**
+	 * Add the spelling variants to the weight tables used by the queries, make a new {@link TermDictionary} with their words, and
+	 * index it with {@link #allWordsInReverse} and the compiled prefix/suffix rules for fuzzy matching, and number the strings the
+	 * inputs are scored against. All of it is published at once as the new {@link #index}. Called again when the rules change.
+	 * @param templateTable - Template weights, without spelling variants
+	 * @param inTemplateTable - String weights in template, without spelling variants
+	 * @param acrossTemplatesTable - String weights across templates, without spelling variants
+	 */
+	public static void buildAllWords(WordIndex<Integer> templateTable, WordIndex<TemplateString> inTemplateTable,
+			WordIndex<TemplateString> acrossTemplatesTable) {
+		// Look up the spelling variants of the words through the tables
+		WordIndex<Integer> templateWordIndex = new VariantWordIndex<>(templateTable, anywhereSubstitutionWeights, TreeMap::new);
+		WordIndex<TemplateString> stringInTemplateIndex = new VariantWordIndex<>(inTemplateTable, anywhereSubstitutionWeights, HashMap::new);
+		WordIndex<TemplateString> stringAcrossTemplatesIndex = new VariantWordIndex<>(acrossTemplatesTable, anywhereSubstitutionWeights, HashMap::new);
+		
+		TermDictionary terms = new TermDictionary(commonWordsSet, veryCommonWordsSet);
+		addToTerms(terms, templateWordIndex, TEMPLATE_TABLE);
+		addToTerms(terms, stringInTemplateIndex, IN_TEMPLATE_TABLE, true);
+		addToTerms(terms, stringAcrossTemplatesIndex, ACROSS_TEMPLATES_TABLE, true);
+		AffixRules affixRules = new AffixRules(prefixRemovalWeights, suffixRemovalWeights, prefixSubstitutionWeights, suffixSubstitutionWeights);
+		FuzzyIndex fuzzyIndex = new FuzzyIndex(terms, allWordsInReverse, affixRules);
+		StringOrdinals stringOrdinals = new StringOrdinals(templatesExpandedConcat.values(), templates);
+		index = new QueryIndex(templateWordIndex, stringInTemplateIndex, stringAcrossTemplatesIndex, terms, affixRules, fuzzyIndex,
+				stringOrdinals, wordCacheSize);
+	}
+	
+	static void addToTerms(TermDictionary terms, WordIndex<?> index, int table) {
+		addToTerms(terms, index, table, false);
+	}
+	
+	/**
+	 * @param withWeights - Also store the highest weight of each word, for pruning the strings that can't reach a threshold
+	 */
+	static void addToTerms(TermDictionary terms, WordIndex<?> index, int table, boolean withWeights) {
+		for(String word : index.getWordsWithPrefix("")) {
+			if(withWeights) terms.addToTable(word, table, index.getWeights(word).values());
+			else terms.addToTable(word, table);
+		}
 	}
 	
 	public static <T extends Object> void addToReverseTree(Map<String, T> map) {
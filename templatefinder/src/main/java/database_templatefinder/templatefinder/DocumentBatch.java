@@ -0,0 +1,160 @@
+package database_templatefinder.templatefinder;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import database_templatefinder.templatefinder.TFIDFEngine.WordContributions;
+import database_templatefinder.templatefinder.output.OutputSection;
+import database_templatefinder.templatefinder.output.OutputWeight;
+import database_templatefinder.templatefinder.types.TemplateString;
+
+/**
+ * The sentences of a document with the duplicates removed: sentences with the same words get one row, which is scored once and
+ * shared by all of them. The contributions of each distinct word of the document (see {@link WordContributions}) are only looked up
+ * once, for the first row that has it.
+ * <p>
+ * Each row is still scored on its own in {@link InputScores}, adding its words in sentence order, so the weights are exactly the same
+ * as scoring the sentences one by one. A document without repeated sentences is scored about as fast as one by one.
+ */
+public class DocumentBatch {
+
+	final String input;
+	final ArrayList<OutputSection> sections;
+	/**The index all rows are scored with, even if it's replaced while they are scored*/
+	final QueryIndex index;
+	/**Distinct words of the document*/
+	final ArrayList<String> terms = new ArrayList<>();
+	/**Contributions of each distinct word, looked up by the first row that needs them*/
+	final AtomicReferenceArray<WordContributions> termContributions;
+	/**Term indexes of the words of each distinct sentence, -1 for the words without letters or digits, which only count towards the
+	 * threshold*/
+	final ArrayList<int[]> rows = new ArrayList<>();
+	/**Row of each sentence*/
+	final int[] sentenceRows;
+	// Strings above the threshold of each row with their weights
+	final TemplateString[][] rowStrings;
+	final OutputWeight[][] rowWeights;
+
+	/**
+	 * Split the sentences of a document into words
+	 * @param input - The document
+	 * @param sections - Section of each sentence in the document
+	 */
+	public DocumentBatch(String input, ArrayList<OutputSection> sections) {
+		this.input = input;
+		this.sections = sections;
+		index = App.index;
+		sentenceRows = new int[sections.size()];
+		HashMap<String, Integer> termIndexes = new HashMap<>();
+		HashMap<String, Integer> rowIndexes = new HashMap<>();
+		Tokenizer tokenizer = Tokenizer.forThread();
+		TermDictionary dictionary = index.terms;
+		StringBuilder key = new StringBuilder();
+		for(int i = 0; i < sections.size(); i++) {
+			OutputSection section = sections.get(i);
+			int size = tokenizer.tokenize(input.substring(section.beginIndex, section.endIndex), true);
+			int[] row = new int[size];
+			key.setLength(0);
+			for(int j = 0; j < size; j++) {
+				if(tokenizer.isEmpty(j)) {
+					row[j] = -1;
+					key.append("- ");
+					continue;
+				}
+				String word = tokenizer.getWord(j, dictionary, tokenizer.getTermId(j, dictionary));
+				Integer termIndex = termIndexes.get(word);
+				if(termIndex == null) {
+					termIndex = terms.size();
+					termIndexes.put(word, termIndex);
+					terms.add(word);
+				}
+				row[j] = termIndex;
+				key.append(termIndex).append(' ');
+			}
+			Integer rowIndex = rowIndexes.get(key.toString());
+			if(rowIndex == null) {
+				rowIndex = rows.size();
+				rowIndexes.put(key.toString(), rowIndex);
+				rows.add(row);
+			}
+			sentenceRows[i] = rowIndex;
+		}
+		termContributions = new AtomicReferenceArray<>(terms.size());
+		rowStrings = new TemplateString[rows.size()][];
+		rowWeights = new OutputWeight[rows.size()][];
+	}
+
+	/**
+	 * Number of distinct sentences
+	 * @return
+	 */
+	public int getRowCount() {
+		return rows.size();
+	}
+
+	/**
+	 * Number of distinct words
+	 * @return
+	 */
+	public int getTermCount() {
+		return terms.size();
+	}
+
+	WordContributions getTerm(int term) {
+		WordContributions contributions = termContributions.get(term);
+		if(contributions == null) {
+			contributions = index.wordCache.get(terms.get(term));
+			termContributions.compareAndSet(term, null, contributions);
+		}
+		return contributions;
+	}
+
+	/**
+	 * Score the strings of one row and keep the ones above the threshold of the sentence. Rows can be scored on different threads.
+	 * @param row
+	 */
+	public void scoreRow(int row) {
+		int[] words = rows.get(row);
+		// Remove entries below a threshold weight sqrt(len) (minimum correspondence to be considered an "okay" suggestion)
+		double threshold = InputProcessing.MINIMUM_WEIGHT + InputProcessing.MINIMUM_WEIGHT_PER_SQRT_WORDCOUNT * Math.sqrt(words.length);
+		InputScores scores = InputScores.forThread();
+		scores.reset(index.stringOrdinals);
+		for(int word : words) {
+			if(word >= 0) scores.addWord(getTerm(word));
+		}
+		TFIDFEngine.score(scores, index.terms, threshold, 0);
+
+		// Only the strings above the threshold get an OutputWeight
+		ArrayList<TemplateString> strings = new ArrayList<>();
+		ArrayList<OutputWeight> weights = new ArrayList<>();
+		for(int i = 0; i < scores.getCandidateCount(); i++) {
+			int ordinal = scores.getCandidate(i);
+			if(scores.getWeight(ordinal) > threshold) {
+				strings.add(scores.getString(ordinal));
+				weights.add(scores.getOutputWeight(ordinal));
+			}
+		}
+		rowStrings[row] = strings.toArray(new TemplateString[0]);
+		rowWeights[row] = weights.toArray(new OutputWeight[0]);
+	}
+
+	/**
+	 * Get the suggestions of all sentences in sentence order, after all rows are scored
+	 * @return
+	 */
+	public ArrayList<OutputSection> getOutput() {
+		ArrayList<OutputSection> out = new ArrayList<>();
+		for(int i = 0; i < sections.size(); i++) {
+			int row = sentenceRows[i];
+			for(int j = 0; j < rowStrings[row].length; j++) {
+				OutputSection newSection = sections.get(i).clone();
+				newSection.outputSource = rowStrings[row][j];
+				newSection.output = newSection.outputSource.string;
+				newSection.outputWeight = rowWeights[row][j];
+				out.add(newSection);
+			}
+		}
+		return out;
+	}
+}
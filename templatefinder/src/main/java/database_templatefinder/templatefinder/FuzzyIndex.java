@@ -0,0 +1,231 @@
+package database_templatefinder.templatefinder;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map.Entry;
+import java.util.TreeSet;
+
+import org.apache.commons.collections4.trie.PatriciaTrie;
+
+/**
+ * Candidate words for fuzzy matching an input word, see {@link TFIDFEngine#getPrefixMatch(String, String)} and
+ * {@link TFIDFEngine#getSuffixMatch(String, String)}.
+ * <p>
+ * The words are grouped by first (or last) letter and by length, and the candidates are given as IDs in the {@link TermDictionary}
+ * of the index. A match below 10% is never used, and the match of two words can't
+ * be more than a bound that only depends on their lengths and on the longest prefix/suffix rules, so whole lengths are skipped
+ * without looking at their words. The words of the other lengths are skipped if a bound using their matching prefix and suffix is
+ * too low. This only skips words that can't match, so the candidates give exactly the same matches as scanning all words.
+ */
+public class FuzzyIndex {
+
+	/**Matches at or below this are never used (the match is scaled to 0 at this point)*/
+	public static final double MIN_MATCH = 0.1;
+	/**Room for rounding differences between the bounds and the actual matches*/
+	static final double BOUND_MARGIN = 1e-9;
+
+	/**Words of the weight tables in sorted order, and their IDs in {@link #terms}*/
+	final String[] prefixOrder;
+	final int[] prefixOrderIds;
+	/**Words of the reverse tree in its order, and their IDs*/
+	final String[] suffixOrder;
+	final int[] suffixOrderIds;
+	/**First letter -> Length -> Positions of the words in prefixOrder, ascending*/
+	final HashMap<Character, int[][]> wordsByFirstLetter = new HashMap<>();
+	/**Last letter -> Length -> Positions of the words in suffixOrder, ascending*/
+	final HashMap<Character, int[][]> wordsByLastLetter = new HashMap<>();
+
+	/**Dictionary of the words*/
+	public final TermDictionary terms;
+	// Rules used by the prefix matches (suffix rules) and the suffix matches (prefix rules)
+	final AffixRules.Side suffixRules;
+	final AffixRules.Side prefixRules;
+
+	/**
+	 * An empty index
+	 */
+	public FuzzyIndex() {
+		this(new TermDictionary(null, null), new PatriciaTrie<String>(), new AffixRules());
+	}
+
+	/**
+	 * Index the words of the weight tables and {@link App#allWordsInReverse}
+	 * @param terms - Dictionary with the words of the weight tables. The words of the reverse tree are added to it if they're missing.
+	 * @param allWordsInReverse
+	 * @param rules - Prefix/suffix rules the matches use
+	 */
+	public FuzzyIndex(TermDictionary terms, PatriciaTrie<String> allWordsInReverse, AffixRules rules) {
+		this.terms = terms;
+		TreeSet<String> words = new TreeSet<>();
+		for(int id = 0; id < terms.size(); id++) {
+			if(terms.getTables(id) != 0) words.add(terms.getTerm(id));
+		}
+		prefixOrder = words.toArray(new String[0]);
+		prefixOrderIds = new int[prefixOrder.length];
+		HashMap<Character, ArrayList<ArrayList<Integer>>> byFirstLetter = new HashMap<>();
+		for(int i = 0; i < prefixOrder.length; i++) {
+			prefixOrderIds[i] = terms.getId(prefixOrder[i]);
+			if(!prefixOrder[i].isEmpty()) add(byFirstLetter, prefixOrder[i].charAt(0), prefixOrder[i].length(), i);
+		}
+		suffixOrder = allWordsInReverse.values().toArray(new String[0]);
+		suffixOrderIds = new int[suffixOrder.length];
+		HashMap<Character, ArrayList<ArrayList<Integer>>> byLastLetter = new HashMap<>();
+		for(int i = 0; i < suffixOrder.length; i++) {
+			suffixOrderIds[i] = terms.add(suffixOrder[i]);
+			if(!suffixOrder[i].isEmpty()) add(byLastLetter, suffixOrder[i].charAt(suffixOrder[i].length() - 1), suffixOrder[i].length(), i);
+		}
+		toArrays(byFirstLetter, wordsByFirstLetter);
+		toArrays(byLastLetter, wordsByLastLetter);
+		suffixRules = rules.suffixes;
+		prefixRules = rules.prefixes;
+	}
+
+	static void add(HashMap<Character, ArrayList<ArrayList<Integer>>> index, char letter, int length, int position) {
+		ArrayList<ArrayList<Integer>> byLength = index.get(letter);
+		if(byLength == null) index.put(letter, byLength = new ArrayList<>());
+		while(byLength.size() <= length) byLength.add(new ArrayList<Integer>());
+		byLength.get(length).add(position);
+	}
+
+	static void toArrays(HashMap<Character, ArrayList<ArrayList<Integer>>> lists, HashMap<Character, int[][]> out) {
+		for(Entry<Character, ArrayList<ArrayList<Integer>>> entry : lists.entrySet()) {
+			int[][] byLength = new int[entry.getValue().size()][];
+			for(int length = 0; length < byLength.length; length++) {
+				ArrayList<Integer> positions = entry.getValue().get(length);
+				byLength[length] = new int[positions.size()];
+				for(int i = 0; i < byLength[length].length; i++) byLength[length][i] = positions.get(i);
+			}
+			out.put(entry.getKey(), byLength);
+		}
+	}
+
+	/**
+	 * Count the words with the same first letter and the same last letter as the word, which are all scored when scanning the
+	 * weight tables instead of using the index
+	 * @param word
+	 * @return
+	 */
+	public int countWords(String word) {
+		return count(wordsByFirstLetter.get(word.charAt(0))) + count(wordsByLastLetter.get(word.charAt(word.length() - 1)));
+	}
+
+	static int count(int[][] byLength) {
+		int out = 0;
+		if(byLength != null) {
+			for(int[] positions : byLength) out += positions.length;
+		}
+		return out;
+	}
+
+	/**
+	 * Get the words with the same first letter as the word that can match it in {@link TFIDFEngine#getPrefixMatch(String, String)},
+	 * in sorted order. The word itself is not included.
+	 * @param word
+	 * @return IDs of the words in {@link #terms}
+	 */
+	public int[] getPrefixCandidates(String word) {
+		int[][] byLength = wordsByFirstLetter.get(word.charAt(0));
+		if(byLength == null) return new int[0];
+		int[] out = new int[16];
+		int size = 0;
+		for(int length = 1; length < byLength.length; length++) {
+			int[] positions = byLength[length];
+			if(positions.length == 0 || !canMatch(suffixRules, Math.min(word.length(), length), 0, word.length(), length)) continue;
+			for(int position : positions) {
+				String candidate = prefixOrder[position];
+				// Same matching lengths as getPrefixMatch
+				int prefixMatchingLength = 1;
+				while(prefixMatchingLength < word.length() && prefixMatchingLength < length
+						&& word.charAt(prefixMatchingLength) == candidate.charAt(prefixMatchingLength)) prefixMatchingLength ++;
+				int suffixMatchingLength = 0;
+				while(suffixMatchingLength < word.length() - prefixMatchingLength && suffixMatchingLength < length - prefixMatchingLength
+						&& word.charAt(word.length() - 1 - suffixMatchingLength) == candidate.charAt(length - 1 - suffixMatchingLength)) suffixMatchingLength ++;
+				if(canMatch(suffixRules, prefixMatchingLength, suffixMatchingLength, word.length(), length) && !candidate.equals(word)) {
+					if(size == out.length) out = Arrays.copyOf(out, size * 2);
+					out[size++] = position;
+				}
+			}
+		}
+		return toIds(out, size, prefixOrderIds);
+	}
+
+	/**
+	 * Get the words with the same last letter as the word that can match it in {@link TFIDFEngine#getSuffixMatch(String, String)},
+	 * in the order of {@link App#allWordsInReverse}. The word itself is not included.
+	 * @param word
+	 * @return IDs of the words in {@link #terms}
+	 */
+	public int[] getSuffixCandidates(String word) {
+		int[][] byLength = wordsByLastLetter.get(word.charAt(word.length() - 1));
+		if(byLength == null) return new int[0];
+		int[] out = new int[16];
+		int size = 0;
+		for(int length = 1; length < byLength.length; length++) {
+			int[] positions = byLength[length];
+			// The last letter is counted as matching even if the matching prefix already covers the shorter word
+			if(positions.length == 0 || !canMatch(prefixRules, Math.min(word.length(), length), 1, word.length(), length)) continue;
+			for(int position : positions) {
+				String candidate = suffixOrder[position];
+				// Same matching lengths as getSuffixMatch
+				int prefixMatchingLength = 0;
+				while(prefixMatchingLength < word.length() && prefixMatchingLength < length
+						&& word.charAt(prefixMatchingLength) == candidate.charAt(prefixMatchingLength)) prefixMatchingLength ++;
+				int suffixMatchingLength = 1;
+				while(suffixMatchingLength < word.length() - prefixMatchingLength && suffixMatchingLength < length - prefixMatchingLength
+						&& word.charAt(word.length() - 1 - suffixMatchingLength) == candidate.charAt(length - 1 - suffixMatchingLength)) suffixMatchingLength ++;
+				if(canMatch(prefixRules, suffixMatchingLength, prefixMatchingLength, word.length(), length) && !candidate.equals(word)) {
+					if(size == out.length) out = Arrays.copyOf(out, size * 2);
+					out[size++] = position;
+				}
+			}
+		}
+		return toIds(out, size, suffixOrderIds);
+	}
+
+	/**
+	 * Sort positions in one of the word orders and get the IDs of their words
+	 */
+	static int[] toIds(int[] positions, int size, int[] ids) {
+		int[] out = Arrays.copyOf(positions, size);
+		Arrays.sort(out);
+		for(int i = 0; i < size; i++) out[i] = ids[out[i]];
+		return out;
+	}
+
+	/**
+	 * Check whether two words can match above {@link #MIN_MATCH}
+	 * @param rules - Rules of the non-matching end
+	 * @param anchored - Matching length at the end the words have in common (the prefix for prefix matches), or an upper bound
+	 * @param other - Matching length at the other end, or an upper bound
+	 * @param wordLength
+	 * @param candidateLength
+	 * @return
+	 */
+	static boolean canMatch(AffixRules.Side rules, int anchored, int other, int wordLength, int candidateLength) {
+		return getMaxMatch(rules, anchored, other, wordLength, candidateLength) * (1 + BOUND_MARGIN) > MIN_MATCH;
+	}
+
+	/**
+	 * Upper bound of the match of two words before it's scaled. Follows the three cases of the match functions, with the longest fix
+	 * and the highest weight of the rules in place of the actual ones.
+	 */
+	static double getMaxMatch(AffixRules.Side rules, int anchored, int other, int wordLength, int candidateLength) {
+		int maxLength = Math.max(wordLength, candidateLength);
+		int minLength = Math.min(wordLength, candidateLength);
+		// No rule
+		double max = Math.pow((double) (anchored + other) / maxLength, 4);
+		// Removal from the longer word, the longer the removed fix the better
+		if(maxLength > minLength && rules.removalLength > 0) {
+			int removed = Math.min(maxLength - minLength, rules.removalLength);
+			max = Math.max(max, rules.removalScale * Math.pow((double) anchored / (maxLength - removed), 4));
+		}
+		// Substitution, which removes up to the longest fix from both words
+		if(rules.substitutionLength > 0) {
+			int newMaxLength = maxLength - rules.substitutionLength;
+			if(newMaxLength <= 0) return Double.POSITIVE_INFINITY;
+			max = Math.max(max, rules.substitutionScale * Math.pow((double) anchored / newMaxLength, 4));
+		}
+		return max;
+	}
+}
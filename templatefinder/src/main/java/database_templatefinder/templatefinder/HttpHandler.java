@@ -10,6 +10,7 @@ import java.util.Map;
 import com.google.gson.JsonArray;
 import com.google.gson.JsonObject;
 
+import database_templatefinder.templatefinder.types.TemplateString;
 import fi.iki.elonen.NanoHTTPD;
 
 /**
@@ -27,6 +28,20 @@ public class HttpHandler extends NanoHTTPD {
     public Response serve(IHTTPSession session) {
     	try {
             Map<String, String> parms = session.getParms();
+            if ("true".equals(parms.get("cachestats"))) {
+            	// Hit rate and size of the word cache
+            	return newFixedLengthResponse(NanoHTTPD.Response.Status.OK, "application/json", App.index.wordCache.getStats().toString());
+            }
+            if ("true".equals(parms.get("reloadequivalences"))) {
+            	// Load the equivalence rules again (from App.equivalenceFile if set) and rebuild the word index with them
+            	JsonObject out = new JsonObject();
+            	out.addProperty("reloaded", App.reloadEquivalences());
+            	return newFixedLengthResponse(NanoHTTPD.Response.Status.OK, "application/json", out.toString());
+            }
+            if ("true".equals(parms.get("scorestats"))) {
+            	// Strings scored and skipped by pruning and the cascade
+            	return newFixedLengthResponse(NanoHTTPD.Response.Status.OK, "application/json", InputScores.getStats().toString());
+            }
             if (parms.get("querystring") == null) {
                 String msg = "<html><body>";
             	msg += "<h1>Template checker</h1>\n";
@@ -35,10 +50,13 @@ public class HttpHandler extends NanoHTTPD {
                 return newFixedLengthResponse(msg + "</body></html>");
             } else if("true".equals(parms.get("userfriendly"))) {
                 String msg = "<html><body>";
-            	// Check template
+            	// Check template, printing the top strings (count from the top parameter)
+            	Integer topCount = getPositiveInt(parms, "top", App.topCount);
+            	if(topCount == null) return badRequest("top must be a positive integer");
+            	TemplateString result = null;
             	final ByteArrayOutputStream baos = new ByteArrayOutputStream();
                 try (PrintStream ps = new PrintStream(baos, true, "UTF-8")) {
-                	InputProcessing.legacyProcessInput(parms.get("querystring"), ps);
+                	result = InputProcessing.legacyProcessInput(parms.get("querystring"), ps, topCount);
                 } catch (UnsupportedEncodingException e) {
     				e.printStackTrace();
     			}
@@ -48,7 +66,7 @@ public class HttpHandler extends NanoHTTPD {
                     msg += "<p>" + line + "</p>";
                 }
                 try {
-                	msg += "<p>" + InputProcessing.legacyProcessInput(parms.get("querystring"), null).getJsonOutputObject().toString() + "</p>";
+                	msg += "<p>" + result.getJsonOutputObject().toString() + "</p>";
                 }
                 catch(Exception ex) {
                 	ex.printStackTrace();
@@ -56,13 +74,38 @@ public class HttpHandler extends NanoHTTPD {
                 return newFixedLengthResponse(msg + "</body></html>");
             }
             else {
-            	JsonArray js = InputProcessing.toJson(InputProcessing.process(parms.get("querystring")));
+            	// Threads scoring the sentences of this input
+            	Integer parallelism = getPositiveInt(parms, "parallelism", App.sentenceParallelism);
+            	if(parallelism == null) return badRequest("parallelism must be a positive integer");
+            	JsonArray js = InputProcessing.toJson(InputProcessing.process(parms.get("querystring"), parallelism));
             	return newFixedLengthResponse(NanoHTTPD.Response.Status.OK, "application/json", js.toString());
             }
     	}
     	catch(Exception ex) {
     		ex.printStackTrace();
+    		return newFixedLengthResponse(NanoHTTPD.Response.Status.INTERNAL_ERROR, NanoHTTPD.MIME_PLAINTEXT, "Could not process the request");
+    	}
+    }
+    
+    /**
+     * Get a parameter that must be a positive integer
+     * @param parms
+     * @param name
+     * @param defaultValue - Value if the parameter is missing
+     * @return The value, or null if it's not a positive integer
+     */
+    static Integer getPositiveInt(Map<String, String> parms, String name, int defaultValue) {
+    	String value = parms.get(name);
+    	if(value == null) return defaultValue;
+    	try {
+    		int parsed = Integer.parseInt(value.trim());
+    		return parsed > 0 ? parsed : null;
+    	} catch (NumberFormatException e) {
     		return null;
     	}
     }
+    
+    static Response badRequest(String message) {
+    	return newFixedLengthResponse(NanoHTTPD.Response.Status.BAD_REQUEST, NanoHTTPD.MIME_PLAINTEXT, message);
+    }
 }
\ No newline at end of file
@@ -0,0 +1,395 @@
+package database_templatefinder.templatefinder;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiFunction;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.google.gson.JsonSyntaxException;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+
+import database_templatefinder.templatefinder.types.Template;
+import database_templatefinder.templatefinder.types.TemplateFormat;
+import database_templatefinder.templatefinder.types.TemplateString;
+
+/**
+ * Loads the templates and builds all weight maps in {@link App}.
+ * <p>
+ * The work is split into phases: read -> parse -> expand -> weights in template -> global idf -> weights across templates -> finalize.
+ * Each template goes through the first three phases on its own, as soon as the previous phase is done for it. The global idf
+ * needs every template, and the later phases need the idf. All tasks run on a work-stealing pool.
+ */
+public class IndexBuilder {
+
+	final ForkJoinPool pool;
+	/**Number of parts the words are split into so the weight maps can be merged in parallel*/
+	final int shardCount;
+	final ArrayList<Phase> phases = new ArrayList<>();
+	final ArrayList<CompletableFuture<LoadedTemplate>> loadedFutures = new ArrayList<>();
+	/**JSON text of every template in the order they were submitted, only kept when set to a list before building (for {@link IndexSnapshot})*/
+	public ArrayList<String> templateSources = null;
+
+	final Phase readPhase = newPhase("read");
+	final Phase parsePhase = newPhase("parse");
+	final Phase expandPhase = newPhase("expand");
+	final Phase inTemplatePhase = newPhase("weights in template");
+	final Phase idfPhase = newPhase("global idf");
+	final Phase acrossTemplatesPhase = newPhase("weights across templates");
+	final Phase mergePhase = newPhase("merge");
+	final Phase finalizePhase = newPhase("finalize");
+
+	/**
+	 * @param parallelism - Number of threads to use
+	 */
+	public IndexBuilder(int parallelism) {
+		pool = new ForkJoinPool(parallelism);
+		shardCount = parallelism * 4;
+	}
+
+	/**
+	 * Load all templates in the JSON array and fill in the template lists and weight maps in {@link App}. Blocks until done.
+	 * @param json
+	 */
+	public void build(JsonArray json) {
+		long startTime = begin();
+		for(JsonElement tElement : json) {
+			if(tElement.isJsonObject()) submitTemplate(tElement.getAsJsonObject());
+		}
+		finish(startTime);
+	}
+
+	/**
+	 * Read the templates from a templates.json stream and fill in the template lists and weight maps in {@link App}. Blocks until done.
+	 * <p>
+	 * Each template object is handed to the pool as soon as it is read, so reading the rest of the file overlaps with parsing and
+	 * expanding the templates already read, and the whole file never has to be in memory as one tree.
+	 * @param in
+	 * @throws IOException if the stream could not be read
+	 * @throws JsonSyntaxException if the file is not a valid JSON array
+	 * @throws IllegalStateException if a template has the wrong type of value for a field
+	 */
+	public void build(Reader in) throws IOException {
+		long startTime = begin();
+		try {
+			JsonReader reader = new JsonReader(in);
+			JsonParser parser = new JsonParser();
+			reader.beginArray();
+			while(reader.hasNext()) {
+				if(reader.peek() != JsonToken.BEGIN_OBJECT) {
+					reader.skipValue();
+					continue;
+				}
+				submitTemplate(readPhase.time(() -> parser.parse(reader).getAsJsonObject()).get());
+			}
+			reader.endArray();
+		}
+		catch(IOException | RuntimeException e) {
+			pool.shutdownNow();
+			throw e;
+		}
+		finish(startTime);
+	}
+
+	long begin() {
+		System.out.println("Beginning template load with " + pool.getParallelism() + " threads.");
+		return System.nanoTime();
+	}
+
+	/**
+	 * Parse, expand and get weights in template for a template on its own
+	 */
+	void submitTemplate(JsonObject tObj) {
+		if(templateSources != null) templateSources.add(tObj.toString());
+		loadedFutures.add(CompletableFuture
+				.supplyAsync(parsePhase.time(() -> App.parseTemplate(tObj)), pool)
+				.thenApplyAsync(expandPhase.time((Template t) -> new LoadedTemplate(t, shardCount, TFIDFEngine.expandTemplate(t, App.BASE_FORMAT, App.maxStringsPerTemplate))), pool)
+				.thenApplyAsync(inTemplatePhase.time(LoadedTemplate::computeStringWeightsInTemplate), pool));
+	}
+
+	/**
+	 * Run the phases that need every template once all templates are submitted
+	 * @param startTime
+	 * @throws RuntimeException the exception a task threw, not wrapped in a {@link CompletionException}
+	 */
+	void finish(long startTime) {
+		// Global idf once every template is loaded
+		CompletableFuture<Integer> idfFuture = CompletableFuture.allOf(loadedFutures.toArray(new CompletableFuture<?>[0]))
+				.thenApplyAsync(idfPhase.time((Void v) -> computeIdf(loadedFutures)), pool);
+
+		// Weights across templates
+		ArrayList<CompletableFuture<LoadedTemplate>> acrossFutures = new ArrayList<>();
+		for(CompletableFuture<LoadedTemplate> loadedFuture : loadedFutures) {
+			acrossFutures.add(loadedFuture.thenCombineAsync(idfFuture, acrossTemplatesPhase.time(LoadedTemplate::computeWeightsAcrossTemplates), pool));
+		}
+
+		// Merge the weights of all templates, each shard of words on its own
+		CompletableFuture<Void> allAcross = CompletableFuture.allOf(acrossFutures.toArray(new CompletableFuture<?>[0]));
+		ArrayList<CompletableFuture<Shard>> shardFutures = new ArrayList<>();
+		for(int i = 0; i < shardCount; i++) {
+			int shard = i;
+			shardFutures.add(allAcross.thenApplyAsync(mergePhase.time((Void v) -> mergeShard(acrossFutures, shard)), pool));
+		}
+		
+		// Build the final maps
+		try {
+			CompletableFuture.allOf(shardFutures.toArray(new CompletableFuture<?>[0]))
+					.thenRunAsync(finalizePhase.time(() -> finalizeIndex(shardFutures)), pool)
+					.join();
+		}
+		catch(CompletionException e) {
+			pool.shutdownNow();
+			// Thrown like it is when the templates are read, so the caller handles it the same way
+			if(e.getCause() instanceof RuntimeException) throw (RuntimeException) e.getCause();
+			if(e.getCause() instanceof Error) throw (Error) e.getCause();
+			throw e;
+		}
+		pool.shutdown();
+
+		long endTime = System.nanoTime();
+		for(Phase phase : phases) {
+			System.out.println(phase.getTimingString(startTime));
+		}
+		System.out.println("Template load took " + (endTime - startTime) / 1000000 + "ms for " + App.templates.size() + " templates.");
+	}
+
+	/**
+	 * Adds the loaded templates to the template lists in order, and counts the number of templates each word appears in
+	 * @return the number of templates with the base format
+	 */
+	Integer computeIdf(ArrayList<CompletableFuture<LoadedTemplate>> loadedFutures) {
+		for(CompletableFuture<LoadedTemplate> future : loadedFutures) {
+			LoadedTemplate loaded = future.join();
+			App.templates.add(loaded.template);
+			App.templatesExpanded.put(loaded.template.getName(), loaded.expanded);
+			App.templatesExpandedConcat.putAll(loaded.expanded);
+		}
+		ArrayList<TemplateFormat> baseFormats = TFIDFEngine.listForFormat(App.templates, App.BASE_FORMAT);
+		// Count the templates each word appears in once, so the idf steps only need a lookup
+		App.templateWordAppearances = TFIDFEngine.getTemplateWordAppearances(baseFormats);
+		return baseFormats.size();
+	}
+
+	/**
+	 * Merges the weights of one shard of words of every template, in the order of the templates
+	 */
+	Shard mergeShard(ArrayList<CompletableFuture<LoadedTemplate>> acrossFutures, int shard) {
+		Shard out = new Shard();
+		for(CompletableFuture<LoadedTemplate> future : acrossFutures) {
+			LoadedTemplate loaded = future.join();
+			TFIDFEngine.merge(out.stringWeightsInTemplate, loaded.stringWeightsInTemplate.get(shard));
+			TFIDFEngine.merge(out.stringWeightsAcrossTemplates, loaded.stringWeightsAcrossTemplates.get(shard));
+			TFIDFEngine.merge(out.templateWordWeights, loaded.templateWordWeights.get(shard));
+		}
+		return out;
+	}
+
+	/**
+	 * Puts the merged shards into the final maps and builds the maps derived from them
+	 */
+	void finalizeIndex(ArrayList<CompletableFuture<Shard>> shardFutures) {
+		// The shards have no words in common, so they can be added directly
+		for(CompletableFuture<Shard> future : shardFutures) {
+			Shard shard = future.join();
+			App.stringWeightsInTemplate.putAll(shard.stringWeightsInTemplate);
+			App.stringWeightsAcrossTemplates.putAll(shard.stringWeightsAcrossTemplates);
+			App.templateWordWeights.putAll(shard.templateWordWeights);
+		}
+
+		// Add all maps to reverse word tree
+		App.addToReverseTree(App.templateWordWeights);
+		App.addToReverseTree(App.stringWeightsInTemplate);
+		App.addToReverseTree(App.stringWeightsAcrossTemplates);
+		
+		// Template weights by index in the template list, for the queries
+		App.templateWordWeightsByOrdinal.putAll(TFIDFEngine.getTemplateWeightsByOrdinal(App.templateWordWeights, App.templates));
+		App.buildAllWords();
+	}
+
+	/**
+	 * Splits a map into shards by the hash of the key
+	 */
+	static <V> ArrayList<HashMap<String, V>> partition(Map<String, V> map, int shardCount) {
+		ArrayList<HashMap<String, V>> out = new ArrayList<>(shardCount);
+		for(int i = 0; i < shardCount; i++) out.add(new HashMap<String, V>());
+		for(Entry<String, V> entry : map.entrySet()) {
+			out.get(shardOf(entry.getKey(), shardCount)).put(entry.getKey(), entry.getValue());
+		}
+		return out;
+	}
+
+	static int shardOf(String word, int shardCount) {
+		return (word.hashCode() & 0x7FFFFFFF) % shardCount;
+	}
+
+	Phase newPhase(String name) {
+		Phase phase = new Phase(name);
+		phases.add(phase);
+		return phase;
+	}
+
+	/**
+	 * A template and the weights computed for it so far. The weights are split into shards of words.
+	 */
+	static class LoadedTemplate {
+		final Template template;
+		final int shardCount;
+		final HashMap<String, HashMap<String, TemplateString>> expanded;
+
+		// Word -> TemplateString -> Value
+		ArrayList<HashMap<String, HashMap<TemplateString, Double>>> stringWeightsInTemplate;
+		ArrayList<HashMap<String, HashMap<TemplateString, Double>>> stringWeightsAcrossTemplates;
+		// Word -> Template Name -> Value (the only template name being this template)
+		ArrayList<HashMap<String, HashMap<String, Double>>> templateWordWeights;
+
+		LoadedTemplate(Template template, int shardCount, HashMap<String, HashMap<String, TemplateString>> expanded) {
+			this.template = template;
+			this.shardCount = shardCount;
+			this.expanded = expanded;
+		}
+
+		/**
+		 * Get the word weights of each expanded base format string
+		 */
+		HashMap<TemplateString, HashMap<String, Double>> getStringWeights() {
+			HashMap<TemplateString, HashMap<String, Double>> stringWeights = new HashMap<>();
+			for(HashMap<String, TemplateString> localeMapForString : expanded.values()) {
+				TemplateString tStr = localeMapForString.get(App.BASE_FORMAT);
+				stringWeights.put(tStr, TFIDFEngine.getStringWeights(tStr));
+			}
+			return stringWeights;
+		}
+
+		LoadedTemplate computeStringWeightsInTemplate() {
+			// Get tf
+			HashMap<TemplateString, HashMap<String, Double>> stringWeights = getStringWeights();
+
+			// Get idf
+			HashMap<String, HashMap<TemplateString, Double>> stringWeightsByWord = TFIDFEngine.createStringWeightMapByWord(stringWeights);
+			TFIDFEngine.tfidfStringWeightsWithinTemplate(stringWeightsByWord, stringWeights.size());
+			stringWeightsInTemplate = partition(stringWeightsByWord, shardCount);
+			return this;
+		}
+
+		LoadedTemplate computeWeightsAcrossTemplates(Integer baseFormatCount) {
+			// !!!!!!!!!! Template Weights
+			HashMap<String, HashMap<String, Double>> wordWeightsByWord = new HashMap<>();
+			TemplateFormat baseFormat = template.get(App.BASE_FORMAT);
+			if(baseFormat != null) {
+				// Find template word frequency (get tf)
+				HashMap<String, Double> wordWeights = TFIDFEngine.getTemplateWeights(baseFormat);
+				// Modify by function (divide by idf)
+				TFIDFEngine.tfidfTemplateWeights(wordWeights, App.templateWordAppearances, baseFormatCount);
+				
+				for(Entry<String, Double> wordEntry : wordWeights.entrySet()) {
+					HashMap<String, Double> templateMap = new HashMap<>();
+					templateMap.put(template.getName(), wordEntry.getValue());
+					wordWeightsByWord.put(wordEntry.getKey(), templateMap);
+				}
+			}
+			templateWordWeights = partition(wordWeightsByWord, shardCount);
+
+			// !!!!!!!!!! String weights across templates
+			HashMap<String, HashMap<TemplateString, Double>> stringWeightsByWord = TFIDFEngine.createStringWeightMapByWord(getStringWeights());
+			TFIDFEngine.tfidfStringWeightsInAllTemplates(stringWeightsByWord, App.templateWordAppearances, baseFormatCount);
+			stringWeightsAcrossTemplates = partition(stringWeightsByWord, shardCount);
+			return this;
+		}
+	}
+
+	/**
+	 * The merged weights of all templates for one shard of words
+	 */
+	static class Shard {
+		HashMap<String, HashMap<TemplateString, Double>> stringWeightsInTemplate = new HashMap<>();
+		HashMap<String, HashMap<TemplateString, Double>> stringWeightsAcrossTemplates = new HashMap<>();
+		HashMap<String, HashMap<String, Double>> templateWordWeights = new HashMap<>();
+	}
+
+	/**
+	 * A phase of the build. Keeps track of the time spent by its tasks so it can be printed at the end.
+	 */
+	public static class Phase {
+		final String name;
+		final AtomicInteger taskCount = new AtomicInteger();
+		final AtomicLong taskNanos = new AtomicLong();
+		final AtomicLong firstStart = new AtomicLong(Long.MAX_VALUE);
+		final AtomicLong lastEnd = new AtomicLong(Long.MIN_VALUE);
+
+		public Phase(String name) {
+			this.name = name;
+		}
+
+		/**
+		 * Wraps a task of this phase so its running time is recorded
+		 */
+		public <T> Supplier<T> time(Supplier<T> task) {
+			return () -> {
+				long start = begin();
+				try {
+					return task.get();
+				}
+				finally {
+					end(start);
+				}
+			};
+		}
+		
+		public Runnable time(Runnable task) {
+			return () -> {
+				long start = begin();
+				try {
+					task.run();
+				}
+				finally {
+					end(start);
+				}
+			};
+		}
+		
+		public <T, R> Function<T, R> time(Function<T, R> task) {
+			return t -> time(() -> task.apply(t)).get();
+		}
+		
+		public <T, U, R> BiFunction<T, U, R> time(BiFunction<T, U, R> task) {
+			return (t, u) -> time(() -> task.apply(t, u)).get();
+		}
+		
+		long begin() {
+			long start = System.nanoTime();
+			firstStart.accumulateAndGet(start, Math::min);
+			return start;
+		}
+		
+		void end(long start) {
+			long end = System.nanoTime();
+			lastEnd.accumulateAndGet(end, Math::max);
+			taskNanos.addAndGet(end - start);
+			taskCount.incrementAndGet();
+		}
+
+		/**
+		 * Get the time between the start of the first task and the end of the last task (relative to the start of the build), and the
+		 * time spent in all tasks
+		 */
+		public String getTimingString(long buildStartNanos) {
+			if(taskCount.get() == 0) return "Phase " + name + ": no tasks";
+			return "Phase " + name + ": " + (firstStart.get() - buildStartNanos) / 1000000 + "ms - " + (lastEnd.get() - buildStartNanos) / 1000000
+					+ "ms, " + taskCount.get() + " tasks taking " + taskNanos.get() / 1000000 + "ms in total";
+		}
+	}
+}
@@ -0,0 +1,352 @@
+package database_templatefinder.templatefinder;
+
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+
+import org.apache.commons.collections4.trie.PatriciaTrie;
+
+import com.google.gson.JsonParser;
+
+import database_templatefinder.templatefinder.types.Template;
+import database_templatefinder.templatefinder.types.TemplateString;
+
+/**
+ * Saves the fully built index in {@link App} to a binary file and loads it back, so a server can start without expanding the
+ * templates and computing the weights again.
+ * <p>
+ * File layout: magic number, format version, the sections below, and a CRC32 of everything before it. Template strings are written
+ * once and referred to by their ordinal everywhere else. The weights come last, as {@link MappedIndex} tables that are used
+ * straight from the memory-mapped file. The templates themselves are saved as their JSON text and parsed again when
+ * loading, which is cheap compared to the expansion.
+ */
+public class IndexSnapshot {
+
+	public static final int MAGIC = 0x54464958; // "TFIX"
+	/**Increase whenever the layout or the meaning of the saved weights changes*/
+	public static final int VERSION = 6;
+
+	/**
+	 * Write the index currently loaded in {@link App} to a file. The file is replaced atomically once it is complete.
+	 * @param file
+	 * @param templateSources - JSON text of each template in {@link App#templates}, in the same order
+	 * @throws IOException
+	 */
+	public static void write(File file, List<String> templateSources) throws IOException {
+		if(templateSources.size() != App.templates.size()) throw new IllegalArgumentException("Expected " + App.templates.size() + " template sources, got " + templateSources.size());
+
+		File tempFile = new File(file.getPath() + ".tmp");
+		CRC32 crc = new CRC32();
+		try(FileOutputStream fileOut = new FileOutputStream(tempFile)) {
+			DataOutputStream out = new DataOutputStream(new CheckedOutputStream(new BufferedOutputStream(fileOut), crc));
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+
+			// Word lists
+			writeStrings(out, App.commonWordsSet);
+			writeStrings(out, App.veryCommonWordsSet);
+
+			// Templates
+			IdentityHashMap<Template, Integer> templateOrdinals = new IdentityHashMap<>();
+			out.writeInt(templateSources.size());
+			for(int i = 0; i < templateSources.size(); i++) {
+				templateOrdinals.put(App.templates.get(i), i);
+				writeString(out, templateSources.get(i));
+			}
+
+			// Template strings, in the order they are first found
+			IdentityHashMap<TemplateString, Integer> stringOrdinals = new IdentityHashMap<>();
+			ArrayList<TemplateString> strings = new ArrayList<>();
+			for(HashMap<String, HashMap<String, TemplateString>> expanded : App.templatesExpanded.values()) {
+				for(HashMap<String, TemplateString> localeMap : expanded.values()) addStrings(localeMap.values(), stringOrdinals, strings);
+			}
+			for(HashMap<String, TemplateString> localeMap : App.templatesExpandedConcat.values()) addStrings(localeMap.values(), stringOrdinals, strings);
+			for(HashMap<TemplateString, Double> map : App.stringWeightsInTemplate.values()) addStrings(map.keySet(), stringOrdinals, strings);
+			for(HashMap<TemplateString, Double> map : App.stringWeightsAcrossTemplates.values()) addStrings(map.keySet(), stringOrdinals, strings);
+			out.writeInt(strings.size());
+			for(TemplateString str : strings) {
+				Integer templateOrdinal = templateOrdinals.get(str.tf.template);
+				if(templateOrdinal == null) throw new IllegalStateException("String " + str + " belongs to a template that is not loaded");
+				out.writeInt(templateOrdinal);
+				writeString(out, str.tf.formatName);
+				writeString(out, str.string);
+				int[] variables = str.getVariableData();
+				out.writeInt(variables.length);
+				for(int v : variables) out.writeInt(v);
+			}
+
+			// Expanded templates
+			out.writeInt(App.templatesExpanded.size());
+			for(Entry<String, HashMap<String, HashMap<String, TemplateString>>> entry : App.templatesExpanded.entrySet()) {
+				writeString(out, entry.getKey());
+				writeExpanded(out, entry.getValue(), stringOrdinals);
+			}
+			writeExpanded(out, App.templatesExpandedConcat, stringOrdinals);
+
+			out.writeInt(App.allWordsInReverse.size());
+			for(Entry<String, String> entry : App.allWordsInReverse.entrySet()) {
+				writeString(out, entry.getKey());
+				writeString(out, entry.getValue());
+			}
+			out.writeInt(App.templateWordAppearances.size());
+			for(Entry<String, Integer> entry : App.templateWordAppearances.entrySet()) {
+				writeString(out, entry.getKey());
+				out.writeInt(entry.getValue());
+			}
+
+			// Equivalence
+			writeWeights(out, App.prefixRemovalWeights);
+			writeWeights(out, App.suffixRemovalWeights);
+			writeSubstitutions(out, App.prefixSubstitutionWeights);
+			writeSubstitutions(out, App.suffixSubstitutionWeights);
+			writeSubstitutions(out, App.anywhereSubstitutionWeights);
+
+			// Weights, as tables that are memory-mapped when loading
+			MappedIndex.pad(out, (8 - out.size() % 8) % 8);
+			MappedIndex.writeTable(out, App.templateWordWeightsByOrdinal, Integer::intValue);
+			MappedIndex.writeTable(out, App.stringWeightsInTemplate, stringOrdinals::get);
+			MappedIndex.writeTable(out, App.stringWeightsAcrossTemplates, stringOrdinals::get);
+
+			// Checksum of everything above, written past the checksummed stream
+			out.flush();
+			DataOutputStream trailer = new DataOutputStream(fileOut);
+			trailer.writeLong(crc.getValue());
+			trailer.flush();
+		}
+		Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	/**
+	 * Replace the index in {@link App} with the one saved in a file. The weights are not copied to the heap, but read from the
+	 * memory-mapped file by the queries.
+	 * @param file
+	 * @throws IOException if the file could not be read, is corrupted or was written by a different version
+	 */
+	public static void read(File file) throws IOException {
+		MappedByteBuffer buffer;
+		try(FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+			// The mapping stays valid after the channel is closed
+			buffer = channel.map(MapMode.READ_ONLY, 0, channel.size());
+		}
+		if(buffer.capacity() < 16) throw new IOException("Index file " + file + " is too short");
+		if(buffer.getInt(0) != MAGIC) throw new IOException(file + " is not an index file");
+		int version = buffer.getInt(4);
+		if(version != VERSION) throw new IOException("Index file " + file + " has version " + version + ", expected " + VERSION + ". Build it again with build=[file]");
+
+		// Check the whole file before reading anything from it
+		CRC32 crc = new CRC32();
+		ByteBuffer checked = buffer.duplicate();
+		checked.limit(buffer.capacity() - 8);
+		crc.update(checked);
+		if(crc.getValue() != buffer.getLong(buffer.capacity() - 8)) throw new IOException("Index file " + file + " is corrupted (checksum mismatch)");
+
+		App.clearIndex();
+		ByteBuffer view = buffer.duplicate();
+		view.position(8);
+		DataInputStream in = new DataInputStream(new ByteBufferInputStream(view));
+
+		// Word lists
+		App.commonWordsSet = readStrings(in);
+		App.veryCommonWordsSet = readStrings(in);
+
+		// Templates
+		int templateCount = in.readInt();
+		JsonParser parser = new JsonParser();
+		for(int i = 0; i < templateCount; i++) {
+			App.templates.add(App.parseTemplate(parser.parse(readString(in)).getAsJsonObject()));
+		}
+
+		// Template strings
+		TemplateString[] strings = new TemplateString[in.readInt()];
+		HashMap<TemplateString, Integer> stringOrdinals = new HashMap<>();
+		for(int i = 0; i < strings.length; i++) {
+			Template t = App.templates.get(in.readInt());
+			String formatName = readString(in);
+			String string = readString(in);
+			int[] variables = new int[in.readInt()];
+			for(int j = 0; j < variables.length; j++) variables[j] = in.readInt();
+			strings[i] = new TemplateString(t.get(formatName), string, variables);
+			stringOrdinals.put(strings[i], i);
+		}
+
+		// Expanded templates
+		int expandedCount = in.readInt();
+		for(int i = 0; i < expandedCount; i++) {
+			String name = readString(in);
+			App.templatesExpanded.put(name, readExpanded(in, strings));
+		}
+		App.templatesExpandedConcat = readExpanded(in, strings);
+
+		int reverseCount = in.readInt();
+		for(int i = 0; i < reverseCount; i++) {
+			String key = readString(in);
+			App.allWordsInReverse.put(key, readString(in));
+		}
+		int appearanceCount = in.readInt();
+		for(int i = 0; i < appearanceCount; i++) {
+			String word = readString(in);
+			App.templateWordAppearances.put(word, in.readInt());
+		}
+
+		// Equivalence
+		App.prefixRemovalWeights = readWeights(in, new PatriciaTrie<Double>());
+		App.suffixRemovalWeights = readWeights(in, new PatriciaTrie<Double>());
+		App.prefixSubstitutionWeights = readSubstitutions(in);
+		App.suffixSubstitutionWeights = readSubstitutions(in);
+		App.anywhereSubstitutionWeights = readSubstitutions(in);
+
+		// Weights
+		view.position((view.position() + 7) & ~7);
+		WordIndex<Integer> templateTable = MappedIndex.readTable(view, Integer::valueOf, key -> key instanceof Integer ? (Integer) key : -1);
+		WordIndex<TemplateString> inTemplateTable = MappedIndex.readTable(view, i -> strings[i], key -> stringOrdinals.getOrDefault(key, -1));
+		WordIndex<TemplateString> acrossTemplatesTable = MappedIndex.readTable(view, i -> strings[i], key -> stringOrdinals.getOrDefault(key, -1));
+		App.buildAllWords(templateTable, inTemplateTable, acrossTemplatesTable);
+	}
+
+	static void addStrings(Iterable<TemplateString> source, IdentityHashMap<TemplateString, Integer> ordinals, ArrayList<TemplateString> strings) {
+		for(TemplateString str : source) {
+			if(ordinals.containsKey(str)) continue;
+			ordinals.put(str, strings.size());
+			strings.add(str);
+		}
+	}
+
+	// !!!!! Writing
+
+	static void writeString(DataOutputStream out, String s) throws IOException {
+		// Not writeUTF, since template JSON can be longer than 64KB
+		byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+		out.writeInt(bytes.length);
+		out.write(bytes);
+	}
+
+	static void writeStrings(DataOutputStream out, LinkedHashSet<String> set) throws IOException {
+		out.writeInt(set.size());
+		for(String s : set) writeString(out, s);
+	}
+
+	static void writeWeights(DataOutputStream out, Map<String, Double> map) throws IOException {
+		out.writeInt(map.size());
+		for(Entry<String, Double> entry : map.entrySet()) {
+			writeString(out, entry.getKey());
+			out.writeDouble(entry.getValue());
+		}
+	}
+
+	static void writeSubstitutions(DataOutputStream out, PatriciaTrie<HashMap<String, Double>> trie) throws IOException {
+		out.writeInt(trie.size());
+		for(Entry<String, HashMap<String, Double>> entry : trie.entrySet()) {
+			writeString(out, entry.getKey());
+			writeWeights(out, entry.getValue());
+		}
+	}
+
+	static void writeExpanded(DataOutputStream out, HashMap<String, HashMap<String, TemplateString>> expanded, IdentityHashMap<TemplateString, Integer> stringOrdinals) throws IOException {
+		out.writeInt(expanded.size());
+		for(Entry<String, HashMap<String, TemplateString>> entry : expanded.entrySet()) {
+			writeString(out, entry.getKey());
+			out.writeInt(entry.getValue().size());
+			for(Entry<String, TemplateString> localeEntry : entry.getValue().entrySet()) {
+				writeString(out, localeEntry.getKey());
+				out.writeInt(stringOrdinals.get(localeEntry.getValue()));
+			}
+		}
+	}
+
+	// !!!!! Reading
+	// Maps are filled in the order they were written, so they iterate in the same order as the maps that were saved
+
+	static String readString(DataInputStream in) throws IOException {
+		byte[] bytes = new byte[in.readInt()];
+		in.readFully(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+	static LinkedHashSet<String> readStrings(DataInputStream in) throws IOException {
+		LinkedHashSet<String> set = new LinkedHashSet<>();
+		int count = in.readInt();
+		for(int i = 0; i < count; i++) set.add(readString(in));
+		return set;
+	}
+
+	static <M extends Map<String, Double>> M readWeights(DataInputStream in, M map) throws IOException {
+		int count = in.readInt();
+		for(int i = 0; i < count; i++) {
+			String key = readString(in);
+			map.put(key, in.readDouble());
+		}
+		return map;
+	}
+
+	static PatriciaTrie<HashMap<String, Double>> readSubstitutions(DataInputStream in) throws IOException {
+		PatriciaTrie<HashMap<String, Double>> trie = new PatriciaTrie<>();
+		int count = in.readInt();
+		for(int i = 0; i < count; i++) {
+			String key = readString(in);
+			trie.put(key, readWeights(in, new HashMap<String, Double>()));
+		}
+		return trie;
+	}
+
+	static HashMap<String, HashMap<String, TemplateString>> readExpanded(DataInputStream in, TemplateString[] strings) throws IOException {
+		HashMap<String, HashMap<String, TemplateString>> expanded = new HashMap<>();
+		int count = in.readInt();
+		for(int i = 0; i < count; i++) {
+			String key = readString(in);
+			HashMap<String, TemplateString> localeMap = new HashMap<>();
+			int localeCount = in.readInt();
+			for(int j = 0; j < localeCount; j++) {
+				String formatName = readString(in);
+				localeMap.put(formatName, strings[in.readInt()]);
+			}
+			expanded.put(key, localeMap);
+		}
+		return expanded;
+	}
+
+	/**
+	 * Reads from a buffer starting at its position, and moves the position past what was read
+	 */
+	static class ByteBufferInputStream extends InputStream {
+		final ByteBuffer buffer;
+
+		ByteBufferInputStream(ByteBuffer buffer) {
+			this.buffer = buffer;
+		}
+
+		@Override
+		public int read() {
+			return buffer.hasRemaining() ? buffer.get() & 0xFF : -1;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) {
+			if(len == 0) return 0;
+			if(!buffer.hasRemaining()) return -1;
+			len = Math.min(len, buffer.remaining());
+			buffer.get(b, off, len);
+			return len;
+		}
+	}
+}
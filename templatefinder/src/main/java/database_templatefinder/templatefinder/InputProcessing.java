@@ -5,18 +5,19 @@ import java.text.BreakIterator;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
-import java.util.HashMap;
-import java.util.Iterator;
 import java.util.LinkedList;
-import java.util.List;
 import java.util.Locale;
-import java.util.TreeSet;
 
 import com.google.gson.JsonArray;
 
-import java.util.Map.Entry;
 import java.util.PriorityQueue;
-import java.util.AbstractMap.SimpleEntry;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.IntConsumer;
 
 
 import database_templatefinder.templatefinder.output.OutputSection;
@@ -25,43 +26,57 @@ import database_templatefinder.templatefinder.types.TemplateString;
 
 public class InputProcessing {
 	
+	/**Number of top strings legacyProcessInput prints by default. Set with the argument top=[count] or the HTTP parameter top*/
+	public static final int DEFAULT_TOP_COUNT = 100;
+	
 	/**
-	 * Legacy method to process the input
+	 * Legacy method to process the input, printing the top {@link #DEFAULT_TOP_COUNT} strings
 	 */
 	public static TemplateString legacyProcessInput(String input, PrintStream ps) {
-		// Call compute functions
-		HashMap<TemplateString, OutputWeight> weight = TFIDFEngine.getFinalWeight(input);
+		return legacyProcessInput(input, ps, DEFAULT_TOP_COUNT);
+	}
+	
+	/**
+	 * Legacy method to process the input
+	 * @param input
+	 * @param ps - Where to print the top strings and the most likely one, or null
+	 * @param topCount - Number of top strings to print. Strings with equal weights are ranked in scoring order.
+	 * @return The most likely string
+	 */
+	public static TemplateString legacyProcessInput(String input, PrintStream ps, int topCount) {
+		// Call compute functions, only the top strings are needed (the most likely one if they aren't printed)
+		if(ps == null) topCount = 0;
+		InputScores scores = TFIDFEngine.scoreInput(input, Double.NEGATIVE_INFINITY, Math.max(topCount, 1));
 		
-		// Calculate most appropriate template
+		// Calculate most appropriate template, and only keep the top strings if they are printed
 		TemplateString maxTemplate = null;
-		OutputWeight max = new OutputWeight(0,0,0,0);
-		TreeSet<Entry<TemplateString, Double>> msgSet = new TreeSet<>(new Comparator<Entry<TemplateString, Double>>()  {
-			@Override
-			public int compare(Entry<TemplateString, Double> o1, Entry<TemplateString, Double> o2) {
-				if(o1.getValue() == o2.getValue()) return 0;
-				if(o1.getValue() > o2.getValue()) return 1;
-				return -1;
-			}
-		});
-		for(Entry<TemplateString, OutputWeight> entry : weight.entrySet()) {
-			if(entry.getKey() == null) continue;
-			if(entry.getValue().doubleValue() > max.doubleValue()) {
-				maxTemplate = entry.getKey();
-				max = entry.getValue();
+		int maxOrdinal = -1;
+		double maxWeight = 0;
+		// The heap never needs more room than the strings that were scored, however many are asked for
+		TopStrings top = new TopStrings(Math.min(topCount, scores.getCandidateCount()));
+		for(int i = 0; i < scores.getCandidateCount(); i++) {
+			int ordinal = scores.getCandidate(i);
+			double weight = scores.getWeight(ordinal);
+			if(weight > maxWeight) {
+				maxOrdinal = ordinal;
+				maxWeight = weight;
 			}
-			msgSet.add(new SimpleEntry<TemplateString, Double>(entry.getKey(), entry.getValue().doubleValue()));
+			top.offer(ordinal, weight);
 		}
-		
-		// Debug
-		int count = 0;
-		if(ps != null) ps.println("!!!!! Top 100 Templates: !!!!!");
-		for(Entry<TemplateString, Double> entry : msgSet) {
-			count++;
-			if(count < msgSet.size() - 100) continue; // Only count the top 100
-			if(ps != null) ps.println(((long) (entry.getValue() * 1000000)) / 1000000.0 + " | " + entry.getKey().toImportantInfoString());
+		OutputWeight max = new OutputWeight(0,0,0,0);
+		if(maxOrdinal >= 0) {
+			maxTemplate = scores.getString(maxOrdinal);
+			max = scores.getOutputWeight(maxOrdinal);
 		}
 		
+		// Debug
 		if(ps != null) {
+			ps.println("!!!!! Top " + topCount + " Templates: !!!!!");
+			// Lowest first so the best is printed last
+			for(int ordinal : top.drain()) {
+				ps.println(((long) (scores.getWeight(ordinal) * 1000000)) / 1000000.0 + " | " + scores.getString(ordinal).toImportantInfoString());
+			}
+			
 			ps.println("Most likely template:   " + maxTemplate);
 			ps.println("Template weight: " + max.getTemplateWeightContribution() + 
 					" | String weight in template: " + max.getStringWeightInTemplateContribution() + "(" + (int) (max.inTemplateWeightPortion * 100) + "%)" +
@@ -74,10 +89,27 @@ public class InputProcessing {
 	public static final double MINIMUM_WEIGHT = 0.5;
 	public static final double MINIMUM_WEIGHT_PER_SQRT_WORDCOUNT = 0.5;
 	
+	/**Shared pool the sentences of documents are scored on, created with {@link App#scoringThreads} threads when it's first needed*/
+	static volatile ForkJoinPool sentencePool;
+	
 	/**
-	 * Processes a whole paragraph or document of input. Returns a list of output items ("recommendations") which could conflict with one another.
+	 * Processes a whole paragraph or document of input with {@link App#sentenceParallelism}. Returns a list of output items ("recommendations") which could conflict with one another.
 	 */
 	public static ArrayList<OutputSection> preProcessInput(String input) {
+		return preProcessInput(input, App.sentenceParallelism);
+	}
+	
+	/**
+	 * Processes a whole paragraph or document of input. Returns a list of output items ("recommendations") which could conflict with one another.
+	 * <p>
+	 * The sentences are scored as one {@link DocumentBatch}, on the calling thread and up to parallelism - 1 threads of the shared pool.
+	 * The output is in sentence order, the same as scoring them one by one.
+	 * @param input
+	 * @param parallelism - Maximum number of threads scoring the sentences of this input, so one large document can't take the whole
+	 * pool
+	 * @return
+	 */
+	public static ArrayList<OutputSection> preProcessInput(String input, int parallelism) {
 		// Split the input into individual sentences
 		BreakIterator iterator = BreakIterator.getSentenceInstance(Locale.US);
 		iterator.setText(input);
@@ -93,27 +125,70 @@ public class InputProcessing {
 			start = end;
 		}
 		
-		ArrayList<OutputSection> out = new ArrayList<>();
-		for(OutputSection section : sections) {
-			String text = input.substring(section.beginIndex, section.endIndex);
-			List<String> words = TFIDFEngine.getWordsInString(text);
-			HashMap<TemplateString, OutputWeight> weight = TFIDFEngine.getFinalWeight(text);
-			
-			// Remove entries below a threshold weight sqrt(len) (minimum correspondence to be considered an "okay" suggestion)
-			for(Iterator<Entry<TemplateString, OutputWeight>> iter = weight.entrySet().iterator(); iter.hasNext();) {
-				Entry<TemplateString, OutputWeight> entry = iter.next();
-				if(entry.getValue().doubleValue() > MINIMUM_WEIGHT + MINIMUM_WEIGHT_PER_SQRT_WORDCOUNT * Math.sqrt(words.size())) {
-					OutputSection newSection = section.clone();
-					newSection.output = entry.getKey().string;
-					newSection.outputSource = entry.getKey();
-					newSection.outputWeight = entry.getValue();
-
-					out.add(newSection);
+		// Each distinct sentence is scored once
+		DocumentBatch batch = new DocumentBatch(input, sections);
+		runParallel(batch.getRowCount(), parallelism, batch::scoreRow);
+		return batch.getOutput();
+	}
+	
+	/**
+	 * Run a task for 0 to count - 1 on the calling thread and up to parallelism - 1 threads of the shared pool, which take the next
+	 * number when they are done with one
+	 * @param count
+	 * @param parallelism
+	 * @param task
+	 * @throws CompletionException If the task failed for any number, after which no more numbers are started
+	 */
+	static void runParallel(int count, int parallelism, IntConsumer task) {
+		AtomicInteger next = new AtomicInteger();
+		// Counted down for each number that is done or won't be started
+		CountDownLatch done = new CountDownLatch(count);
+		AtomicReference<Throwable> failure = new AtomicReference<>();
+		Runnable worker = () -> {
+			for(int i = next.getAndIncrement(); i < count; i = next.getAndIncrement()) {
+				try {
+					task.accept(i);
+				}
+				catch(Throwable t) {
+					failure.compareAndSet(null, t);
+					for(int j = next.getAndSet(count); j < count; j++) done.countDown();
+				}
+				finally {
+					done.countDown();
 				}
 			}
+		};
+		int helpers = Math.min(parallelism, count) - 1;
+		ArrayList<CompletableFuture<Void>> futures = new ArrayList<>();
+		if(helpers > 0) {
+			ForkJoinPool pool = getSentencePool();
+			for(int i = 0; i < Math.min(helpers, pool.getParallelism()); i++) futures.add(CompletableFuture.runAsync(worker, pool));
 		}
-		
-		return out;
+		// The calling thread takes numbers until none are left, so it never waits for helpers the pool hasn't started. Those are
+		// cancelled, and only the numbers helpers are still running are waited for.
+		worker.run();
+		for(CompletableFuture<Void> future : futures) future.cancel(false);
+		boolean interrupted = false;
+		while(true) {
+			try {
+				done.await();
+				break;
+			}
+			catch(InterruptedException e) {
+				interrupted = true;
+			}
+		}
+		if(interrupted) Thread.currentThread().interrupt();
+		if(failure.get() != null) throw new CompletionException(failure.get());
+	}
+	
+	static ForkJoinPool getSentencePool() {
+		if(sentencePool == null) {
+			synchronized(InputProcessing.class) {
+				if(sentencePool == null) sentencePool = new ForkJoinPool(Math.max(App.scoringThreads, 1));
+			}
+		}
+		return sentencePool;
 	}
 	
 	// Say you have two strings and a larger string that contains these two strings.
@@ -136,8 +211,7 @@ public class InputProcessing {
 	public static ArrayList<OutputSection> deduplicateInput(ArrayList<OutputSection> raw) {
 		LinkedList<SectionStorage> sections = new LinkedList<SectionStorage>();
 		for(OutputSection sec : raw) {
-			List<String> words = TFIDFEngine.getWordsInString(sec.getInputSection());
-			int wordCount = words.size();
+			int wordCount = TFIDFEngine.countWordsInString(sec.getInputSection());
 			double weight = sec.outputWeight.getFinalWeightModifiedByLength(wordCount);
 			// Modify weight
 			double modifiedWeight = Math.pow(weight, WEIGHT_EXPONENT) * Math.pow(wordCount, WEIGHT_LENGTH_EXPONENT);
@@ -246,7 +320,17 @@ public class InputProcessing {
 	 * @return
 	 */
 	public static ArrayList<OutputSection> process(String input) {
-		ArrayList<OutputSection> preOutput = preProcessInput(input);
+		return process(input, App.sentenceParallelism);
+	}
+	
+	/**
+	 * Processes the input, returns an output.
+	 * @param input
+	 * @param parallelism - Maximum number of threads scoring the sentences, see {@link #preProcessInput(String, int)}
+	 * @return
+	 */
+	public static ArrayList<OutputSection> process(String input, int parallelism) {
+		ArrayList<OutputSection> preOutput = preProcessInput(input, parallelism);
 		return deduplicateInput(preOutput);
 	}
 	
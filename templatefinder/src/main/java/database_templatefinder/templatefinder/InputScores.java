@@ -0,0 +1,508 @@
+package database_templatefinder.templatefinder;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map.Entry;
+import java.util.concurrent.atomic.LongAdder;
+
+import com.google.gson.JsonObject;
+
+import database_templatefinder.templatefinder.TFIDFEngine.OrdinalContributions;
+import database_templatefinder.templatefinder.TFIDFEngine.WordContributions;
+import database_templatefinder.templatefinder.output.OutputWeight;
+import database_templatefinder.templatefinder.types.Template;
+import database_templatefinder.templatefinder.types.TemplateString;
+
+/**
+ * The weights of one input, with the string weights in arrays by string ordinal (see {@link StringOrdinals}) instead of maps.
+ * <p>
+ * The arrays are reused for the next input, and only the strings that got a weight are reset. The {@link OutputWeight} of a string
+ * is only created when it's asked for. Not thread safe, use {@link #forThread()}.
+ * <p>
+ * If only the strings above a threshold or the top strings are needed, the templates whose strings can't get there are skipped
+ * (MaxScore pruning by template). The template weights are added up first. The final weight of a string is its template weight plus
+ * its string weights scaled by the in template portion, and each word has an upper bound of what it adds to the string weights of
+ * any one string of each template ({@link WordContributions#maxInTemplate}). So the strings of a template can get at most its
+ * template weight plus the bounds of all words for it, and if that's too low none of the contributions to them are added and they
+ * are left out. The strings of the other templates get all their contributions in the same order as without pruning, so their
+ * weights are exactly the same. Most words of an input only have high weights in a few templates, so most templates are skipped.
+ * <p>
+ * Negative weights in the index only count as 0 in the bounds, so the threshold still works, but the top strings need every string
+ * to have at least its template weight, which negative weights break.
+ * <p>
+ * With {@link App#cascadeCoverage}, the strings of the templates with the highest template weights are scored first. The fewest
+ * templates are taken whose squared template weights add up to that portion of all squared template weights, so a clear winner is
+ * scored alone and more templates are scored when they are close. The top strings among them are a better bar than the template
+ * weights, and then only the other templates whose bounds still reach that bar (or the threshold) are scored, so the needed strings
+ * are the same as without the cascade. If neither a threshold nor top strings are given every template is scored in the end. When
+ * the in template portion is below {@link App#cascadeMinPortion} the template ranking isn't trusted and the input isn't cascaded.
+ */
+public class InputScores {
+
+	static final ThreadLocal<InputScores> SCORES = ThreadLocal.withInitial(InputScores::new);
+	/**Room for rounding differences between the bounds and the actual weights*/
+	static final double BOUND_MARGIN = 1e-9;
+	static final byte UNTOUCHED = 0, TOUCHED = 1;
+
+	// Totals over all inputs
+	static final LongAdder scoredStrings = new LongAdder();
+	static final LongAdder skippedStrings = new LongAdder();
+	static final LongAdder skippedContributions = new LongAdder();
+	static final LongAdder cascadedInputs = new LongAdder();
+	static final LongAdder cascadeFallbacks = new LongAdder();
+
+	StringOrdinals ordinals = new StringOrdinals();
+	/**Contributions of the words of the input, in order*/
+	WordContributions[] words = new WordContributions[16];
+	int wordCount;
+	/**Template weights, see {@link TFIDFEngine#getTemplateWeight(String)}. A new map for every input since the sums depend on its order.*/
+	HashMap<Template, Double> templateWeight = new HashMap<>();
+	/**Template weights by index in {@link App#templates}*/
+	double[] templateScores = new double[0];
+	double[] stringWeightsInTemplate = new double[0];
+	double[] stringWeightsAcrossTemplates = new double[0];
+	/**Ordinals of the strings that got a weight*/
+	int[] touched = new int[0];
+	/**{@link #UNTOUCHED} or {@link #TOUCHED} for each string*/
+	byte[] states = new byte[0];
+	int touchedCount;
+	/**Whether any input word had a fuzzy match for the in template table*/
+	boolean matched;
+	double inTemplateWeightPortion;
+	/**Template slots (see {@link StringOrdinals#getTemplateSlot(int)}) whose strings are scored if {@link #shortlisted}*/
+	boolean[] selected = new boolean[1];
+	int[] shortlist = new int[1];
+	int shortlistCount;
+	/**Whether only the strings of the shortlist are scored, because the input was cascaded or templates were pruned*/
+	boolean shortlisted;
+	boolean cascaded;
+	/**Bound of the string weights the words can add to one string of each template slot*/
+	double[] templateBounds = new double[1];
+	/**Strings whose weights are known, ascending*/
+	int[] candidates = new int[0];
+	int candidateCount;
+	int skippedContributionCount;
+	/**The weights of the needed strings are above this: the threshold or the bar of the top strings, minus room for rounding*/
+	double cutoff;
+
+	/**
+	 * Get the scores of the current thread. The scores of the last input are replaced when the next one is scored.
+	 * @return
+	 */
+	public static InputScores forThread() {
+		return SCORES.get();
+	}
+
+	/**
+	 * Clear the scores of the last input for a new one
+	 * @param ordinals - Strings to score
+	 */
+	public void reset(StringOrdinals ordinals) {
+		for(int i = 0; i < touchedCount; i++) {
+			int ordinal = touched[i];
+			stringWeightsInTemplate[ordinal] = 0;
+			stringWeightsAcrossTemplates[ordinal] = 0;
+			states[ordinal] = UNTOUCHED;
+		}
+		touchedCount = 0;
+		Arrays.fill(words, 0, wordCount, null);
+		wordCount = 0;
+		Arrays.fill(templateScores, 0);
+		templateWeight = new HashMap<>();
+		matched = false;
+		inTemplateWeightPortion = 0;
+		candidateCount = 0;
+		skippedContributionCount = 0;
+
+		this.ordinals = ordinals;
+		if(stringWeightsInTemplate.length < ordinals.size()) {
+			stringWeightsInTemplate = new double[ordinals.size()];
+			stringWeightsAcrossTemplates = new double[ordinals.size()];
+			touched = new int[ordinals.size()];
+			states = new byte[ordinals.size()];
+			candidates = new int[ordinals.size()];
+		}
+		if(templateScores.length < ordinals.getTemplateCount()) templateScores = new double[ordinals.getTemplateCount()];
+		if(selected.length <= ordinals.getTemplateCount()) {
+			selected = new boolean[ordinals.getTemplateCount() + 1];
+			shortlist = new int[ordinals.getTemplateCount() + 1];
+			templateBounds = new double[ordinals.getTemplateCount() + 1];
+		}
+		for(int i = 0; i < shortlistCount; i++) selected[shortlist[i]] = false;
+		shortlistCount = 0;
+		shortlisted = false;
+		cascaded = false;
+	}
+
+	/**
+	 * Add the next word of the input
+	 * @param contributions
+	 */
+	public void addWord(WordContributions contributions) {
+		if(wordCount == words.length) words = Arrays.copyOf(words, wordCount * 2);
+		words[wordCount++] = contributions;
+	}
+
+	/**
+	 * Add up the weights of the words
+	 * @param threshold - Only the strings with a weight above this are needed, or negative infinity
+	 * @param topCount - Only the strings with the topCount highest weights are needed, or 0 for all
+	 * @param nonNegative - Whether all weights in the index are at least 0, without which the top strings can't be used for pruning
+	 */
+	public void score(double threshold, int topCount, boolean nonNegative) {
+		// Templates first, the weights of the strings depend on them
+		for(int i = 0; i < wordCount; i++) {
+			WordContributions word = words[i];
+			for(int j = 0; j < word.templates.size; j++) TFIDFEngine.addTemplateWeight(templateWeight, word.templates.getKey(j), word.templates.weights[j]);
+			if(word.matchesInTemplate) matched = true;
+		}
+		finishTemplates();
+		if(!matched) return;
+		cascaded = App.cascadeCoverage > 0 && shortlistTemplates(App.cascadeCoverage, App.cascadeMinPortion);
+		shortlisted = cascaded;
+
+		double bar = Math.max(threshold, nonNegative ? getTopBar(topCount) : Double.NEGATIVE_INFINITY);
+		setCutoff(bar);
+		boolean prune = bar > Double.NEGATIVE_INFINITY;
+		if(prune || cascaded) addUpTemplateBounds();
+		if(prune) pruneTemplates();
+		if(shortlisted) addContributions(0, shortlistCount);
+		else {
+			for(int i = 0; i < wordCount; i++) {
+				WordContributions word = words[i];
+				addContributions(word.stringsInTemplate, stringWeightsInTemplate, 0, word.stringsInTemplate.size);
+				addContributions(word.stringsAcrossTemplates, stringWeightsAcrossTemplates, 0, word.stringsAcrossTemplates.size);
+			}
+		}
+
+		if(cascaded) {
+			// The other templates are only needed if their strings can get above the scored top strings
+			bar = Math.max(bar, getScoredBar(topCount));
+			setCutoff(bar);
+			prune = bar > Double.NEGATIVE_INFINITY;
+			int scored = shortlistCount;
+			for(int slot = 0; slot <= ordinals.getTemplateCount(); slot++) {
+				if(!selected[slot] && canReach(getIndexScore(slot) + templateBounds[slot])) {
+					selected[slot] = true;
+					shortlist[shortlistCount++] = slot;
+				}
+			}
+			addContributions(scored, shortlistCount);
+		}
+		if(shortlisted) countSkippedContributions();
+
+		if(prune || shortlisted) findCandidates(prune);
+		else {
+			candidateCount = ordinals.size();
+			for(int i = 0; i < candidateCount; i++) candidates[i] = i;
+		}
+		scoredStrings.add(candidateCount);
+		skippedStrings.add(ordinals.size() - candidateCount);
+		skippedContributions.add(skippedContributionCount);
+	}
+
+	/**
+	 * Add the contributions of all words to the strings of a range of the shortlist
+	 */
+	void addContributions(int from, int to) {
+		for(int i = 0; i < wordCount; i++) {
+			WordContributions word = words[i];
+			for(int j = from; j < to; j++) {
+				int slot = shortlist[j];
+				addContributions(word.stringsInTemplate, stringWeightsInTemplate, slot);
+				addContributions(word.stringsAcrossTemplates, stringWeightsAcrossTemplates, slot);
+			}
+		}
+	}
+
+	/**
+	 * Add the contributions of a word to the strings of a template slot
+	 */
+	void addContributions(OrdinalContributions contributions, double[] weights, int slot) {
+		addContributions(contributions, weights, contributions.templateStarts[slot], contributions.templateStarts[slot + 1]);
+	}
+
+	void addContributions(OrdinalContributions contributions, double[] weights, int from, int to) {
+		for(int j = from; j < to; j++) {
+			int ordinal = contributions.ordinals[j];
+			touch(ordinal);
+			weights[ordinal] += contributions.weights[j];
+		}
+	}
+
+	static int getCount(OrdinalContributions contributions, int slot) {
+		return contributions.templateStarts[slot + 1] - contributions.templateStarts[slot];
+	}
+
+	/**
+	 * Pick the templates whose strings are scored
+	 * @param coverage - Portion of the squared template weights the templates must add up to
+	 * @param minPortion - Lowest in template portion to trust the template ranking
+	 * @return Whether only the strings of the picked templates are scored, false if all are
+	 */
+	boolean shortlistTemplates(double coverage, double minPortion) {
+		if(inTemplateWeightPortion < minPortion) {
+			cascadeFallbacks.increment();
+			return false;
+		}
+		int templateCount = ordinals.getTemplateCount();
+		Integer[] indexes = new Integer[templateCount];
+		double total = 0;
+		for(int i = 0; i < templateCount; i++) {
+			indexes[i] = i;
+			total += templateScores[i] * templateScores[i];
+		}
+		Arrays.sort(indexes, (a, b) -> Double.compare(templateScores[b], templateScores[a]));
+		double covered = 0;
+		for(int index : indexes) {
+			if(templateScores[index] <= 0 || covered >= coverage * total) break;
+			selected[index] = true;
+			shortlist[shortlistCount++] = index;
+			covered += templateScores[index] * templateScores[index];
+		}
+		if(shortlistCount == 0) {
+			cascadeFallbacks.increment();
+			return false;
+		}
+		cascadedInputs.increment();
+		return true;
+	}
+
+	/**
+	 * Add up the bounds of what the words add to one string of each template slot
+	 */
+	void addUpTemplateBounds() {
+		int slots = ordinals.getTemplateCount() + 1;
+		Arrays.fill(templateBounds, 0, slots, 0);
+		for(int i = 0; i < wordCount; i++) {
+			WordContributions word = words[i];
+			for(int slot = 0; slot < slots; slot++) {
+				templateBounds[slot] += inTemplateWeightPortion * word.maxInTemplate[slot] + (1 - inTemplateWeightPortion) * word.maxAcrossTemplates[slot];
+			}
+		}
+	}
+
+	/**
+	 * Remove the templates whose strings can't get above the cutoff from the scored templates, all templates if the input wasn't
+	 * cascaded
+	 */
+	void pruneTemplates() {
+		int slots = ordinals.getTemplateCount() + 1;
+		if(!shortlisted) {
+			for(int slot = 0; slot < slots; slot++) {
+				selected[slot] = true;
+				shortlist[shortlistCount++] = slot;
+			}
+			shortlisted = true;
+		}
+		int kept = 0;
+		for(int i = 0; i < shortlistCount; i++) {
+			int slot = shortlist[i];
+			if(canReach(getIndexScore(slot) + templateBounds[slot])) shortlist[kept++] = slot;
+			else selected[slot] = false;
+		}
+		shortlistCount = kept;
+	}
+
+	/**
+	 * Count the contributions to the strings of the templates that weren't scored
+	 */
+	void countSkippedContributions() {
+		for(int slot = 0; slot <= ordinals.getTemplateCount(); slot++) {
+			if(selected[slot]) continue;
+			for(int i = 0; i < wordCount; i++) {
+				skippedContributionCount += getCount(words[i].stringsInTemplate, slot) + getCount(words[i].stringsAcrossTemplates, slot);
+			}
+		}
+	}
+
+	/**
+	 * Lowest weight the top strings can have: the topCount-th highest weight of the strings of the templates that were scored
+	 */
+	double getScoredBar(int topCount) {
+		if(topCount <= 0) return Double.NEGATIVE_INFINITY;
+		TopStrings top = new TopStrings(topCount);
+		for(int i = 0; i < shortlistCount; i++) {
+			for(int ordinal : ordinals.templateStrings[shortlist[i]]) top.offer(ordinal, getWeight(ordinal));
+		}
+		return top.getLowestWeight();
+	}
+
+	/**
+	 * String weights of a string so far, scaled like in its final weight
+	 */
+	double getStringScore(int ordinal) {
+		return stringWeightsInTemplate[ordinal] * inTemplateWeightPortion + stringWeightsAcrossTemplates[ordinal] * (1 - inTemplateWeightPortion);
+	}
+
+	void setCutoff(double bar) {
+		cutoff = bar - (1 + Math.abs(bar)) * BOUND_MARGIN;
+	}
+
+	/**
+	 * Check whether a string with a weight of at most the bound can be needed
+	 */
+	boolean canReach(double bound) {
+		return bound > cutoff;
+	}
+
+	/**
+	 * Lowest weight the top strings can have: every string has at least its template weight, so the topCount-th highest template
+	 * weight of the strings
+	 */
+	double getTopBar(int topCount) {
+		if(topCount <= 0 || topCount > ordinals.size()) return Double.NEGATIVE_INFINITY;
+		// Few templates, so they are just sorted
+		Integer[] indexes = new Integer[ordinals.getTemplateCount() + 1];
+		for(int i = 0; i < indexes.length; i++) indexes[i] = i;
+		Arrays.sort(indexes, (a, b) -> Double.compare(getIndexScore(b), getIndexScore(a)));
+		int count = 0;
+		for(int index : indexes) {
+			count += ordinals.templateStrings[index].length;
+			if(count >= topCount) return getIndexScore(index);
+		}
+		return Double.NEGATIVE_INFINITY;
+	}
+
+	/**
+	 * Template weight of a template index of {@link StringOrdinals#templateStrings}
+	 */
+	double getIndexScore(int index) {
+		return index < ordinals.getTemplateCount() ? templateScores[index] : 0;
+	}
+
+	/**
+	 * The strings of the scored templates that have a weight, and the ones without a weight whose template weight is high enough, in
+	 * ordinal order
+	 * @param prune - Whether only the strings above the cutoff are needed
+	 */
+	void findCandidates(boolean prune) {
+		for(int ordinal = 0; ordinal < ordinals.size(); ordinal++) {
+			if(shortlisted && !selected[ordinals.getTemplateSlot(ordinal)]) continue;
+			if(states[ordinal] == TOUCHED || !prune || canReach(getTemplateScore(ordinal))) candidates[candidateCount++] = ordinal;
+		}
+	}
+
+	/**
+	 * Mark that a string gets a weight
+	 * @param ordinal
+	 */
+	void touch(int ordinal) {
+		if(states[ordinal] == TOUCHED) return;
+		states[ordinal] = TOUCHED;
+		touched[touchedCount++] = ordinal;
+	}
+
+	/**
+	 * Combine the template weights into the portion of the string weights in template. Same as
+	 * {@link TFIDFEngine#getFinalWeight(HashMap, HashMap, HashMap)}.
+	 */
+	void finishTemplates() {
+		// Find the template with the most templateWeight & simultaneously find length-squared of vector
+		double max = -1;
+		double lengthSquaredOfTemplateWeights = 0;
+		for(Entry<Template, Double> entry : templateWeight.entrySet()) {
+			if(entry.getValue() > max) max = entry.getValue();
+			lengthSquaredOfTemplateWeights += entry.getValue() * entry.getValue();
+			int index = ordinals.getTemplateIndex(entry.getKey());
+			if(index >= 0) templateScores[index] = entry.getValue();
+		}
+		inTemplateWeightPortion = max / Math.sqrt(lengthSquaredOfTemplateWeights + Double.MIN_NORMAL);
+		inTemplateWeightPortion *= inTemplateWeightPortion;
+	}
+
+	/**
+	 * Number of strings whose weights are known. Without pruning that's all strings, unless no input word had any fuzzy match in the
+	 * index.
+	 * @return
+	 */
+	public int getCandidateCount() {
+		return candidateCount;
+	}
+
+	/**
+	 * Get a string whose weight is known
+	 * @param i - From 0 to {@link #getCandidateCount()}
+	 * @return The ordinal of the string. The ordinals are ascending.
+	 */
+	public int getCandidate(int i) {
+		return candidates[i];
+	}
+
+	/**
+	 * Check whether the strings of the top templates were scored first
+	 * @return
+	 */
+	public boolean isCascaded() {
+		return cascaded;
+	}
+
+	/**
+	 * Number of strings that were skipped by pruning
+	 * @return
+	 */
+	public int getSkippedCount() {
+		return matched ? ordinals.size() - candidateCount : 0;
+	}
+
+	/**
+	 * Number of contributions of the words to strings that were skipped by pruning the templates
+	 * @return
+	 */
+	public int getSkippedContributionCount() {
+		return skippedContributionCount;
+	}
+
+	public TemplateString getString(int ordinal) {
+		return ordinals.getString(ordinal);
+	}
+
+	/**
+	 * Get the final weight of a string, the same as the doubleValue() of {@link #getOutputWeight(int)}
+	 * @param ordinal
+	 * @return
+	 */
+	public double getWeight(int ordinal) {
+		return OutputWeight.getFinalWeight(stringWeightsInTemplate[ordinal], stringWeightsAcrossTemplates[ordinal], getTemplateScore(ordinal),
+				inTemplateWeightPortion);
+	}
+
+	double getTemplateScore(int ordinal) {
+		int index = ordinals.templates[ordinal];
+		return index >= 0 ? templateScores[index] : 0;
+	}
+
+	/**
+	 * Get the weight of a string with all of its parts
+	 * @param ordinal
+	 * @return
+	 */
+	public OutputWeight getOutputWeight(int ordinal) {
+		return new OutputWeight(stringWeightsInTemplate[ordinal], stringWeightsAcrossTemplates[ordinal], getTemplateScore(ordinal),
+				inTemplateWeightPortion);
+	}
+
+	/**
+	 * Get the weights of the candidates as a map, see {@link TFIDFEngine#getFinalWeight(String)}
+	 * @return
+	 */
+	public HashMap<TemplateString, OutputWeight> toMap() {
+		HashMap<TemplateString, OutputWeight> out = new HashMap<>();
+		for(int i = 0; i < candidateCount; i++) out.put(getString(candidates[i]), getOutputWeight(candidates[i]));
+		return out;
+	}
+
+	/**
+	 * Get the pruning and cascade counters of all inputs as a JSON object
+	 * @return
+	 */
+	public static JsonObject getStats() {
+		JsonObject out = new JsonObject();
+		out.addProperty("scoredStrings", scoredStrings.sum());
+		out.addProperty("skippedStrings", skippedStrings.sum());
+		out.addProperty("skippedContributions", skippedContributions.sum());
+		out.addProperty("cascadedInputs", cascadedInputs.sum());
+		out.addProperty("cascadeFallbacks", cascadeFallbacks.sum());
+		return out;
+	}
+}
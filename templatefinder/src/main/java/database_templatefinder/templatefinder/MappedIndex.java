@@ -0,0 +1,318 @@
+package database_templatefinder.templatefinder;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.function.IntFunction;
+import java.util.function.ToIntFunction;
+
+import org.apache.commons.collections4.trie.PatriciaTrie;
+
+/**
+ * Read-only weight tables stored in a buffer, usually a memory-mapped part of an index file (see {@link IndexSnapshot}). Queries
+ * read the terms and postings straight from the buffer, so the weights take no heap space and processes that map the same file
+ * share it through the page cache.
+ * <p>
+ * Layout of a table (big endian, all offsets relative to the start of the table):
+ * <pre>
+ * int termCount, int postingCount, int charCount
+ * int[termCount + 1]   start of each term in the term characters
+ * int[termCount + 1]   start of the postings of each term
+ * char[charCount]      characters of all terms, sorted by term
+ * (padding to 8 bytes)
+ * int[postingCount]    key ordinals, sorted within each term
+ * (padding to 8 bytes)
+ * double[postingCount] weights
+ * </pre>
+ */
+public class MappedIndex {
+
+	static final int HEADER_SIZE = 12;
+
+	/**
+	 * Write a weight trie as a table. Each table is preceded by its length in bytes as a long, and padded to a multiple of 8 bytes.
+	 * @param out
+	 * @param trie
+	 * @param ordinalOf - Ordinal of each key of the weight maps
+	 * @throws IOException
+	 */
+	public static <K> void writeTable(DataOutputStream out, PatriciaTrie<? extends Map<K, Double>> trie, ToIntFunction<K> ordinalOf) throws IOException {
+		int termCount = trie.size();
+		int postingCount = 0;
+		int charCount = 0;
+		for(Entry<String, ? extends Map<K, Double>> entry : trie.entrySet()) {
+			postingCount += entry.getValue().size();
+			charCount += entry.getKey().length();
+		}
+		Layout layout = new Layout(termCount, postingCount, charCount);
+
+		out.writeLong(layout.size);
+		out.writeInt(termCount);
+		out.writeInt(postingCount);
+		out.writeInt(charCount);
+		// Term and posting starts (the trie iterates in sorted order)
+		int chars = 0;
+		for(String term : trie.keySet()) {
+			out.writeInt(chars);
+			chars += term.length();
+		}
+		out.writeInt(chars);
+		int postings = 0;
+		for(Map<K, Double> map : trie.values()) {
+			out.writeInt(postings);
+			postings += map.size();
+		}
+		out.writeInt(postings);
+		for(String term : trie.keySet()) {
+			out.writeChars(term);
+		}
+		pad(out, layout.ordinalsAt - (layout.charsAt + charCount * 2));
+
+		// Postings sorted by key ordinal, so a key can be found with a binary search
+		ArrayList<long[]> sortedPostings = new ArrayList<>();
+		for(Map<K, Double> map : trie.values()) {
+			// Ordinal in the high bits, position in the map in the low bits
+			long[] sorted = new long[map.size()];
+			int i = 0;
+			for(K key : map.keySet()) {
+				sorted[i] = ((long) ordinalOf.applyAsInt(key) << 32) | i;
+				i++;
+			}
+			Arrays.sort(sorted);
+			sortedPostings.add(sorted);
+		}
+		for(long[] sorted : sortedPostings) {
+			for(long posting : sorted) out.writeInt((int) (posting >>> 32));
+		}
+		pad(out, layout.weightsAt - (layout.ordinalsAt + postingCount * 4));
+		int termIndex = 0;
+		for(Map<K, Double> map : trie.values()) {
+			Double[] weights = map.values().toArray(new Double[0]);
+			for(long posting : sortedPostings.get(termIndex)) out.writeDouble(weights[(int) posting]);
+			termIndex++;
+		}
+		pad(out, layout.size - (layout.weightsAt + postingCount * 8));
+	}
+
+	static void pad(DataOutputStream out, int bytes) throws IOException {
+		for(int i = 0; i < bytes; i++) out.writeByte(0);
+	}
+
+	/**
+	 * Read a table written by {@link #writeTable} at the current position of the buffer, and move the buffer past it. The table
+	 * keeps using the buffer's memory.
+	 * @param buffer
+	 * @param keyOf - Key of each ordinal
+	 * @param ordinalOf - Ordinal of a key, or -1 if it's not a key of this table
+	 * @return
+	 */
+	public static <K> Table<K> readTable(ByteBuffer buffer, IntFunction<K> keyOf, ToIntFunction<Object> ordinalOf) {
+		int size = (int) buffer.getLong();
+		ByteBuffer slice = buffer.slice();
+		slice.limit(size);
+		buffer.position(buffer.position() + size);
+		return new Table<>(slice, keyOf, ordinalOf);
+	}
+
+	/**
+	 * Offsets of the parts of a table
+	 */
+	static class Layout {
+		final int termStartsAt, postingStartsAt, charsAt, ordinalsAt, weightsAt, size;
+
+		Layout(int termCount, int postingCount, int charCount) {
+			termStartsAt = HEADER_SIZE;
+			postingStartsAt = termStartsAt + (termCount + 1) * 4;
+			charsAt = postingStartsAt + (termCount + 1) * 4;
+			ordinalsAt = align(charsAt + charCount * 2);
+			weightsAt = align(ordinalsAt + postingCount * 4);
+			size = align(weightsAt + postingCount * 8);
+		}
+
+		static int align(int offset) {
+			return (offset + 7) & ~7;
+		}
+	}
+
+	/**
+	 * A table read from a buffer. Safe to use from several threads since it only uses absolute reads.
+	 * @param <K>
+	 */
+	public static class Table<K> implements WordIndex<K> {
+		final ByteBuffer buffer;
+		final IntFunction<K> keyOf;
+		final ToIntFunction<Object> ordinalOf;
+		final int termCount;
+		final Layout layout;
+
+		Table(ByteBuffer buffer, IntFunction<K> keyOf, ToIntFunction<Object> ordinalOf) {
+			this.buffer = buffer;
+			this.keyOf = keyOf;
+			this.ordinalOf = ordinalOf;
+			termCount = buffer.getInt(0);
+			layout = new Layout(termCount, buffer.getInt(4), buffer.getInt(8));
+		}
+
+		public int getTermCount() {
+			return termCount;
+		}
+
+		int termStart(int term) {
+			return buffer.getInt(layout.termStartsAt + term * 4);
+		}
+
+		int postingStart(int term) {
+			return buffer.getInt(layout.postingStartsAt + term * 4);
+		}
+
+		String getTerm(int term) {
+			int start = termStart(term);
+			int end = termStart(term + 1);
+			char[] chars = new char[end - start];
+			for(int i = 0; i < chars.length; i++) chars[i] = buffer.getChar(layout.charsAt + (start + i) * 2);
+			return new String(chars);
+		}
+
+		/**
+		 * Compare a term with a string, only looking at the first length characters of the term if it is longer
+		 */
+		int compareTerm(int term, String s, boolean prefixOnly) {
+			int start = termStart(term);
+			int length = termStart(term + 1) - start;
+			if(prefixOnly) length = Math.min(length, s.length());
+			int n = Math.min(length, s.length());
+			for(int i = 0; i < n; i++) {
+				char c = buffer.getChar(layout.charsAt + (start + i) * 2);
+				if(c != s.charAt(i)) return c - s.charAt(i);
+			}
+			return length - s.length();
+		}
+
+		/**
+		 * Index of the first term that is not less than s when only comparing the first s.length() characters
+		 */
+		int lowerBound(String s, boolean prefixOnly) {
+			int low = 0;
+			int high = termCount;
+			while(low < high) {
+				int mid = (low + high) >>> 1;
+				if(compareTerm(mid, s, prefixOnly) < 0) low = mid + 1;
+				else high = mid;
+			}
+			return low;
+		}
+
+		int findTerm(String word) {
+			int index = lowerBound(word, false);
+			if(index < termCount && compareTerm(index, word, false) == 0) return index;
+			return -1;
+		}
+
+		@Override
+		public Collection<String> getWordsWithPrefix(String prefix) {
+			ArrayList<String> out = new ArrayList<>();
+			for(int term = lowerBound(prefix, true); term < termCount && compareTerm(term, prefix, true) == 0; term++) {
+				out.add(getTerm(term));
+			}
+			return out;
+		}
+
+		@Override
+		public boolean containsWord(String word) {
+			return findTerm(word) >= 0;
+		}
+
+		@Override
+		public Map<K, Double> getWeights(String word) {
+			int term = findTerm(word);
+			if(term < 0) return null;
+			return new Postings(postingStart(term), postingStart(term + 1));
+		}
+
+		/**
+		 * A read-only map view of the postings of one term
+		 */
+		class Postings extends AbstractMap<K, Double> {
+			final int from, to;
+
+			Postings(int from, int to) {
+				this.from = from;
+				this.to = to;
+			}
+
+			int ordinalAt(int posting) {
+				return buffer.getInt(layout.ordinalsAt + posting * 4);
+			}
+
+			double weightAt(int posting) {
+				return buffer.getDouble(layout.weightsAt + posting * 8);
+			}
+
+			@Override
+			public Double get(Object key) {
+				int ordinal = ordinalOf.applyAsInt(key);
+				if(ordinal < 0) return null;
+				int low = from;
+				int high = to - 1;
+				while(low <= high) {
+					int mid = (low + high) >>> 1;
+					int midOrdinal = ordinalAt(mid);
+					if(midOrdinal < ordinal) low = mid + 1;
+					else if(midOrdinal > ordinal) high = mid - 1;
+					else return weightAt(mid);
+				}
+				return null;
+			}
+
+			@Override
+			public boolean containsKey(Object key) {
+				return get(key) != null;
+			}
+
+			@Override
+			public int size() {
+				return to - from;
+			}
+
+			@Override
+			public Set<Entry<K, Double>> entrySet() {
+				return new AbstractSet<Entry<K, Double>>() {
+					@Override
+					public Iterator<Entry<K, Double>> iterator() {
+						return new Iterator<Entry<K, Double>>() {
+							int posting = from;
+
+							@Override
+							public boolean hasNext() {
+								return posting < to;
+							}
+
+							@Override
+							public Entry<K, Double> next() {
+								if(posting >= to) throw new NoSuchElementException();
+								Entry<K, Double> entry = new SimpleImmutableEntry<>(keyOf.apply(ordinalAt(posting)), weightAt(posting));
+								posting++;
+								return entry;
+							}
+						};
+					}
+
+					@Override
+					public int size() {
+						return to - from;
+					}
+				};
+			}
+		}
+	}
+}
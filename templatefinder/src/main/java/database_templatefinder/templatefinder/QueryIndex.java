@@ -0,0 +1,59 @@
+package database_templatefinder.templatefinder;
+
+import database_templatefinder.templatefinder.types.TemplateString;
+
+/**
+ * Everything the queries read from the built index: the weight tables, the words, the rules and candidates for fuzzy matching, the
+ * strings the inputs are scored against and the cache of the word contributions computed from all of these. The index is replaced
+ * as a whole (see {@link App#index}) when it's built again or the rules are reloaded, so a query reads it once and keeps using the
+ * same one.
+ */
+public class QueryIndex {
+	/**The weights read by the queries. These are views of the tries of {@link App}, or tables of a memory-mapped index file*/
+	public final WordIndex<Integer> templateWordIndex;
+	public final WordIndex<TemplateString> stringInTemplateIndex;
+	public final WordIndex<TemplateString> stringAcrossTemplatesIndex;
+	/**Word -> ID, with the word lists and which weight tables have the word as flags of the ID*/
+	public final TermDictionary terms;
+	/**The prefix/suffix rules compiled for fuzzy matching*/
+	public final AffixRules affixRules;
+	/**Candidates for fuzzy matching the words of the weight tables and {@link App#allWordsInReverse}*/
+	public final FuzzyIndex fuzzyIndex;
+	/**Ordinals of the strings the inputs are scored against*/
+	public final StringOrdinals stringOrdinals;
+	/**Fuzzy matches and weight contributions of the input words in this index*/
+	public final WordCache wordCache;
+
+	public QueryIndex(WordIndex<Integer> templateWordIndex, WordIndex<TemplateString> stringInTemplateIndex,
+			WordIndex<TemplateString> stringAcrossTemplatesIndex, TermDictionary terms, AffixRules affixRules, FuzzyIndex fuzzyIndex,
+			StringOrdinals stringOrdinals, long wordCacheSize) {
+		this.templateWordIndex = templateWordIndex;
+		this.stringInTemplateIndex = stringInTemplateIndex;
+		this.stringAcrossTemplatesIndex = stringAcrossTemplatesIndex;
+		this.terms = terms;
+		this.affixRules = affixRules;
+		this.fuzzyIndex = fuzzyIndex;
+		this.stringOrdinals = stringOrdinals;
+		wordCache = new WordCache(this, wordCacheSize);
+	}
+
+	/**
+	 * Same index with other word lists, for before the tables have any words
+	 * @param terms
+	 * @return
+	 */
+	public QueryIndex withTerms(TermDictionary terms) {
+		return new QueryIndex(templateWordIndex, stringInTemplateIndex, stringAcrossTemplatesIndex, terms, affixRules, fuzzyIndex,
+				stringOrdinals, wordCache.maxSize);
+	}
+
+	/**
+	 * Same index with an empty word cache of another size
+	 * @param wordCacheSize
+	 * @return
+	 */
+	public QueryIndex withWordCacheSize(long wordCacheSize) {
+		return new QueryIndex(templateWordIndex, stringInTemplateIndex, stringAcrossTemplatesIndex, terms, affixRules, fuzzyIndex,
+				stringOrdinals, wordCacheSize);
+	}
+}
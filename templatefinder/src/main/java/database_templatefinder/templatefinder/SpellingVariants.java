@@ -0,0 +1,125 @@
+package database_templatefinder.templatefinder;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.TreeSet;
+import java.util.function.Supplier;
+
+import org.apache.commons.collections4.trie.PatriciaTrie;
+
+/**
+ * Spellings of the words of a weight table made with the "anywhere" substitutions of equivalence.json
+ * ({@link App#anywhereSubstitutionWeights}, mostly British to American spellings).
+ * <p>
+ * Each variant is one substitution in one word of the table, and has the weights of that word times the weight of the substitution
+ * (added to its own weights if the variant is also a word of the table). The table only stores the words of the templates, and the
+ * weights of a variant are made from the word it comes from when it's looked up, so the substitutions can be changed without
+ * building the index again.
+ */
+public class SpellingVariants {
+
+	/**Word made by a substitution -> Word of the table it is made from, and the weight of the substitution*/
+	final PatriciaTrie<Variant> variants = new PatriciaTrie<>();
+
+	static class Variant {
+		final String source;
+		final double scale;
+
+		Variant(String source, double scale) {
+			this.source = source;
+			this.scale = scale;
+		}
+	}
+
+	/**
+	 * Find the variants of all words in a table
+	 * @param index
+	 * @param substitutionWeights - From -> To -> Weight
+	 */
+	public SpellingVariants(WordIndex<?> index, PatriciaTrie<HashMap<String, Double>> substitutionWeights) {
+		if(substitutionWeights.isEmpty()) return;
+		for(String word : index.getWordsWithPrefix("")) {
+			for(int i = 0; i < word.length(); i++) {
+				// Search for entries that apply to this sentence (use first letter in prefix map to speed up the search)
+				Map<String, HashMap<String, Double>> potentialSubstitutionMap = substitutionWeights.prefixMap(word.substring(i, i+1));
+				for(Entry<String, HashMap<String, Double>> subEntry : potentialSubstitutionMap.entrySet()) {
+					String from = subEntry.getKey();
+					if(word.startsWith(from, i)) {
+						// We have a confirmed substitution. If several words make the same variant, the last one is used
+						for(Entry<String, Double> substitution : subEntry.getValue().entrySet()) {
+							String newWord = word.substring(0, i) + substitution.getKey() + word.substring(i+from.length());
+							variants.put(newWord, new Variant(word, substitution.getValue()));
+						}
+					}
+				}
+			}
+		}
+	}
+
+	public int size() {
+		return variants.size();
+	}
+
+	/**
+	 * A weight table with the variants of its words
+	 * @param <K>
+	 */
+	public static class VariantWordIndex<K> implements WordIndex<K> {
+		final WordIndex<K> index;
+		final SpellingVariants variants;
+		/**Creates the maps for the weights of variants*/
+		final Supplier<Map<K, Double>> mapFactory;
+
+		/**
+		 * @param index - Table without variants
+		 * @param substitutionWeights
+		 * @param mapFactory - Creates the maps for the weights of variants, which should iterate in the same order as the table's
+		 */
+		public VariantWordIndex(WordIndex<K> index, PatriciaTrie<HashMap<String, Double>> substitutionWeights, Supplier<Map<K, Double>> mapFactory) {
+			this.index = index;
+			this.mapFactory = mapFactory;
+			variants = new SpellingVariants(index, substitutionWeights);
+		}
+
+		/**
+		 * Get the table without variants
+		 * @param index - A table that may have variants
+		 * @return
+		 */
+		public static <K> WordIndex<K> unwrap(WordIndex<K> index) {
+			return index instanceof VariantWordIndex ? ((VariantWordIndex<K>) index).index : index;
+		}
+
+		@Override
+		public Collection<String> getWordsWithPrefix(String prefix) {
+			if(variants.size() == 0) return index.getWordsWithPrefix(prefix);
+			TreeSet<String> out = new TreeSet<>(index.getWordsWithPrefix(prefix));
+			out.addAll(variants.variants.prefixMap(prefix).keySet());
+			return out;
+		}
+
+		@Override
+		public boolean containsWord(String word) {
+			return index.containsWord(word) || variants.variants.containsKey(word);
+		}
+
+		@Override
+		public Map<K, Double> getWeights(String word) {
+			Map<K, Double> weights = index.getWeights(word);
+			Variant variant = variants.variants.get(word);
+			if(variant == null) return weights;
+
+			Map<K, Double> out = mapFactory.get();
+			if(weights != null) out.putAll(weights);
+			for(Entry<K, Double> entry : index.getWeights(variant.source).entrySet()) {
+				// Add the old weight and new weight together if already exists
+				Double current = out.get(entry.getKey());
+				double weight = entry.getValue() * variant.scale;
+				out.put(entry.getKey(), current == null ? weight : current + weight);
+			}
+			return out;
+		}
+	}
+}
@@ -0,0 +1,132 @@
+package database_templatefinder.templatefinder;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map.Entry;
+
+import database_templatefinder.templatefinder.types.Template;
+import database_templatefinder.templatefinder.types.TemplateString;
+
+/**
+ * Dense ordinals of the strings an input is scored against (the base format string of each expanded template), so the scores of an
+ * input can be kept in arrays (see {@link InputScores}).
+ * <p>
+ * The ordinals follow the iteration order of a HashMap of the strings, which is the order the strings were scored in when the scores
+ * were kept in a HashMap, so the results and the order of equal results are the same.
+ */
+public class StringOrdinals {
+
+	/**String of each ordinal*/
+	final TemplateString[] strings;
+	/**Index in {@link App#templates} of the template whose weight each string gets, or -1*/
+	final int[] templates;
+	final HashMap<TemplateString, Integer> ordinals = new HashMap<>();
+	/**Template -> Index in {@link App#templates}*/
+	final HashMap<Template, Integer> templateIndexes = new HashMap<>();
+	final int templateCount;
+	/**Template index -> Ordinals of the strings that get its weight, ascending. The last one has the strings without a template.*/
+	final int[][] templateStrings;
+
+	/**
+	 * No strings
+	 */
+	public StringOrdinals() {
+		strings = new TemplateString[0];
+		templates = new int[0];
+		templateCount = 0;
+		templateStrings = new int[][] {new int[0]};
+	}
+
+	/**
+	 * Number the base format strings of the expanded templates
+	 * @param expanded - See {@link App#templatesExpandedConcat}
+	 * @param templateList - See {@link App#templates}
+	 */
+	public StringOrdinals(Collection<HashMap<String, TemplateString>> expanded, List<Template> templateList) {
+		templateCount = templateList.size();
+		for(int i = 0; i < templateCount; i++) templateIndexes.put(templateList.get(i), i);
+
+		// Same map the scores were put in, the template of the last equal string is used
+		HashMap<TemplateString, Template> order = new HashMap<>();
+		for(HashMap<String, TemplateString> templateStringMap : expanded) {
+			TemplateString tStr = templateStringMap.get(App.BASE_FORMAT);
+			order.put(tStr, tStr.tf.template);
+		}
+		strings = new TemplateString[order.size()];
+		templates = new int[order.size()];
+		int ordinal = 0;
+		for(Entry<TemplateString, Template> entry : order.entrySet()) {
+			strings[ordinal] = entry.getKey();
+			templates[ordinal] = getTemplateIndex(entry.getValue());
+			ordinals.put(entry.getKey(), ordinal);
+			ordinal++;
+		}
+		
+		int[] counts = new int[templateCount + 1];
+		for(int index : templates) counts[index < 0 ? templateCount : index]++;
+		templateStrings = new int[templateCount + 1][];
+		for(int i = 0; i <= templateCount; i++) templateStrings[i] = new int[counts[i]];
+		Arrays.fill(counts, 0);
+		for(int i = 0; i < templates.length; i++) {
+			int index = templates[i] < 0 ? templateCount : templates[i];
+			templateStrings[index][counts[index]++] = i;
+		}
+	}
+
+	/**
+	 * Get the ordinal of a string
+	 * @param string
+	 * @return The ordinal, or -1 if the string is not scored
+	 */
+	public int getOrdinal(TemplateString string) {
+		Integer ordinal = ordinals.get(string);
+		return ordinal == null ? -1 : ordinal;
+	}
+
+	/**
+	 * Get the index of a template in {@link App#templates}
+	 * @param template
+	 * @return The index, or -1 if the template is not in the list
+	 */
+	public int getTemplateIndex(Template template) {
+		Integer index = templateIndexes.get(template);
+		return index == null ? -1 : index;
+	}
+
+	public TemplateString getString(int ordinal) {
+		return strings[ordinal];
+	}
+
+	public int size() {
+		return strings.length;
+	}
+
+	/**
+	 * Get the slot of the template whose weight a string gets, the same as its index in {@link App#templates} or
+	 * {@link #getTemplateCount()} for the strings without a template
+	 * @param ordinal
+	 * @return
+	 */
+	public int getTemplateSlot(int ordinal) {
+		return templates[ordinal] < 0 ? templateCount : templates[ordinal];
+	}
+
+	/**
+	 * Get the strings that get the weight of a template
+	 * @param index - Index in {@link App#templates}, or -1 for the strings without a template
+	 * @return Ordinals, ascending
+	 */
+	public int[] getTemplateStrings(int index) {
+		return templateStrings[index < 0 ? templateCount : index];
+	}
+
+	/**
+	 * Number of templates in {@link App#templates} when the strings were numbered
+	 * @return
+	 */
+	public int getTemplateCount() {
+		return templateCount;
+	}
+}
@@ -2,22 +2,19 @@ package database_templatefinder.templatefinder;
 
 import java.util.AbstractMap.SimpleEntry;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
-import java.util.Comparator;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
-import java.util.TreeSet;
+import java.util.TreeMap;
 import java.util.Map.Entry;
-import java.util.Set;
-import java.util.concurrent.atomic.AtomicInteger;
-
-import org.apache.commons.collections4.trie.PatriciaTrie;
 
 import database_templatefinder.templatefinder.output.OutputWeight;
 import database_templatefinder.templatefinder.types.*;
-import database_templatefinder.templatefinder.types.TemplateString.VarData;
 
 public class TFIDFEngine {
 	
@@ -34,7 +31,8 @@ public class TFIDFEngine {
 		HashMap<String, Double> out = new HashMap<>();
 		
 		// Find all words in the template and accumulate weight
-		
+		Tokenizer tokenizer = Tokenizer.forThread();
+		TermDictionary terms = App.index.terms;
 		LinkedList<Entry<Item, Double>> queue = new LinkedList<>();
 		queue.add(new SimpleEntry<Item, Double>(template.baseProgression, 1d));
 		while(!queue.isEmpty()) {
@@ -43,33 +41,20 @@ public class TFIDFEngine {
 			double weight = entry.getValue();
 			if(i instanceof ItemText) {
 				// Search words in text
-				String[] split = ((ItemText) i).getText().replace('-', ' ').split(" ");
-				int size = split.length;
-				for(String str : split) {
-					if(str.isEmpty()) size --;
-				}
-				// Remove punctuation
-				for(String str : split) {
-					if(str.isEmpty()) continue;
-					StringBuilder wordBuilder = new StringBuilder();
-					for(int j = 0; j < str.length(); j++) {
-						char c = str.charAt(j);
-						if((c >= 'A' && c <= 'Z') || (c >= 'a' && c <= 'z') || (c >= '0' && c <= '9')) {
-							wordBuilder.append(c);
-						}
-					}
-					
-					String word = wordBuilder.toString();
-					if(word.isEmpty()) continue;
+				int size = tokenizer.tokenize(((ItemText) i).getText(), false);
+				for(int j = 0; j < size; j++) {
+					if(tokenizer.isEmpty(j)) continue;
+					int id = tokenizer.getTermId(j, terms);
+					String word = tokenizer.getWord(j, terms, id);
 					// Generate final weight
 					double finalWeight;
-					if(!App.commonWordsSet.contains(word)) { // Technical words get more weight even if appearance is rare
+					if(!terms.isCommon(id)) { // Technical words get more weight even if appearance is rare
 						finalWeight = Math.sqrt(weight);
 					}
 					else {
 						finalWeight = weight;
 					}
-					if(App.veryCommonWordsSet.contains(word)) { // Very common words weight multiplied by x0.25
+					if(terms.isVeryCommon(id)) { // Very common words weight multiplied by x0.25
 						finalWeight *= 0.25;
 					}
 					finalWeight /= size + 1.0;
@@ -104,22 +89,58 @@ public class TFIDFEngine {
 	/**
 	 * Uses "idf" to modify all template weights in these words based on how many templates they appear in
 	 * @param wordWeights
-	 * @param allTemplates
+	 * @param wordAppearances - Word to number of templates the word appears in, see {@link #getTemplateWordAppearances(Collection)}
+	 * @param templateCount - Total number of templates
 	 */
-	public static void tfidfTemplateWeights(HashMap<String, Double> wordWeights, Collection<TemplateFormat> allTemplates) {
+	public static void tfidfTemplateWeights(HashMap<String, Double> wordWeights, Map<String, Integer> wordAppearances, int templateCount) {
 		for(Entry<String, Double> entry : wordWeights.entrySet()) {
-			int appearances = 0;
-			// Try to find this word in all templates
-			for(TemplateFormat template : allTemplates) {
-				if(searchWordInTemplate(template, entry.getKey())) appearances ++;
-			}
+			Integer appearances = wordAppearances.get(entry.getKey());
+			if(appearances == null) appearances = 0;
 			
 			// Modify weights to respect tfidf
 			// Formula from here http://ethen8181.github.io/machine-learning/clustering_old/tf_idf/tf_idf.html
-			entry.setValue(entry.getValue() * Math.log(allTemplates.size() * 1.0 / (1 + appearances)));
+			entry.setValue(entry.getValue() * Math.log(templateCount * 1.0 / (1 + appearances)));
 		}
 	}
 	
+	/**
+	 * Key the template weights of each word by the index of the template in the list instead of by name. Every template with the
+	 * name gets the weight.
+	 * @param weights - Word -> Template Name -> Value
+	 * @param templates
+	 * @return Word -> Index in templates -> Value, sorted by index
+	 */
+	public static HashMap<String, TreeMap<Integer, Double>> getTemplateWeightsByOrdinal(Map<String, HashMap<String, Double>> weights, List<Template> templates) {
+		HashMap<String, TreeMap<Integer, Double>> out = new HashMap<>();
+		for(Entry<String, HashMap<String, Double>> entry : weights.entrySet()) {
+			TreeMap<Integer, Double> byOrdinal = new TreeMap<>();
+			for(int i = 0; i < templates.size(); i++) {
+				Double weight = entry.getValue().get(templates.get(i).getName());
+				if(weight != null) byOrdinal.put(i, weight);
+			}
+			out.put(entry.getKey(), byOrdinal);
+		}
+		return out;
+	}
+	
+	/**
+	 * Counts the number of templates each word appears in, tokenizing every template only once.
+	 * <p>
+	 * Words are lowercased in the same way as {@link #getWordsInString(String)}.
+	 * @param allTemplates
+	 * @return
+	 */
+	public static HashMap<String, Integer> getTemplateWordAppearances(Collection<TemplateFormat> allTemplates) {
+		HashMap<String, Integer> out = new HashMap<>();
+		for(TemplateFormat template : allTemplates) {
+			for(String word : getWordsInTemplate(template)) {
+				Integer appearances = out.get(word);
+				out.put(word, appearances == null ? 1 : appearances + 1);
+			}
+		}
+		return out;
+	}
+	
 	/**
 	 * Get the weight of a word in the string provided.
 	 * @param str
@@ -128,30 +149,19 @@ public class TFIDFEngine {
 	public static HashMap<String, Double> getStringWeights(TemplateString templateStr) {
 		HashMap<String, Double> out = new HashMap<>();
 		
-		String[] split = templateStr.string.replace('-', ' ').split(" ");
-		int size = split.length;
-		for(String str : split) {
-			if(str.isEmpty()) size --;
-		}
-		// Remove punctuation
-		for(String str : split) {
-			if(str.isEmpty()) continue;
-			StringBuilder wordBuilder = new StringBuilder();
-			for(int j = 0; j < str.length(); j++) {
-				char c = str.charAt(j);
-				if((c >= 'A' && c <= 'Z') || (c >= 'a' && c <= 'z') || (c >= '0' && c <= '9')) {
-					wordBuilder.append(c);
-				}
-			}
-			
-			String word = wordBuilder.toString().toLowerCase();
-			if(word.isEmpty()) continue;
+		Tokenizer tokenizer = Tokenizer.forThread();
+		TermDictionary terms = App.index.terms;
+		int size = tokenizer.tokenize(templateStr.string, true);
+		for(int i = 0; i < size; i++) {
+			if(tokenizer.isEmpty(i)) continue;
+			int id = tokenizer.getTermId(i, terms);
+			String word = tokenizer.getWord(i, terms, id);
 			// Generate final weight
 			double finalWeight = 1;
-			if(!App.commonWordsSet.contains(word)) { // Technical words get more weight even if appearance is rare
+			if(!terms.isCommon(id)) { // Technical words get more weight even if appearance is rare
 				finalWeight = Math.sqrt(finalWeight);
 			}
-			if(App.veryCommonWordsSet.contains(word)) { // Very common words weight multiplied by x0.25
+			if(terms.isVeryCommon(id)) { // Very common words weight multiplied by x0.25
 				finalWeight *= 0.25;
 			}
 			finalWeight /= size + 1.0;
@@ -193,21 +203,20 @@ public class TFIDFEngine {
 	public static final double STRING_WEIGHT_ACROSS_TEMPLATES_MULTIPLIER = 10;
 	
 	/**
-	 * Use "idf" for each word to modify all word weights based on how many strings in the list the word appears in
+	 * Use "idf" for each word to modify all word weights based on how many strings in the template the word appears in
+	 * <p>
+	 * The map must contain the weights of every string in the template (as created by {@link #createStringWeightMapByWord(HashMap)}),
+	 * since the number of strings each word appears in is taken from the size of the word's map.
 	 * @param stringWeights
-	 * @param allTemplates
+	 * @param stringCount - Total number of strings in the template
 	 */
-	public static void tfidfStringWeightsWithinTemplate(HashMap<String, HashMap<TemplateString, Double>> stringWeights, Collection<TemplateString> otherStrings) {
-		int count = otherStrings.size();
+	public static void tfidfStringWeightsWithinTemplate(HashMap<String, HashMap<TemplateString, Double>> stringWeights, int stringCount) {
+		int count = stringCount;
 		for(Entry<String, HashMap<TemplateString, Double>> entry : stringWeights.entrySet()) {
-			String word = entry.getKey();
 			HashMap<TemplateString, Double> templateWeightsMap = entry.getValue();
 			
-			// Loop through the list of other strings to find how many it appears in
-			int appearances = 0;
-			for(TemplateString tempStr : otherStrings) {
-				if(searchWordInTemplateString(tempStr, word)) appearances ++;
-			}
+			// Every string containing the word has an entry in the word's map
+			int appearances = templateWeightsMap.size();
 			
 			// Divide the weights
 			double idf = Math.log(count * 1.0 / (1 + appearances));
@@ -221,22 +230,20 @@ public class TFIDFEngine {
 	/**
 	 * Use "idf" for each word to modify all word weights based on how many templates they appear in
 	 * @param stringWeights
-	 * @param allTemplates
+	 * @param wordAppearances - Word to number of templates the word appears in, see {@link #getTemplateWordAppearances(Collection)}
+	 * @param templateCount - Total number of templates
 	 */
-	public static void tfidfStringWeightsInAllTemplates(HashMap<String, HashMap<TemplateString, Double>> stringWeights, Collection<TemplateFormat> allTemplates) {
-		int count = allTemplates.size();
+	public static void tfidfStringWeightsInAllTemplates(HashMap<String, HashMap<TemplateString, Double>> stringWeights, Map<String, Integer> wordAppearances, int templateCount) {
 		for(Entry<String, HashMap<TemplateString, Double>> entry : stringWeights.entrySet()) {
 			String word = entry.getKey();
 			HashMap<TemplateString, Double> templateWeightsMap = entry.getValue();
 			
-			// Loop through the list of other strings to find how many it appears in
-			int appearances = 0;
-			for(TemplateFormat template : allTemplates) {
-				if(searchWordInTemplate(template, word)) appearances ++;
-			}
+			// Look up how many templates the word appears in
+			Integer appearances = wordAppearances.get(word);
+			if(appearances == null) appearances = 0;
 			
 			// Divide the weights
-			double idf = Math.log(count * 1.0 / (1 + appearances));
+			double idf = Math.log(templateCount * 1.0 / (1 + appearances));
 
 			//double divisor = ((appearances * 1.0 + 1) / count);
 			for(Entry<TemplateString, Double> tEntry : templateWeightsMap.entrySet()) {
@@ -257,50 +264,55 @@ public class TFIDFEngine {
 	 * @return
 	 */
 	public static HashMap<String, HashMap<String, TemplateString>> expandTemplate(Template template, String baseFormat) {
-		// This map is a different format than the output map despite same dimensions - the key is the template format
-		HashMap<String, ArrayList<TemplateString>> rawExpandedData = new HashMap<>();
-		for(TemplateFormat format : template.values()) {
-			rawExpandedData.put(format.formatName, format.baseProgression.getPossibilities());
-		}
-		
-		// Find matching formats
-		ArrayList<TemplateString> baseStrings = rawExpandedData.get(baseFormat);
-		if(baseStrings == null) {
+		return expandTemplate(template, baseFormat, Integer.MAX_VALUE);
+	}
+	
+	/**
+	 * Same as {@link #expandTemplate(Template, String)}, but stops after the given number of strings in each format.
+	 * <p>
+	 * Strings are generated one at a time, so templates with more possible strings than what fits in memory can still be loaded
+	 * as long as the limit is low enough.
+	 * @param template
+	 * @param baseFormat
+	 * @param maxStrings - The maximum number of strings to generate for each format
+	 * @return
+	 */
+	public static HashMap<String, HashMap<String, TemplateString>> expandTemplate(Template template, String baseFormat, int maxStrings) {
+		TemplateFormat base = template.get(baseFormat);
+		if(base == null) {
 			// If base format not found, return an empty result
 			return new HashMap<String, HashMap<String, TemplateString>>();
 		}
 		
+		// Index the strings of the other formats by their variable choices so they can be matched to the base strings
+		HashMap<String, SignatureIndex> otherFormats = new HashMap<>();
+		for(TemplateFormat format : template.values()) {
+			if(format == base) continue;
+			ArrayList<TemplateString> strings = new ArrayList<>();
+			Iterator<TemplateString> iter = format.baseProgression.getPossibilityIterator();
+			while(iter.hasNext() && strings.size() < maxStrings) {
+				strings.add(iter.next());
+			}
+			otherFormats.put(format.formatName, new SignatureIndex(strings));
+		}
+		
+		// Find matching formats
 		HashMap<String, HashMap<String, TemplateString>> result = new HashMap<>();
-		for(TemplateString baseString : baseStrings) {
+		Iterator<TemplateString> baseIter = base.baseProgression.getPossibilityIterator();
+		for(int count = 0; baseIter.hasNext(); count++) {
+			if(count >= maxStrings) {
+				System.out.println("Template " + template.getName() + " has more than " + maxStrings + " strings, ignoring the rest");
+				break;
+			}
+			TemplateString baseString = baseIter.next();
+			
 			// Initialize array 
 			HashMap<String, TemplateString> stringList = new HashMap<>();
 			stringList.put(baseFormat, baseString);
 			
-			// Check other formats to find the possibility with the most variable matches
-			outer:
-			for(Entry<String, ArrayList<TemplateString>> entry : rawExpandedData.entrySet()) {
-				if(entry.getKey().equals(baseFormat)) continue; // Skip the base format
-				
-				// Find the string with the most matches to the base string 
-				int maxMatches = -1;
-				TemplateString currentMatch = null;
-				for(TemplateString otherString : entry.getValue()) {
-					int matches = 0;
-					for(VarData var : otherString.variables.values()) {
-						VarData baseVar = baseString.variables.get(var.id);
-						if(baseVar == null) continue; // If the variable simply doesn't exist in the base string do nothing
-						if(baseVar.choice != var.choice) {
-							continue outer; // Variable is mismatched so skip
-						}
-						else {
-							matches++;
-						}
-					}
-					if(matches > maxMatches) { // Check for most matches
-						currentMatch = otherString;
-						maxMatches = matches;
-					}
-				}
+			// Check other formats to find the possibility with the most variable matches (that doesn't have a mismatched variable)
+			for(Entry<String, SignatureIndex> entry : otherFormats.entrySet()) {
+				TemplateString currentMatch = entry.getValue().findBestMatch(baseString);
 				
 				// Add any found string (there should be one) to the list
 				if(currentMatch != null) {
@@ -318,291 +330,622 @@ public class TFIDFEngine {
 	
 	public static HashMap<Template, Double> getTemplateWeight(String input) {
 		HashMap<Template, Double> templateWeight = new HashMap<Template, Double>();
+		QueryIndex index = App.index;
 		// Search for the sum of tfidf in each template - time complexity = nk(log(nk))
 		ArrayList<String> words = TFIDFEngine.getWordsInString(input);
 		for(String word : words) {
-			HashMap<String, Double> wordsToConsider = lenientWordSimilarityMap(word, App.templateWordWeights);
+			if(word.isEmpty()) continue;
+			HashMap<String, Double> wordsToConsider = lenientWordSimilarityMap(word, index.templateWordIndex, index.affixRules);
 			for(Entry<String, Double> wordEntry : wordsToConsider.entrySet()) {
-				double weightScale = wordEntry.getValue();
-
-				HashMap<String, Double> wordWeightMap = App.templateWordWeights.get(wordEntry.getKey());
-				if(wordWeightMap == null) continue;
-				for(Template template : App.templates) {
-					// Accumulate weight based on how weighted this word is in the template
-					Double weight = wordWeightMap.get(template.getName());
-					if(weight != null) {
-						if(!templateWeight.containsKey(template))
-							templateWeight.put(template, 0d);
-						double current = templateWeight.get(template);
-						
-						weight *= weightScale;
-						templateWeight.put(template, (current+weight) * (current+weight) / (Math.sqrt((current*current) + (weight*weight)) + Double.MIN_NORMAL));
-					}
-				}
+				accumulateTemplateWeight(templateWeight, index.templateWordIndex, wordEntry.getKey(), wordEntry.getValue());
 			}
 		}
 
 		return templateWeight;
 	}
 	
-	public static HashMap<TemplateString, Double> getStringWeight(String input, PatriciaTrie<HashMap<TemplateString, Double>> weightTree) {
+	/**
+	 * Add the weights of a word in the index to the weights of the templates that have it
+	 * @param templateWeight
+	 * @param weightTree - Template weights of the words
+	 * @param word - Word in the index
+	 * @param weightScale - How closely the word matches the input word
+	 */
+	public static void accumulateTemplateWeight(HashMap<Template, Double> templateWeight, WordIndex<Integer> weightTree, String word, double weightScale) {
+		Map<Integer, Double> wordWeightMap = weightTree.getWeights(word);
+		if(wordWeightMap == null) return;
+		// Only the templates with the word, in the same order as App.templates
+		for(Entry<Integer, Double> templateEntry : wordWeightMap.entrySet()) {
+			addTemplateWeight(templateWeight, App.templates.get(templateEntry.getKey()), templateEntry.getValue() * weightScale);
+		}
+	}
+	
+	/**
+	 * Add a weight to a template. The result depends on the order the weights are added in.
+	 * @param templateWeight
+	 * @param template
+	 * @param weight - Weight of a word in the template times how closely it matches the input word
+	 */
+	static void addTemplateWeight(HashMap<Template, Double> templateWeight, Template template, double weight) {
+		// Accumulate weight based on how weighted this word is in the template
+		if(!templateWeight.containsKey(template))
+			templateWeight.put(template, 0d);
+		double current = templateWeight.get(template);
+		
+		templateWeight.put(template, (current+weight) * (current+weight) / (Math.sqrt((current*current) + (weight*weight)) + Double.MIN_NORMAL));
+	}
+	
+	/**
+	 * Get the weight of each string from the word weights in the index. The weights are only added up for the strings containing at
+	 * least one of the (fuzzy matched) input words, then every other string gets a weight of 0. If no input word had any fuzzy
+	 * match the result is empty. A suffix match can be a word that isn't in this table, so strings can get 0 even if a word matched.
+	 * @param input
+	 * @param weightTree
+	 * @return
+	 */
+	public static HashMap<TemplateString, Double> getStringWeight(String input, WordIndex<TemplateString> weightTree) {
 		HashMap<TemplateString, Double> out = new HashMap<>();
 
+		boolean matched = false;
 		ArrayList<String> words = TFIDFEngine.getWordsInString(input);
 		for(String word : words) {
+			if(word.isEmpty()) continue;
 			HashMap<String, Double> wordsToConsider = lenientWordSimilarityMap(word, weightTree);
+			if(!wordsToConsider.isEmpty()) matched = true;
 			for(Entry<String, Double> wordEntry : wordsToConsider.entrySet()) {
-				double weightScale = wordEntry.getValue();
-				
-				HashMap<TemplateString, Double> weightMap = weightTree.get(wordEntry.getKey());
-				for(HashMap<String, TemplateString> templateStringMap : App.templatesExpandedConcat.values()) {
-					// Accumulate Weight
-					TemplateString tStr = templateStringMap.get(App.BASE_FORMAT);
-					
-					Double weight = null;
-					if(weightMap != null) weight = weightMap.get(tStr);
-					if(weight == null) weight = 0d;
-					
-					if(!out.containsKey(tStr))
-						out.put(tStr, 0d);
-					double current = out.get(tStr);
-					out.put(tStr, current + weight * weightScale);
-				}
+				accumulateStringWeight(out, weightTree, wordEntry.getKey(), wordEntry.getValue());
 			}
 			
 		}
+		if(matched) {
+			for(HashMap<String, TemplateString> templateStringMap : App.templatesExpandedConcat.values()) {
+				out.putIfAbsent(templateStringMap.get(App.BASE_FORMAT), 0d);
+			}
+		}
 		
 		return out;
 	}
 	
-	public static <T extends Object> HashMap<String, Double> lenientWordSimilarityMap(String word, PatriciaTrie<T> candidates) {
+	/**
+	 * Add the weights of a word in the index to the weights of the strings that have it
+	 * @param out
+	 * @param weightTree
+	 * @param word - Word in the index
+	 * @param weightScale - How closely the word matches the input word
+	 */
+	public static void accumulateStringWeight(HashMap<TemplateString, Double> out, WordIndex<TemplateString> weightTree, String word, double weightScale) {
+		Map<TemplateString, Double> weightMap = weightTree.getWeights(word);
+		if(weightMap == null) return;
+		// Accumulate weight of only the strings with the word, since the others would get 0 added
+		for(Entry<TemplateString, Double> weightEntry : weightMap.entrySet()) {
+			addStringWeight(out, weightEntry.getKey(), weightEntry.getValue() * weightScale);
+		}
+	}
+	
+	static void addStringWeight(HashMap<TemplateString, Double> out, TemplateString tStr, double weight) {
+		Double current = out.get(tStr);
+		out.put(tStr, (current == null ? 0d : current) + weight);
+	}
+	
+	public static HashMap<String, Double> lenientWordSimilarityMap(String word, WordIndex<?> candidates) {
+		return lenientWordSimilarityMap(word, candidates, App.index.affixRules);
+	}
+	
+	/**
+	 * Same as {@link #lenientWordSimilarityMap(String, WordIndex)} with the rules of a given index
+	 * @param word
+	 * @param candidates
+	 * @param rules
+	 * @return
+	 */
+	public static HashMap<String, Double> lenientWordSimilarityMap(String word, WordIndex<?> candidates, AffixRules rules) {
 		HashMap<String, Double> out = new HashMap<>();
 		
 		// Assume prefix match (find suffix matches)
-		{
-			Set<String> possibleCandidates = candidates.prefixMap(word.substring(0,1)).keySet();
-			for(String candidate : possibleCandidates) {
-				if(candidate.equals(word)) continue;
-				// Check prefix matching length
-				int prefixMatchingLength = 1;
-				for(int i = 1; i < word.length() && i < candidate.length(); i++) {
-					if(word.charAt(i) == candidate.charAt(i)) {
-						prefixMatchingLength ++;
-					}
-					else {
-						break;
-					}
-				}
-				// Check suffix matching length, taking in account of the prefix match to not match the same characters again
-				int suffixMatchingLength = 0;
-				for(int i = 0; i < word.length() - prefixMatchingLength && i < candidate.length() - prefixMatchingLength; i++) {
-					if(word.charAt(word.length() - 1 - i) == candidate.charAt(candidate.length() - 1 - i)) {
-						suffixMatchingLength ++;
-					}
-					else {
-						break;
-					}
-				}
-				int maxLength = Math.max(word.length(), candidate.length());
-				int nonMatchingLength = maxLength - prefixMatchingLength;
-				
-				// Reverse (suffix only)
-				String wordR = new StringBuilder(word).reverse().toString();
-				String candidateR = new StringBuilder(candidate).reverse().toString();
-				
-				// The "normal" match level would be quartic of nonmatching length (excl. any matches in prefix & suffix) to word length
-				// so if 1/3 the letters don't match the final match level is (2/3)^4 = 16/81
-				double bestMatch = Math.pow(1 - ((double) nonMatchingLength - suffixMatchingLength) / maxLength, 4);
-				
-				// Try to get the best match by removal
-				
-				int lengthDiff = word.length() - candidate.length();
-				if(lengthDiff > 0) {
-					// Try removing from word since word is longer
-					// Find longest defined suffix that can be removed (longest is almost always the best)
-					double maxWeight = 0; // Not actually "max weight" since we're finding longest
-					String maxSuffix = null;
-					for(int i = 1; i <= lengthDiff; i++) {
-						Double weight = App.suffixRemovalWeights.get(wordR.substring(0, i));
-						if(weight != null) {
-							maxSuffix = wordR.substring(0, i);
-							maxWeight = weight;
-						}
-					}
-					
-					if(maxSuffix != null) {
-						double match = (maxWeight * 0.9 + 0.1)
-								* Math.pow(1 - ((double) nonMatchingLength - maxSuffix.length()) / (maxLength - maxSuffix.length()), 4);
-						bestMatch = Math.max(bestMatch, match);
-					}
-				}
-				else if(lengthDiff < 0) {
-					// Try removing from candidate
-					// Find longest defined suffix that can be removed (longest is almost always the best)
-					double maxWeight = 0; // Not actually "max weight" since we're finding longest
-					String maxSuffix = null;
-					for(int i = 1; i <= -lengthDiff; i++) {
-						Double weight = App.suffixRemovalWeights.get(candidateR.substring(0, i));
-						if(weight != null) {
-							maxSuffix = candidateR.substring(0, i);
-							maxWeight = weight;
-						}
-					}
+		AffixRules.WordAffixes suffixes = rules.suffixes.getAffixes(word);
+		for(String candidate : candidates.getWordsWithPrefix(word.substring(0,1))) {
+			if(candidate.equals(word)) continue;
+			putIfBetterMatch(out, candidate, getPrefixMatch(suffixes, candidate));
+		}
+		
+		// Assume suffix match (find prefix matches)
+		// The forward-spelled word is the value of the reverse map, for convenience
+		AffixRules.WordAffixes prefixes = rules.prefixes.getAffixes(word);
+		for(String candidate : App.allWordsInReverse.prefixMap(word.substring(word.length() - 1)).values()) {
+			if(candidate.equals(word)) continue;
+			putIfBetterMatch(out, candidate, getSuffixMatch(prefixes, candidate));
+		}
+		// Include the word itself if in candidates, and return
+		if(candidates.containsWord(word)) out.put(word, 1d);
+		return out;
+	}
+	
+	static void putIfBetterMatch(HashMap<String, Double> out, String candidate, double match) {
+		if(match > 0) {
+			double prevOutData = out.containsKey(candidate) ? out.get(candidate) : 0;
+			if(match > prevOutData) out.put(candidate, match);
+		}
+	}
+	
+	/**
+	 * How well a word matches a candidate with the same first letter, from 0 to 1 (or below 0 for less than a 10% match)
+	 * @param word
+	 * @param candidate
+	 * @return
+	 */
+	public static double getPrefixMatch(String word, String candidate) {
+		return getPrefixMatch(App.index.affixRules.suffixes.getAffixes(word), candidate);
+	}
+	
+	/**
+	 * Same as {@link #getPrefixMatch(String, String)}, with the suffix rules of the word already found so they can be reused for
+	 * every candidate
+	 * @param affixes - From the suffixes of {@link QueryIndex#affixRules}
+	 * @param candidate
+	 * @return
+	 */
+	public static double getPrefixMatch(AffixRules.WordAffixes affixes, String candidate) {
+		String word = affixes.word;
+		// Check prefix matching length
+		int prefixMatchingLength = 1;
+		for(int i = 1; i < word.length() && i < candidate.length(); i++) {
+			if(word.charAt(i) == candidate.charAt(i)) {
+				prefixMatchingLength ++;
+			}
+			else {
+				break;
+			}
+		}
+		// Check suffix matching length, taking in account of the prefix match to not match the same characters again
+		int suffixMatchingLength = 0;
+		for(int i = 0; i < word.length() - prefixMatchingLength && i < candidate.length() - prefixMatchingLength; i++) {
+			if(word.charAt(word.length() - 1 - i) == candidate.charAt(candidate.length() - 1 - i)) {
+				suffixMatchingLength ++;
+			}
+			else {
+				break;
+			}
+		}
+		int maxLength = Math.max(word.length(), candidate.length());
+		int nonMatchingLength = maxLength - prefixMatchingLength;
+		
+		// The "normal" match level would be quartic of nonmatching length (excl. any matches in prefix & suffix) to word length
+		// so if 1/3 the letters don't match the final match level is (2/3)^4 = 16/81
+		double bestMatch = Math.pow(1 - ((double) nonMatchingLength - suffixMatchingLength) / maxLength, 4);
+		
+		// Try to get the best match by removal
+		bestMatch = Math.max(bestMatch, getRemovalMatch(affixes.side, affixes, candidate, maxLength, nonMatchingLength));
+		
+		// Try to get the best match by substitution
+		bestMatch = Math.max(bestMatch, getSubstitutionMatch(affixes.side, affixes, candidate, prefixMatchingLength));
+		
+		if(bestMatch > 1) {
+			System.out.println("Possible error! Match between word '" + word + "' and candidate '" + candidate + "' was greater than 1: " + bestMatch);
+			bestMatch = 1;
+		}
+		double bestMatchFix = (bestMatch - 0.1) / 0.9; // Scale the match so we never consider <10% matching words (for performance)
+		return bestMatchFix;
+	}
+	
+	/**
+	 * How well a word matches a candidate with the same last letter, from 0 to 1 (or below 0 for less than a 10% match)
+	 * @param word
+	 * @param candidate
+	 * @return
+	 */
+	public static double getSuffixMatch(String word, String candidate) {
+		return getSuffixMatch(App.index.affixRules.prefixes.getAffixes(word), candidate);
+	}
+	
+	/**
+	 * Same as {@link #getSuffixMatch(String, String)}, with the prefix rules of the word already found so they can be reused for
+	 * every candidate
+	 * @param affixes - From the prefixes of {@link QueryIndex#affixRules}
+	 * @param candidate
+	 * @return
+	 */
+	public static double getSuffixMatch(AffixRules.WordAffixes affixes, String candidate) {
+		String word = affixes.word;
+		// Check prefix matching length
+		int prefixMatchingLength = 0;
+		for(int i = 0; i < word.length() && i < candidate.length(); i++) {
+			if(word.charAt(i) == candidate.charAt(i)) {
+				prefixMatchingLength ++;
+			}
+			else {
+				break;
+			}
+		}
+		// Check suffix matching length, taking in account of the prefix match to not match the same characters again
+		int suffixMatchingLength = 1;
+		for(int i = 1; i < word.length() - prefixMatchingLength && i < candidate.length() - prefixMatchingLength; i++) {
+			if(word.charAt(word.length() - 1 - i) == candidate.charAt(candidate.length() - 1 - i)) {
+				suffixMatchingLength ++;
+			}
+			else {
+				break;
+			}
+		}
+		int maxLength = Math.max(word.length(), candidate.length());
+		int nonMatchingLength = maxLength - suffixMatchingLength;
+		
+		// The "normal" match level would be quartic of nonmatching length (excl. any matches in prefix & suffix) to word length
+		// so if 1/3 the letters don't match the final match level is (2/3)^4 = 16/81
+		double bestMatch = Math.pow(1 - ((double) nonMatchingLength - prefixMatchingLength) / maxLength, 4);
+		
+		// Try to get the best match by removal
+		bestMatch = Math.max(bestMatch, getRemovalMatch(affixes.side, affixes, candidate, maxLength, nonMatchingLength));
+		
+		// Try to get the best match by substitution
+		bestMatch = Math.max(bestMatch, getSubstitutionMatch(affixes.side, affixes, candidate, suffixMatchingLength));
+		
+		if(bestMatch > 1) {
+			System.out.println("Possible error! Match between word '" + word + "' and candidate '" + candidate + "' was greater than 1: " + bestMatch);
+			bestMatch = 1;
+		}
+		double bestMatchFix = (bestMatch - 0.1) / 0.9; // Scale the match so we never consider <10% matching words (for performance)
+		return bestMatchFix;
+	}
+	
+	/**
+	 * Match of a word and a candidate after removing a fix from the longer one at the non-matching end
+	 * @param rules - Rules of the non-matching end
+	 * @param affixes - Rules that apply to the word
+	 * @param candidate
+	 * @param maxLength
+	 * @param nonMatchingLength
+	 * @return The match, or 0 if no fix can be removed
+	 */
+	static double getRemovalMatch(AffixRules.Side rules, AffixRules.WordAffixes affixes, String candidate, int maxLength, int nonMatchingLength) {
+		int lengthDiff = affixes.word.length() - candidate.length();
+		// Find longest defined fix that can be removed (longest is almost always the best)
+		AffixRules.Node removed;
+		if(lengthDiff > 0) {
+			// Try removing from word since word is longer
+			removed = affixes.getLongestRemovable(lengthDiff);
+		}
+		else if(lengthDiff < 0) {
+			// Try removing from candidate
+			removed = rules.getLongestRemovable(candidate, -lengthDiff);
+		}
+		else {
+			return 0;
+		}
+		if(removed == null) return 0;
+		return (removed.removalWeight * 0.9 + 0.1)
+				* Math.pow(1 - ((double) nonMatchingLength - removed.length) / (maxLength - removed.length), 4);
+	}
+	
+	/**
+	 * Best match of a word and a candidate after substituting a fix of the word with a fix of the candidate at the non-matching end
+	 * @param rules - Rules of the non-matching end
+	 * @param affixes - Rules that apply to the word
+	 * @param candidate
+	 * @param matchingLength - Matching length at the other end
+	 * @return The match, or 0 if no fix can be substituted
+	 */
+	static double getSubstitutionMatch(AffixRules.Side rules, AffixRules.WordAffixes affixes, String candidate, int matchingLength) {
+		double bestMatch = 0;
+		for(AffixRules.Node fix : affixes.substitutable) {
+			for(int i = 0; i < fix.targets.length; i++) {
+				String cFix = fix.targets[i];
+				if(rules.hasFix(candidate, cFix)) {
+					// We found a match, see if it's the best match
+					int newMaxLength = Math.max(affixes.word.length() - fix.length, candidate.length() - cFix.length());
+					int newNonMatchingLength = newMaxLength - matchingLength;
 					
-					if(maxSuffix != null) {
-						double match = (maxWeight * 0.9 + 0.1)
-								* Math.pow(1 - ((double) nonMatchingLength - maxSuffix.length()) / (maxLength - maxSuffix.length()), 4);
-						bestMatch = Math.max(bestMatch, match);
-					}
-				}
-				
-				// Try to get the best match by substitution
-				Map<String, HashMap<String, Double>> validSuffixSubs = App.suffixSubstitutionWeights.prefixMap(wordR.substring(0, 1));
-				for(Entry<String, HashMap<String, Double>> entry : validSuffixSubs.entrySet()) {
-					String fix = entry.getKey();
-					if(wordR.startsWith(fix)) {
-						for(Entry<String, Double> subEntry : entry.getValue().entrySet()) {
-							String cFix = subEntry.getKey();
-							if(candidateR.startsWith(cFix)) {
-								// We found a match, see if it's the best match
-								int newMaxLength = Math.max(word.length() - fix.length(), candidate.length() - cFix.length());
-								int newNonMatchingLength = newMaxLength - prefixMatchingLength;
-								
-								double match = (subEntry.getValue() * 0.9 + 0.1)
-										* Math.pow(1 - ((double) newNonMatchingLength) / newMaxLength, 4);
-								bestMatch = Math.max(bestMatch, match);
-							}
-						}
-					}
-				}
-				
-				if(bestMatch > 1) {
-					System.out.println("Possible error! Match between word '" + word + "' and candidate '" + candidate + "' was greater than 1: " + bestMatch);
-					bestMatch = 1;
-				}
-				double bestMatchFix = (bestMatch - 0.1) / 0.9; // Scale the match so we never consider <10% matching words (for performance)
-				if(bestMatchFix > 0) {
-					double prevOutData = out.containsKey(candidate) ? out.get(candidate) : 0;
-					if(bestMatchFix > prevOutData) out.put(candidate, bestMatchFix);
+					double match = (fix.targetWeights[i] * 0.9 + 0.1)
+							* Math.pow(1 - ((double) newNonMatchingLength) / newMaxLength, 4);
+					bestMatch = Math.max(bestMatch, match);
 				}
 			}
 		}
+		return bestMatch;
+	}
+	
+	/**
+	 * The fuzzy matches of an input word in all weight tables at once. Each candidate is only scored once, and
+	 * {@link #getMatches(int)} gives the same map as {@link TFIDFEngine#lenientWordSimilarityMap(String, WordIndex)} for one table.
+	 */
+	public static class FuzzyMatches {
+		final String word;
+		/**Dictionary of the candidates*/
+		final TermDictionary terms;
+		/**Tables that have the word itself*/
+		final int wordTables;
+		/**IDs of the matching words with the same first letter in sorted order, with the tables that have them*/
+		int[] prefixCandidates;
+		int[] prefixCandidateTables;
+		double[] prefixMatches;
+		int prefixCount;
+		/**IDs of the matching words with the same last letter in the order of the reverse tree*/
+		int[] suffixCandidates;
+		double[] suffixMatches;
+		int suffixCount;
 		
-		// Assume suffix match (find prefix matches)
-		{
-			for(Entry<String, String> candidateEntry : App.allWordsInReverse.prefixMap(word.substring(word.length() - 1)).entrySet()) {
-				String candidate = candidateEntry.getValue(); // The forward-spelled word is the value of the reverse map, for convenience
-				if(candidate.equals(word)) continue;
-				// Check prefix matching length
-				int prefixMatchingLength = 0;
-				for(int i = 0; i < word.length() && i < candidate.length(); i++) {
-					if(word.charAt(i) == candidate.charAt(i)) {
-						prefixMatchingLength ++;
-					}
-					else {
-						break;
-					}
-				}
-				// Check suffix matching length, taking in account of the prefix match to not match the same characters again
-				int suffixMatchingLength = 1;
-				for(int i = 1; i < word.length() - prefixMatchingLength && i < candidate.length() - prefixMatchingLength; i++) {
-					if(word.charAt(word.length() - 1 - i) == candidate.charAt(candidate.length() - 1 - i)) {
-						suffixMatchingLength ++;
-					}
-					else {
-						break;
-					}
-				}
-				int maxLength = Math.max(word.length(), candidate.length());
-				int nonMatchingLength = maxLength - suffixMatchingLength;
-				
-				// The "normal" match level would be quartic of nonmatching length (excl. any matches in prefix & suffix) to word length
-				// so if 1/3 the letters don't match the final match level is (2/3)^4 = 16/81
-				double bestMatch = Math.pow(1 - ((double) nonMatchingLength - prefixMatchingLength) / maxLength, 4);
-				
-				// Try to get the best match by removal
-				
-				int lengthDiff = word.length() - candidate.length();
-				if(lengthDiff > 0) {
-					// Try removing from word since word is longer
-					// Find longest defined prefix that can be removed (longest is almost always the best)
-					double maxWeight = 0; // Not actually "max weight" since we're finding longest
-					String maxPrefix = null;
-					for(int i = 1; i <= lengthDiff; i++) {
-						Double weight = App.prefixRemovalWeights.get(word.substring(0, i));
-						if(weight != null) {
-							maxPrefix = word.substring(0, i);
-							maxWeight = weight;
-						}
-					}
-					
-					if(maxPrefix != null) {
-						double match = (maxWeight * 0.9 + 0.1)
-								* Math.pow(1 - ((double) nonMatchingLength - maxPrefix.length()) / (maxLength - maxPrefix.length()), 4);
-						bestMatch = Math.max(bestMatch, match);
-					}
+		public FuzzyMatches(String word) {
+			this(word, App.index);
+		}
+		
+		public FuzzyMatches(String word, QueryIndex queryIndex) {
+			this.word = word;
+			FuzzyIndex index = queryIndex.fuzzyIndex;
+			terms = index.terms;
+			wordTables = terms.getTables(terms.getId(word));
+			
+			// Only score the words that can match, see FuzzyIndex
+			AffixRules.WordAffixes suffixes = queryIndex.affixRules.suffixes.getAffixes(word);
+			int[] candidates = index.getPrefixCandidates(word);
+			prefixCandidates = new int[candidates.length];
+			prefixCandidateTables = new int[candidates.length];
+			prefixMatches = new double[candidates.length];
+			for(int id : candidates) {
+				double match = getPrefixMatch(suffixes, terms.getTerm(id));
+				if(match > 0) {
+					prefixCandidates[prefixCount] = id;
+					prefixCandidateTables[prefixCount] = terms.getTables(id);
+					prefixMatches[prefixCount++] = match;
 				}
-				else if(lengthDiff < 0) {
-					// Try removing from candidate
-					// Find longest defined prefix that can be removed (longest is almost always the best)
-					double maxWeight = 0; // Not actually "max weight" since we're finding longest
-					String maxPrefix = null;
-					for(int i = 1; i <= -lengthDiff; i++) {
-						Double weight = App.prefixRemovalWeights.get(candidate.substring(0, i));
-						if(weight != null) {
-							maxPrefix = candidate.substring(0, i);
-							maxWeight = weight;
-						}
-					}
-					
-					if(maxPrefix != null) {
-						double match = (maxWeight * 0.9 + 0.1)
-								* Math.pow(1 - ((double) nonMatchingLength - maxPrefix.length()) / (maxLength - maxPrefix.length()), 4);
-						bestMatch = Math.max(bestMatch, match);
-					}
+			}
+			AffixRules.WordAffixes prefixes = queryIndex.affixRules.prefixes.getAffixes(word);
+			candidates = index.getSuffixCandidates(word);
+			suffixCandidates = new int[candidates.length];
+			suffixMatches = new double[candidates.length];
+			for(int id : candidates) {
+				double match = getSuffixMatch(prefixes, terms.getTerm(id));
+				if(match > 0) {
+					suffixCandidates[suffixCount] = id;
+					suffixMatches[suffixCount++] = match;
 				}
-				
-				// Try to get the best match by substitution
-				Map<String, HashMap<String, Double>> validSuffixSubs = App.prefixSubstitutionWeights.prefixMap(word.substring(0, 1));
-				for(Entry<String, HashMap<String, Double>> entry : validSuffixSubs.entrySet()) {
-					String fix = entry.getKey();
-					if(word.startsWith(fix)) {
-						for(Entry<String, Double> subEntry : entry.getValue().entrySet()) {
-							String cFix = subEntry.getKey();
-							if(candidate.startsWith(cFix)) {
-								// We found a match, see if it's the best match
-								int newMaxLength = Math.max(word.length() - fix.length(), candidate.length() - cFix.length());
-								int newNonMatchingLength = newMaxLength - suffixMatchingLength;
-								
-								double match = (subEntry.getValue() * 0.9 + 0.1)
-										* Math.pow(1 - ((double) newNonMatchingLength) / newMaxLength, 4);
-								bestMatch = Math.max(bestMatch, match);
-							}
-						}
-					}
+			}
+		}
+		
+		/**
+		 * Get the matching words in one weight table and how well they match
+		 * @param table - One of the table bits, see {@link App#TEMPLATE_TABLE}
+		 * @return
+		 */
+		public HashMap<String, Double> getMatches(int table) {
+			HashMap<String, Double> out = new HashMap<>();
+			for(int i = 0; i < prefixCount; i++) {
+				if((prefixCandidateTables[i] & table) != 0) putIfBetterMatch(out, terms.getTerm(prefixCandidates[i]), prefixMatches[i]);
+			}
+			for(int i = 0; i < suffixCount; i++) {
+				putIfBetterMatch(out, terms.getTerm(suffixCandidates[i]), suffixMatches[i]);
+			}
+			if((wordTables & table) != 0) out.put(word, 1d);
+			return out;
+		}
+	}
+	
+	/**
+	 * What one input word adds to the template and string weights: its fuzzy matches, and the weight of each match in each template
+	 * and string times how closely it matches, in the same order as {@link #getTemplateWeight(String)} and
+	 * {@link #getStringWeight(String, WordIndex)} add them. The template weights depend on that order and the string weights are
+	 * rounded in it, so the weights are kept per match instead of summed up per template and string.
+	 * <p>
+	 * Cached for each word in the {@link QueryIndex#wordCache} of the index they come from.
+	 */
+	public static class WordContributions {
+		/**Scratch sums by string ordinal for {@link #getMaxStringWeights}*/
+		static final ThreadLocal<double[]> MAX_WEIGHT_SUMS = ThreadLocal.withInitial(() -> new double[0]);
+		public final FuzzyMatches matches;
+		final Contributions<Template> templates = new Contributions<>();
+		/**Contributions to the strings by string ordinal, see {@link StringOrdinals}*/
+		final OrdinalContributions stringsInTemplate = new OrdinalContributions();
+		final OrdinalContributions stringsAcrossTemplates = new OrdinalContributions();
+		/**Whether the word had any fuzzy match for the in template table, even one without weights there (see
+		 * {@link TFIDFEngine#getStringWeight(String, WordIndex)}) or whose strings aren't scored*/
+		boolean matchesInTemplate;
+		/**Upper bounds of what the word adds to the weight of any one string of each template slot (see
+		 * {@link StringOrdinals#getTemplateSlot(int)}), see {@link InputScores}*/
+		double[] maxInTemplate, maxAcrossTemplates;
+		
+		public WordContributions(String word, QueryIndex index) {
+			matches = new FuzzyMatches(word, index);
+			StringOrdinals ordinals = index.stringOrdinals;
+			for(Entry<String, Double> wordEntry : matches.getMatches(App.TEMPLATE_TABLE).entrySet()) {
+				Map<Integer, Double> wordWeightMap = index.templateWordIndex.getWeights(wordEntry.getKey());
+				if(wordWeightMap == null) continue;
+				for(Entry<Integer, Double> templateEntry : wordWeightMap.entrySet()) {
+					templates.add(App.templates.get(templateEntry.getKey()), templateEntry.getValue() * wordEntry.getValue());
 				}
-				
-				if(bestMatch > 1) {
-					System.out.println("Possible error! Match between word '" + word + "' and candidate '" + candidate + "' was greater than 1: " + bestMatch);
-					bestMatch = 1;
+			}
+			HashMap<String, Double> inTemplateMatches = matches.getMatches(App.IN_TEMPLATE_TABLE);
+			HashMap<String, Double> acrossTemplatesMatches = matches.getMatches(App.ACROSS_TEMPLATES_TABLE);
+			matchesInTemplate = !inTemplateMatches.isEmpty();
+			addStringContributions(stringsInTemplate, ordinals, index.stringInTemplateIndex, inTemplateMatches);
+			addStringContributions(stringsAcrossTemplates, ordinals, index.stringAcrossTemplatesIndex, acrossTemplatesMatches);
+			templates.trim();
+			stringsInTemplate.groupByTemplate(ordinals);
+			stringsAcrossTemplates.groupByTemplate(ordinals);
+			maxInTemplate = getMaxStringWeights(stringsInTemplate, ordinals);
+			maxAcrossTemplates = getMaxStringWeights(stringsAcrossTemplates, ordinals);
+		}
+		
+		static void addStringContributions(OrdinalContributions out, StringOrdinals ordinals, WordIndex<TemplateString> weightTree,
+				HashMap<String, Double> wordsToConsider) {
+			for(Entry<String, Double> wordEntry : wordsToConsider.entrySet()) {
+				Map<TemplateString, Double> weightMap = weightTree.getWeights(wordEntry.getKey());
+				if(weightMap == null) continue;
+				for(Entry<TemplateString, Double> weightEntry : weightMap.entrySet()) {
+					// Strings that aren't scored are left out
+					int ordinal = ordinals.getOrdinal(weightEntry.getKey());
+					if(ordinal >= 0) out.add(ordinal, weightEntry.getValue() * wordEntry.getValue());
 				}
-				double bestMatchFix = (bestMatch - 0.1) / 0.9; // Scale the match so we never consider <10% matching words (for performance)
-				if(bestMatchFix > 0) {
-					double prevOutData = out.containsKey(candidate) ? out.get(candidate) : 0;
-					if(bestMatchFix > prevOutData) out.put(candidate, bestMatchFix);
+			}
+		}
+		
+		/**
+		 * Upper bound of what the word adds to the weight of one string of each template slot: the highest sum of the positive
+		 * contributions to one string of the template
+		 * @param contributions - Grouped by template
+		 * @param ordinals
+		 * @return
+		 */
+		static double[] getMaxStringWeights(OrdinalContributions contributions, StringOrdinals ordinals) {
+			double[] sums = MAX_WEIGHT_SUMS.get();
+			if(sums.length < ordinals.size()) MAX_WEIGHT_SUMS.set(sums = new double[ordinals.size()]);
+			double[] max = new double[ordinals.getTemplateCount() + 1];
+			for(int slot = 0; slot < max.length; slot++) {
+				for(int i = contributions.templateStarts[slot]; i < contributions.templateStarts[slot + 1]; i++) {
+					int ordinal = contributions.ordinals[i];
+					if(contributions.weights[i] > 0) max[slot] = Math.max(max[slot], sums[ordinal] += contributions.weights[i]);
 				}
 			}
+			for(int i = 0; i < contributions.size; i++) sums[contributions.ordinals[i]] = 0;
+			return max;
+		}
+		
+		/**
+		 * Size of the contributions, for limiting the size of the cache
+		 * @return
+		 */
+		public int size() {
+			return 1 + matches.prefixCount + matches.suffixCount + templates.size + stringsInTemplate.size + stringsAcrossTemplates.size;
 		}
-		// Include the word itself if in candidates, and return
-		if(candidates.containsKey(word)) out.put(word, 1d);
-		return out;
 	}
 	
-	public static HashMap<TemplateString, OutputWeight> getFinalWeight(String input) {
-		HashMap<Template, Double> templateWeight = getTemplateWeight(input);
-		HashMap<TemplateString, Double> stringWeightInTemplate = getStringWeight(input, App.stringWeightsInTemplate);
-		HashMap<TemplateString, Double> stringWeightAcrossTemplates = getStringWeight(input, App.stringWeightsAcrossTemplates);
+	/**
+	 * Keys and weights in the order they are added
+	 * @param <K>
+	 */
+	static class Contributions<K> {
+		Object[] keys = new Object[16];
+		double[] weights = new double[16];
+		int size;
+		
+		void add(K key, double weight) {
+			if(size == keys.length) {
+				keys = Arrays.copyOf(keys, size * 2);
+				weights = Arrays.copyOf(weights, size * 2);
+			}
+			keys[size] = key;
+			weights[size] = weight;
+			size++;
+		}
 		
+		@SuppressWarnings("unchecked")
+		K getKey(int i) {
+			return (K) keys[i];
+		}
+		
+		void trim() {
+			keys = Arrays.copyOf(keys, size);
+			weights = Arrays.copyOf(weights, size);
+		}
+	}
+	
+	/**
+	 * String ordinals and weights in the order they are added, and then grouped by template
+	 */
+	static class OrdinalContributions {
+		int[] ordinals = new int[16];
+		double[] weights = new double[16];
+		int size;
+		/**Where the contributions to the strings of each template slot (see {@link StringOrdinals#getTemplateSlot(int)}) start, and
+		 * the size at the end*/
+		int[] templateStarts = new int[] {0, 0};
+		
+		void add(int ordinal, double weight) {
+			if(size == ordinals.length) {
+				ordinals = Arrays.copyOf(ordinals, size * 2);
+				weights = Arrays.copyOf(weights, size * 2);
+			}
+			ordinals[size] = ordinal;
+			weights[size] = weight;
+			size++;
+		}
+		
+		/**
+		 * Trim the arrays and group the contributions by the template of their string, so only the strings of some templates can be
+		 * scored (see {@link InputScores}). The contributions to each string stay in the same order.
+		 * @param stringOrdinals
+		 */
+		void groupByTemplate(StringOrdinals stringOrdinals) {
+			int slots = stringOrdinals.getTemplateCount() + 1;
+			templateStarts = new int[slots + 1];
+			for(int i = 0; i < size; i++) templateStarts[stringOrdinals.getTemplateSlot(ordinals[i]) + 1]++;
+			for(int i = 0; i < slots; i++) templateStarts[i + 1] += templateStarts[i];
+			int[] next = Arrays.copyOf(templateStarts, slots);
+			int[] groupedOrdinals = new int[size];
+			double[] groupedWeights = new double[size];
+			for(int i = 0; i < size; i++) {
+				int j = next[stringOrdinals.getTemplateSlot(ordinals[i])]++;
+				groupedOrdinals[j] = ordinals[i];
+				groupedWeights[j] = weights[i];
+			}
+			ordinals = groupedOrdinals;
+			weights = groupedWeights;
+		}
+	}
+	
+	/**
+	 * Score an input against every string, see {@link #getFinalWeight(String)}
+	 * @param input
+	 * @return The scores of the current thread, which are replaced when it scores the next input
+	 */
+	public static InputScores scoreInput(String input) {
+		return scoreInput(input, Double.NEGATIVE_INFINITY, 0);
+	}
+	
+	/**
+	 * Score an input, skipping the strings that aren't needed if {@link App#pruneScores} is on (see {@link InputScores})
+	 * @param input
+	 * @param threshold - Only the strings with a weight above this are needed, or negative infinity
+	 * @param topCount - Only the strings with the topCount highest weights are needed, or 0 for all
+	 * @return The scores of the current thread, which are replaced when it scores the next input
+	 */
+	public static InputScores scoreInput(String input, double threshold, int topCount) {
+		// Same as getTemplateWeight and getStringWeight for both tables, but the input is only split once and each word's fuzzy
+		// matches and contributions come from the cache
+		// The words must be scored with the strings of the index they come from, so it's only read once
+		QueryIndex index = App.index;
+		InputScores scores = InputScores.forThread();
+		scores.reset(index.stringOrdinals);
+		Tokenizer tokenizer = Tokenizer.forThread();
+		TermDictionary terms = index.terms;
+		int size = tokenizer.tokenize(input, true);
+		for(int i = 0; i < size; i++) {
+			if(tokenizer.isEmpty(i)) continue;
+			String word = tokenizer.getWord(i, terms, tokenizer.getTermId(i, terms));
+			scores.addWord(index.wordCache.get(word));
+		}
+		score(scores, terms, threshold, topCount);
+		return scores;
+	}
+	
+	/**
+	 * Add up the weights of the words added to the scores, skipping the strings that aren't needed if {@link App#pruneScores} is on
+	 * @param scores
+	 * @param terms - Words of the index the scores are from
+	 * @param threshold - Only the strings with a weight above this are needed, or negative infinity
+	 * @param topCount - Only the strings with the topCount highest weights are needed, or 0 for all
+	 */
+	static void score(InputScores scores, TermDictionary terms, double threshold, int topCount) {
+		boolean nonNegative = !terms.hasNegativeWeights();
+		if(App.pruneScores) scores.score(threshold, topCount, nonNegative);
+		else scores.score(Double.NEGATIVE_INFINITY, 0, nonNegative);
+	}
+	
+	/**
+	 * Get the final weight of every string for an input
+	 * @param input
+	 * @return The weights, or an empty map if no input word had any fuzzy match
+	 */
+	public static HashMap<TemplateString, OutputWeight> getFinalWeight(String input) {
+		return scoreInput(input).toMap();
+	}
+	
+	/**
+	 * Combine the template weights and string weights of an input into the final weight of each string
+	 * @param templateWeight - See {@link #getTemplateWeight(String)}
+	 * @param stringWeightInTemplate - See {@link #getStringWeight(String, WordIndex)}
+	 * @param stringWeightAcrossTemplates
+	 * @return
+	 */
+	public static HashMap<TemplateString, OutputWeight> getFinalWeight(HashMap<Template, Double> templateWeight, HashMap<TemplateString, Double> stringWeightInTemplate,
+			HashMap<TemplateString, Double> stringWeightAcrossTemplates) {
 		// Find the template with the most templateWeight & simultaneously find length-squared of vector
 		
 		//String maxTemplate = null;
@@ -628,10 +971,14 @@ public class TFIDFEngine {
 		inTemplateWeight *= inTemplateWeight;
 		
 		HashMap<TemplateString, OutputWeight> out = new HashMap<>();
+		// No input word had any fuzzy match
+		if(stringWeightInTemplate.isEmpty()) return out;
 		
-		for(TemplateString tStr : stringWeightInTemplate.keySet()) {
+		// Otherwise every string gets a weight, even if it has none of the words, since the template weight can still be high
+		for(HashMap<String, TemplateString> templateStringMap : App.templatesExpandedConcat.values()) {
+			TemplateString tStr = templateStringMap.get(App.BASE_FORMAT);
 			double templateWeightComponent = templateWeight.containsKey(tStr.tf.template) ? templateWeight.get(tStr.tf.template) : 0;
-			OutputWeight weight = new OutputWeight(stringWeightInTemplate.get(tStr), stringWeightAcrossTemplates.get(tStr), templateWeightComponent, inTemplateWeight);
+			OutputWeight weight = new OutputWeight(stringWeightInTemplate.getOrDefault(tStr, 0d), stringWeightAcrossTemplates.getOrDefault(tStr, 0d), templateWeightComponent, inTemplateWeight);
 			
 			out.put(tStr, weight);
 		}
@@ -647,56 +994,37 @@ public class TFIDFEngine {
 	 * @return
 	 */
 	public static ArrayList<String> getWordsInString(String s) {
-		// Search words in text
-		String[] split = s.replace('-', ' ').split(" ");
-		ArrayList<String> words = new ArrayList<String>(split.length);
-		// Remove punctuation
-		for(String str : split) {
-			if(str.isEmpty()) continue;
-			StringBuilder wordBuilder = new StringBuilder();
-			for(int j = 0; j < str.length(); j++) {
-				char c = str.charAt(j);
-				if(c >= 'A' && c <= 'Z') c = (char) (c + 'a' - 'A');
-				if((c >= 'a' && c <= 'z') || (c >= '0' && c <= '9')) {
-					wordBuilder.append(c);
-				}
-			}
-			words.add(wordBuilder.toString());
-		}
+		Tokenizer tokenizer = Tokenizer.forThread();
+		TermDictionary terms = App.index.terms;
+		int size = tokenizer.tokenize(s, true);
+		ArrayList<String> words = new ArrayList<String>(size);
+		for(int i = 0; i < size; i++) words.add(tokenizer.getWord(i, terms, tokenizer.getTermId(i, terms)));
 		return words;
 	}
 	
 	/**
-	 * Search for whether a word exists in a template
+	 * Count the words in a string, the same as the size of {@link #getWordsInString(String)}
+	 * @param s
+	 * @return
+	 */
+	public static int countWordsInString(String s) {
+		return Tokenizer.forThread().tokenize(s, true);
+	}
+	
+	/**
+	 * Get the set of all (lowercased) words that appear anywhere in a template
 	 * @param template
-	 * @param word
 	 * @return
 	 */
-	public static boolean searchWordInTemplate(TemplateFormat template, String word) {
+	public static HashSet<String> getWordsInTemplate(TemplateFormat template) {
+		HashSet<String> out = new HashSet<>();
 		LinkedList<Item> queue = new LinkedList<>();
 		queue.add(template.baseProgression);
 		while(!queue.isEmpty()) {
 			Item i = queue.poll();
 			if(i instanceof ItemText) {
-				// Search for word, ignoring every character that isn't letter or number (very raw code for efficiency)
-				String text = ((ItemText) i).getText();
-				int currentIndex = 0;
-				for(int j = 0; j < text.length() && currentIndex < word.length(); j++) {
-					char c = text.charAt(j);
-					// Check uppercase
-					if(c >= 'A' && c <= 'Z') c = (char) ((int) c + 'a' - 'A');
-					// Check if equal to current word char
-					if(c == word.charAt(currentIndex)) {
-						// If last index then the word exists in template
-						if(currentIndex == word.length() - 1) return true;
-						// Otherwise add one to index
-						currentIndex++;
-						continue;
-					}
-					if(currentIndex > 0 && ((c >= 'A' && c <= 'Z') || (c >= 'a' && c <= 'z') || (c >= '0' && c <= '9'))) {
-						// If the char was alphanumerical but unequal, the word train was broken..
-						currentIndex = 0;
-					}
+				for(String word : getWordsInString(((ItemText) i).getText())) {
+					if(!word.isEmpty()) out.add(word);
 				}
 			}
 			// For other types of items just add their children to queue so we reach all the string items in the end
@@ -707,31 +1035,7 @@ public class TFIDFEngine {
 				queue.addAll(((ItemProgression) i).getContent());
 			}
 		}
-		return false;
-	}
-	
-	public static boolean searchWordInTemplateString(TemplateString tStr, String word) {
-		// Search for word, ignoring every character that isn't letter or number (very raw code for efficiency)
-		String text = tStr.string;
-		int currentIndex = 0;
-		for(int j = 0; j < text.length() && currentIndex < word.length(); j++) {
-			char c = text.charAt(j);
-			// Check uppercase
-			if(c >= 'A' && c <= 'Z') c = (char) (c + 'a' - 'A');
-			// Check if equal to current word char
-			if(c == word.charAt(currentIndex)) {
-				// If last index then the word exists in template
-				if(currentIndex == word.length() - 1) return true;
-				// Otherwise add one to index
-				currentIndex++;
-				continue;
-			}
-			if(currentIndex > 0 && ((c >= 'A' && c <= 'Z') || (c >= 'a' && c <= 'z') || (c >= '0' && c <= '9'))) {
-				// If the char was alphanumerical but unequal, the word train was broken..
-				currentIndex = 0;
-			}
-		}
-		return false;
+		return out;
 	}
 	
 	/**
@@ -755,62 +1059,6 @@ public class TFIDFEngine {
 		return out;
 	}
 	
-	public static <T extends Object> void applySubstitutionToWeights(Map<String, HashMap<T, Double>> weightMap, PatriciaTrie<HashMap<String, Double>> substitutionMap) {
-		// This map is a change done by this function that will be merged into the main map at the end
-		HashMap<String, HashMap<T, Double>> mapChanges = new HashMap<>();
-		
-		for(Entry<String, HashMap<T, Double>> entry : weightMap.entrySet()) {
-			String word = entry.getKey();
-			for(int i = 0; i < word.length(); i++) {
-				// Search for entries that apply to this sentence (use first letter in prefix map to speed up the search)
-				Map<String, HashMap<String, Double>> potentialSubstitutionMap = substitutionMap.prefixMap(word.substring(i, i+1));
-				for(Entry<String, HashMap<String, Double>> subEntry : potentialSubstitutionMap.entrySet() ) {
-					String from = subEntry.getKey();
-					if(word.length() - i >= from.length()) {
-						if(word.substring(i, i+from.length()).equals(from)) {
-							// We have a confirmed substitution
-							for(Entry<String, Double> substitution : subEntry.getValue().entrySet()) {
-								String newWord = word.substring(0, i) + substitution.getKey() + word.substring(i+from.length());
-								mapChanges.put(newWord, returnScaledMap(weightMap.get(word), substitution.getValue()));
-							}
-						}
-					}
-				}
-			}
-		}
-		
-		// Merge substitutions
-		for(Entry<String, HashMap<T, Double>> entry : mapChanges.entrySet()) {
-			String word = entry.getKey();
-			HashMap<T, Double> map = entry.getValue();
-			// If the weight map didn't already contain the modified word, add the word to it
-			if(!weightMap.containsKey(word)) {
-				weightMap.put(word, map);
-			}
-			else {
-				HashMap<T, Double> currentMap = weightMap.get(word);
-				for(Entry<T, Double> weightEntry : map.entrySet()) {
-					T key = weightEntry.getKey();
-					if(currentMap.containsKey(key)) {
-						// Add the old weight and new weight together if already exists
-						currentMap.put(key, currentMap.get(key) + weightEntry.getValue());
-					}
-					else {
-						currentMap.put(key, weightEntry.getValue());
-					}
-				}
-			}
-		}
-	}
-	
-	public static <T extends Object> HashMap<T, Double> returnScaledMap(Map<T, Double> map, double scale) {
-		HashMap<T, Double> out = new HashMap<>();
-		for(Entry<T, Double> entry : map.entrySet()) {
-			out.put(entry.getKey(), entry.getValue() * scale);
-		}
-		return out;
-	}
-	
 	/**
 	 * "Deep"-merges a map of HashMaps, combining all keys of individual child maps in the "from" map into the "to" map
 	 */
@@ -0,0 +1,190 @@
+package database_templatefinder.templatefinder;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+
+/**
+ * Dense int IDs for words, with the word class and weight table flags of each word as bit sets, so they are found with one lookup
+ * of the word and then only use the ID.
+ * <p>
+ * The words of the word lists get the first IDs, and the words of the weight tables are added after them when the index is built
+ * (see {@link App#buildAllWords()}). A dictionary is never changed once it's in {@link QueryIndex#terms}, a new one is made instead.
+ */
+public class TermDictionary {
+
+	String[] terms = new String[16];
+	int size;
+	/**Open addressing hash table of the IDs + 1 (0 is an empty slot), so words can also be looked up from a char buffer*/
+	int[] slots = new int[32];
+
+	/**Words on the common word list (which aren't "technical")*/
+	final BitSet common = new BitSet();
+	/**Words on the very common word list*/
+	final BitSet veryCommon = new BitSet();
+	/**Words in the weight tables, by table bit (see {@link App#TEMPLATE_TABLE})*/
+	final BitSet[] tables = new BitSet[3];
+	/**Whether any weight in the tables is negative, in which case strings can get less than their template weight*/
+	boolean negativeWeights;
+
+	/**
+	 * A dictionary of the word lists
+	 * @param commonWords - Can be null before the lists are loaded
+	 * @param veryCommonWords
+	 */
+	public TermDictionary(Collection<String> commonWords, Collection<String> veryCommonWords) {
+		for(int i = 0; i < tables.length; i++) tables[i] = new BitSet();
+		if(commonWords != null) {
+			for(String word : commonWords) common.set(add(word));
+		}
+		if(veryCommonWords != null) {
+			for(String word : veryCommonWords) veryCommon.set(add(word));
+		}
+	}
+
+	/**
+	 * Get the ID of a word, adding it if it isn't in the dictionary. Not thread safe.
+	 * @param word
+	 * @return
+	 */
+	public int add(String word) {
+		int id = getId(word);
+		if(id >= 0) return id;
+		if(size == terms.length) terms = Arrays.copyOf(terms, size * 2);
+		terms[size] = word;
+		// Keep the table at most half full
+		if(size * 2 >= slots.length) {
+			slots = new int[slots.length * 2];
+			for(int i = 0; i < size; i++) slots[findSlot(terms[i].hashCode())] = i + 1;
+		}
+		slots[findSlot(word.hashCode())] = size + 1;
+		return size++;
+	}
+
+	/**
+	 * Find the first empty slot for a hash
+	 */
+	int findSlot(int hash) {
+		int mask = slots.length - 1;
+		int slot = spread(hash) & mask;
+		while(slots[slot] != 0) slot = (slot + 1) & mask;
+		return slot;
+	}
+
+	static int spread(int hash) {
+		return hash ^ (hash >>> 16);
+	}
+
+	/**
+	 * Add a word of a weight table
+	 * @param word
+	 * @param table - One table bit
+	 * @return
+	 */
+	public int addToTable(String word, int table) {
+		int id = add(word);
+		tables[Integer.numberOfTrailingZeros(table)].set(id);
+		return id;
+	}
+
+	/**
+	 * Add a word of a weight table with its weights
+	 * @param word
+	 * @param table - One table bit
+	 * @param weights - Weight of each key for the word
+	 * @return
+	 */
+	public int addToTable(String word, int table, Collection<Double> weights) {
+		int id = addToTable(word, table);
+		for(double weight : weights) {
+			if(weight < 0) negativeWeights = true;
+		}
+		return id;
+	}
+
+	/**
+	 * Check whether any weight added with {@link #addToTable(String, int, Collection)} is negative
+	 * @return
+	 */
+	public boolean hasNegativeWeights() {
+		return negativeWeights;
+	}
+
+	/**
+	 * Get the ID of a word
+	 * @param word
+	 * @return The ID, or -1 if the word is not in the dictionary
+	 */
+	public int getId(String word) {
+		int mask = slots.length - 1;
+		for(int slot = spread(word.hashCode()) & mask; slots[slot] != 0; slot = (slot + 1) & mask) {
+			String term = terms[slots[slot] - 1];
+			if(term.equals(word)) return slots[slot] - 1;
+		}
+		return -1;
+	}
+
+	/**
+	 * Get the ID of a word in a char buffer, without creating a string
+	 * @param chars
+	 * @param offset
+	 * @param length
+	 * @param hash - Same as the hashCode() of the word as a string
+	 * @return The ID, or -1 if the word is not in the dictionary
+	 */
+	public int getId(char[] chars, int offset, int length, int hash) {
+		int mask = slots.length - 1;
+		for(int slot = spread(hash) & mask; slots[slot] != 0; slot = (slot + 1) & mask) {
+			String term = terms[slots[slot] - 1];
+			if(term.length() == length && term.hashCode() == hash && regionEquals(term, chars, offset)) return slots[slot] - 1;
+		}
+		return -1;
+	}
+
+	static boolean regionEquals(String term, char[] chars, int offset) {
+		for(int i = 0; i < term.length(); i++) {
+			if(term.charAt(i) != chars[offset + i]) return false;
+		}
+		return true;
+	}
+
+	public String getTerm(int id) {
+		return terms[id];
+	}
+
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * Check whether a word is on the common word list
+	 * @param id - ID of the word, or -1
+	 * @return
+	 */
+	public boolean isCommon(int id) {
+		return id >= 0 && common.get(id);
+	}
+
+	/**
+	 * Check whether a word is on the very common word list
+	 * @param id - ID of the word, or -1
+	 * @return
+	 */
+	public boolean isVeryCommon(int id) {
+		return id >= 0 && veryCommon.get(id);
+	}
+
+	/**
+	 * Get the weight tables that have a word
+	 * @param id - ID of the word, or -1
+	 * @return Table bits (see {@link App#TEMPLATE_TABLE})
+	 */
+	public int getTables(int id) {
+		int out = 0;
+		if(id < 0) return out;
+		for(int i = 0; i < tables.length; i++) {
+			if(tables[i].get(id)) out |= 1 << i;
+		}
+		return out;
+	}
+}
@@ -0,0 +1,125 @@
+package database_templatefinder.templatefinder;
+
+import java.util.Arrays;
+
+/**
+ * Splits text into words, the same way for the templates when the index is built and for the inputs when it's queried.
+ * <p>
+ * Words are separated by spaces and hyphens, and only the ASCII letters and digits of a word are kept, so a word can end up empty
+ * (like "..."). Empty words still count towards the number of words of the text.
+ * <p>
+ * The text is scanned once into buffers that are reused for the next text, and strings are only created for words that are asked
+ * for and aren't in the {@link TermDictionary}. Not thread safe, use {@link #forThread()}.
+ */
+public class Tokenizer {
+
+	static final ThreadLocal<Tokenizer> TOKENIZERS = ThreadLocal.withInitial(Tokenizer::new);
+
+	/**Letters of all words*/
+	char[] chars = new char[256];
+	/**End of each word in chars (the start is the end of the word before)*/
+	int[] ends = new int[32];
+	/**Same as the hashCode() of each word as a string*/
+	int[] hashes = new int[32];
+	int size;
+
+	/**
+	 * Get the tokenizer of the current thread. It must not be used again while its words are still needed.
+	 * @return
+	 */
+	public static Tokenizer forThread() {
+		return TOKENIZERS.get();
+	}
+
+	/**
+	 * Split a text into words, replacing the words of the last text
+	 * @param text
+	 * @param lowercase - Whether to lowercase the words (the words of the template weights keep their case)
+	 * @return The number of words
+	 */
+	public int tokenize(CharSequence text, boolean lowercase) {
+		size = 0;
+		int length = 0;
+		int hash = 0;
+		boolean inWord = false;
+		if(chars.length < text.length()) chars = new char[Math.max(text.length(), chars.length * 2)];
+		for(int i = 0; i < text.length(); i++) {
+			char c = text.charAt(i);
+			if(c == ' ' || c == '-') {
+				if(inWord) addWord(length, hash);
+				inWord = false;
+				hash = 0;
+				continue;
+			}
+			inWord = true;
+			if(lowercase && c >= 'A' && c <= 'Z') c = (char) (c + 'a' - 'A');
+			if((c >= 'A' && c <= 'Z') || (c >= 'a' && c <= 'z') || (c >= '0' && c <= '9')) {
+				chars[length++] = c;
+				hash = 31 * hash + c;
+			}
+		}
+		if(inWord) addWord(length, hash);
+		return size;
+	}
+
+	void addWord(int end, int hash) {
+		if(size == ends.length) {
+			ends = Arrays.copyOf(ends, size * 2);
+			hashes = Arrays.copyOf(hashes, size * 2);
+		}
+		ends[size] = end;
+		hashes[size] = hash;
+		size++;
+	}
+
+	/**
+	 * Number of words of the last text
+	 * @return
+	 */
+	public int size() {
+		return size;
+	}
+
+	int getStart(int i) {
+		return i == 0 ? 0 : ends[i - 1];
+	}
+
+	/**
+	 * Check whether a word has no letters or digits
+	 * @param i
+	 * @return
+	 */
+	public boolean isEmpty(int i) {
+		return ends[i] == getStart(i);
+	}
+
+	/**
+	 * Get the ID of a word in a dictionary
+	 * @param i
+	 * @param terms
+	 * @return The ID, or -1 if the word is not in the dictionary
+	 */
+	public int getTermId(int i, TermDictionary terms) {
+		return terms.getId(chars, getStart(i), ends[i] - getStart(i), hashes[i]);
+	}
+
+	/**
+	 * Get a word as a string
+	 * @param i
+	 * @param terms - Dictionary the string is taken from if it has the word, so no string is created
+	 * @param id - ID of the word in the dictionary from {@link #getTermId(int, TermDictionary)}, or -1
+	 * @return
+	 */
+	public String getWord(int i, TermDictionary terms, int id) {
+		return id >= 0 ? terms.getTerm(id) : new String(chars, getStart(i), ends[i] - getStart(i));
+	}
+
+	/**
+	 * Get a word as a string
+	 * @param i
+	 * @return
+	 */
+	public String getWord(int i) {
+		return new String(chars, getStart(i), ends[i] - getStart(i));
+	}
+}
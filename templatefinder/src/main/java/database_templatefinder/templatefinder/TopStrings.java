@@ -0,0 +1,107 @@
+package database_templatefinder.templatefinder;
+
+/**
+ * The strings with the highest weights for an input, by ordinal in {@link InputScores}, kept in a bounded heap so only the top ones
+ * are ever sorted.
+ * <p>
+ * Equal weights are ranked in the order the strings are offered, so ties are kept and ranked the same way every time. Strings must
+ * be offered in increasing ordinal order for the ties to be ranked by ordinal.
+ */
+public class TopStrings {
+
+	/**Heap with the lowest ranked string first*/
+	final int[] ordinals;
+	final double[] weights;
+	int size;
+
+	/**
+	 * @param count - Number of strings to keep, at most the number of strings that will be offered since the heap is allocated at once
+	 */
+	public TopStrings(int count) {
+		ordinals = new int[Math.max(count, 0)];
+		weights = new double[ordinals.length];
+	}
+
+	/**
+	 * Keep a string if it's ranked higher than the lowest ranked string that is kept
+	 * @param ordinal
+	 * @param weight
+	 */
+	public void offer(int ordinal, double weight) {
+		if(size < ordinals.length) {
+			ordinals[size] = ordinal;
+			weights[size] = weight;
+			siftUp(size++);
+		}
+		// The string that was offered first wins a tie
+		else if(size > 0 && weight > weights[0]) {
+			ordinals[0] = ordinal;
+			weights[0] = weight;
+			siftDown(0);
+		}
+	}
+
+	/**
+	 * Check whether the string at i is ranked lower than the string at j
+	 */
+	boolean lower(int i, int j) {
+		if(weights[i] != weights[j]) return weights[i] < weights[j];
+		return ordinals[i] > ordinals[j];
+	}
+
+	void siftUp(int i) {
+		while(i > 0) {
+			int parent = (i - 1) / 2;
+			if(!lower(i, parent)) break;
+			swap(i, parent);
+			i = parent;
+		}
+	}
+
+	void siftDown(int i) {
+		while(true) {
+			int lowest = i;
+			int left = 2 * i + 1;
+			if(left < size && lower(left, lowest)) lowest = left;
+			if(left + 1 < size && lower(left + 1, lowest)) lowest = left + 1;
+			if(lowest == i) break;
+			swap(i, lowest);
+			i = lowest;
+		}
+	}
+
+	void swap(int i, int j) {
+		int ordinal = ordinals[i];
+		ordinals[i] = ordinals[j];
+		ordinals[j] = ordinal;
+		double weight = weights[i];
+		weights[i] = weights[j];
+		weights[j] = weight;
+	}
+
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * Lowest weight of the kept strings, which doesn't depend on the order the strings were offered in
+	 * @return The weight, or negative infinity if fewer strings were offered than are kept
+	 */
+	public double getLowestWeight() {
+		return size == 0 || size < ordinals.length ? Double.NEGATIVE_INFINITY : weights[0];
+	}
+
+	/**
+	 * Remove the kept strings, lowest ranked first
+	 * @return The ordinals of the strings
+	 */
+	public int[] drain() {
+		int[] out = new int[size];
+		for(int i = 0; i < out.length; i++) {
+			out[i] = ordinals[0];
+			swap(0, --size);
+			siftDown(0);
+		}
+		return out;
+	}
+}
@@ -0,0 +1,34 @@
+package database_templatefinder.templatefinder;
+
+import java.util.Collection;
+import java.util.Map;
+
+import org.apache.commons.collections4.trie.PatriciaTrie;
+
+/**
+ * A {@link WordIndex} backed by one of the weight tries in {@link App}. Changes to the trie are visible through it.
+ * @param <K>
+ */
+public class TrieWordIndex<K> implements WordIndex<K> {
+	
+	final PatriciaTrie<? extends Map<K, Double>> trie;
+	
+	public TrieWordIndex(PatriciaTrie<? extends Map<K, Double>> trie) {
+		this.trie = trie;
+	}
+
+	@Override
+	public Collection<String> getWordsWithPrefix(String prefix) {
+		return trie.prefixMap(prefix).keySet();
+	}
+
+	@Override
+	public boolean containsWord(String word) {
+		return trie.containsKey(word);
+	}
+
+	@Override
+	public Map<K, Double> getWeights(String word) {
+		return trie.get(word);
+	}
+}
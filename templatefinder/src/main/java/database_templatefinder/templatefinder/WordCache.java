@@ -0,0 +1,160 @@
+package database_templatefinder.templatefinder;
+
+import java.util.ArrayList;
+import java.util.Map.Entry;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+import com.google.gson.JsonObject;
+
+import database_templatefinder.templatefinder.TFIDFEngine.WordContributions;
+
+/**
+ * Bounded cache of the fuzzy matches and weight contributions of input words (see {@link WordContributions}), since the same
+ * words come up in almost every input. Safe to use from several threads.
+ * <p>
+ * The size of the cache is the total number of matches and contributions of its words. When it's full, the least frequently used
+ * words are evicted until it's 3/4 full, and the use counts of the remaining words are halved so words that were only used a lot
+ * in the past can be evicted later.
+ * <p>
+ * Each {@link QueryIndex} has its own cache, so the cache is dropped with the index when it changes.
+ */
+public class WordCache {
+
+	/**Default maximum size, in matches and contributions. Set with the argument wordcache=[size], 0 disables the cache*/
+	public static final long DEFAULT_MAX_SIZE = 1000000;
+
+	/**The index the contributions are computed from*/
+	final QueryIndex index;
+	final long maxSize;
+	final ConcurrentHashMap<String, CacheEntry> entries = new ConcurrentHashMap<>();
+	/**Guards size and evictions*/
+	final Object lock = new Object();
+	long size;
+
+	final LongAdder hits = new LongAdder();
+	final LongAdder misses = new LongAdder();
+	final LongAdder evictions = new LongAdder();
+
+	public WordCache(QueryIndex index, long maxSize) {
+		this.index = index;
+		this.maxSize = maxSize;
+	}
+
+	static class CacheEntry {
+		final WordContributions contributions;
+		final AtomicInteger uses = new AtomicInteger(1);
+
+		CacheEntry(WordContributions contributions) {
+			this.contributions = contributions;
+		}
+	}
+
+	/**
+	 * Get the contributions of a word, computing and caching them if they aren't cached
+	 * @param word - Word from {@link TFIDFEngine#getWordsInString(String)}
+	 * @return
+	 */
+	public WordContributions get(String word) {
+		CacheEntry entry = entries.get(word);
+		if(entry != null) {
+			hits.increment();
+			entry.uses.incrementAndGet();
+			return entry.contributions;
+		}
+		misses.increment();
+		WordContributions contributions = new WordContributions(word, index);
+		if(contributions.size() > maxSize) return contributions;
+
+		synchronized(lock) {
+			if(entries.containsKey(word)) return contributions;
+			// Evict before adding the word, so it isn't evicted right away for having been used only once
+			if(size + contributions.size() > maxSize) evict(contributions.size());
+			entries.put(word, new CacheEntry(contributions));
+			size += contributions.size();
+		}
+		return contributions;
+	}
+
+	/**
+	 * Evict the least frequently used words until the cache is 3/4 full with a word that is added next, and halve the use counts of
+	 * the rest. Must hold the lock.
+	 * @param added - Size of the word that is added
+	 */
+	void evict(long added) {
+		// The use counts keep changing while other threads get words, so they are sorted as they were when the eviction started
+		ArrayList<EvictionCandidate> sorted = new ArrayList<>(entries.size());
+		for(Entry<String, CacheEntry> entry : entries.entrySet()) sorted.add(new EvictionCandidate(entry.getKey(), entry.getValue()));
+		sorted.sort((a, b) -> Integer.compare(a.uses, b.uses));
+		for(EvictionCandidate candidate : sorted) {
+			if(size + added <= maxSize * 3 / 4) {
+				candidate.entry.uses.updateAndGet(uses -> Math.max(1, uses / 2));
+				continue;
+			}
+			entries.remove(candidate.word);
+			size -= candidate.entry.contributions.size();
+			evictions.increment();
+		}
+	}
+
+	static class EvictionCandidate {
+		final String word;
+		final CacheEntry entry;
+		final int uses;
+
+		EvictionCandidate(String word, CacheEntry entry) {
+			this.word = word;
+			this.entry = entry;
+			uses = entry.uses.get();
+		}
+	}
+
+	public long getHits() {
+		return hits.sum();
+	}
+
+	public long getMisses() {
+		return misses.sum();
+	}
+
+	public long getEvictions() {
+		return evictions.sum();
+	}
+
+	/**
+	 * Fraction of the lookups that found the word in the cache
+	 * @return
+	 */
+	public double getHitRate() {
+		long hits = getHits();
+		long lookups = hits + getMisses();
+		return lookups == 0 ? 0 : (double) hits / lookups;
+	}
+
+	public int getWordCount() {
+		return entries.size();
+	}
+
+	public long getSize() {
+		synchronized(lock) {
+			return size;
+		}
+	}
+
+	/**
+	 * Get the counters of the cache as a JSON object
+	 * @return
+	 */
+	public JsonObject getStats() {
+		JsonObject out = new JsonObject();
+		out.addProperty("words", getWordCount());
+		out.addProperty("size", getSize());
+		out.addProperty("maxSize", maxSize);
+		out.addProperty("hits", getHits());
+		out.addProperty("misses", getMisses());
+		out.addProperty("evictions", getEvictions());
+		out.addProperty("hitRate", getHitRate());
+		return out;
+	}
+}
@@ -0,0 +1,34 @@
+package database_templatefinder.templatefinder;
+
+import java.util.Collection;
+import java.util.Map;
+
+/**
+ * Read-only word -> key -> weight table used by the queries. The keys are template names or template strings.
+ * <p>
+ * Implemented by {@link TrieWordIndex} for the weights built in memory and by {@link MappedIndex} for an index file.
+ * @param <K>
+ */
+public interface WordIndex<K> {
+	
+	/**
+	 * Get all words in the table that start with the prefix, in sorted order
+	 * @param prefix
+	 * @return
+	 */
+	public Collection<String> getWordsWithPrefix(String prefix);
+	
+	/**
+	 * Check whether the word is in the table
+	 * @param word
+	 * @return
+	 */
+	public boolean containsWord(String word);
+	
+	/**
+	 * Get the weight of each key for a word
+	 * @param word
+	 * @return the weights, or null if the word is not in the table
+	 */
+	public Map<K, Double> getWeights(String word);
+}
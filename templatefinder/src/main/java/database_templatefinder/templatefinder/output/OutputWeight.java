@@ -38,6 +38,13 @@ public class OutputWeight extends Number {
 	
 	private double getFinalWeight() {
 		//System.out.println(getTemplateWeightContribution() + " " + getStringWeightInTemplateContribution() + " " + getStringWeightAcrossTemplatesContribution());
+		return getFinalWeight(stringWeightInTemplate, stringWeightAcrossTemplates, normalizedTemplateWeight, inTemplateWeightPortion);
+	}
+	
+	/**
+	 * The final weight of the parts, without creating an OutputWeight
+	 */
+	public static double getFinalWeight(double stringWeightInTemplate, double stringWeightAcrossTemplates, double normalizedTemplateWeight, double inTemplateWeightPortion) {
 		return normalizedTemplateWeight + stringWeightInTemplate * inTemplateWeightPortion + stringWeightAcrossTemplates * (1 - inTemplateWeightPortion);
 	}
 	
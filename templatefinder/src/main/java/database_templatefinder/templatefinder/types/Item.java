@@ -1,6 +1,7 @@
 package database_templatefinder.templatefinder.types;
 
 import java.util.ArrayList;
+import java.util.Iterator;
 import java.util.concurrent.atomic.AtomicInteger;
 
 import com.google.gson.JsonArray;
@@ -18,6 +19,13 @@ public interface Item {
 	 */
 	public ArrayList<TemplateString> getPossibilities();
 	
+	/**
+	 * Gets an iterator over the same Strings as {@link #getPossibilities()}, in the same order. Each String is only created when
+	 * it is reached, so the whole list never has to be in memory.
+	 * @return
+	 */
+	public Iterator<TemplateString> getPossibilityIterator();
+	
 	/**
 	 * Parse the appropriate type of item from template JSON
 	 * @param root
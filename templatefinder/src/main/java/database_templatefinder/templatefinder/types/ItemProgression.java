@@ -2,10 +2,11 @@ package database_templatefinder.templatefinder.types;
 
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
 import java.util.concurrent.atomic.AtomicInteger;
 
-import database_templatefinder.templatefinder.types.TemplateString.VarData;
-
 /**
  * An item that outputs the combination of the list of children chained together
  * @author Jason
@@ -42,21 +43,8 @@ public class ItemProgression implements Item {
 			ArrayList<TemplateString> newOut = new ArrayList<>();
 			for(TemplateString possibility : out) {
 				for(TemplateString childPossibility : childPossibilities) {
-					// Deep copy the child possibilities to change variable index
-					TemplateString childPossibilityCopy = childPossibility.getDeepCopy();
-					// Modify variable index
-					int currentLength = possibility.string.length();
-					for(VarData var : childPossibilityCopy.variables.values()) {
-						var.beginIndex += currentLength;
-						var.endIndex += currentLength;
-					}
-					
-					// Add all variables that currently exist in the base sentence we're adding the child to
-					childPossibilityCopy.variables.putAll(possibility.variables);
-					// Concatenate the string values
-					childPossibilityCopy.string = possibility.string + childPossibilityCopy.string;
-					
-					newOut.add(childPossibilityCopy);
+					// Concatenate the strings, moving the child's variables to their new index
+					newOut.add(possibility.append(childPossibility));
 				}
 			}
 			// Now we have the new list, replace current one with it so we can continue multiplying out
@@ -65,6 +53,88 @@ public class ItemProgression implements Item {
 		}
 		return out;
 	}
+	
+	@Override
+	public Iterator<TemplateString> getPossibilityIterator() {
+		// Same as getPossibilities(), an empty child throws away everything multiplied out before it
+		ArrayList<Iterator<TemplateString>> iterators = new ArrayList<>(content.size());
+		int first = 0;
+		for(int i = 0; i < content.size(); i++) {
+			Iterator<TemplateString> iter = content.get(i).getPossibilityIterator();
+			if(!iter.hasNext()) first = i + 1;
+			iterators.add(iter);
+		}
+		return new ProgressionIterator(content.subList(first, content.size()), iterators.subList(first, content.size()));
+	}
+	
+	/**
+	 * Iterates through the combinations of the children like an odometer, with the last child changing the fastest.
+	 * <p>
+	 * Only one iterator and one partially combined string per child is kept, so the memory used doesn't depend on the number of
+	 * combinations. In exchange, the children after the one that changed are iterated again from the start.
+	 */
+	static class ProgressionIterator implements Iterator<TemplateString> {
+		List<Item> children;
+		ArrayList<Iterator<TemplateString>> iterators;
+		/**The combination of the current strings of the children up to and including the index*/
+		ArrayList<TemplateString> combined;
+		boolean hasNext;
+		
+		/**
+		 * @param children
+		 * @param iterators - A new iterator for each child, none of which may be empty
+		 */
+		ProgressionIterator(List<Item> children, List<Iterator<TemplateString>> iterators) {
+			this.children = children;
+			this.iterators = new ArrayList<>(iterators);
+			combined = new ArrayList<>(children.size());
+			for(int i = 0; i < children.size(); i++) {
+				combined.add(null);
+				combine(i, this.iterators.get(i).next());
+			}
+			hasNext = !children.isEmpty();
+		}
+		
+		/**
+		 * Restarts the iterators of all children from the index onwards, and combines their first strings
+		 * @return false if a child has no strings at all
+		 */
+		boolean reset(int index) {
+			for(int i = index; i < children.size(); i++) {
+				Iterator<TemplateString> iter = children.get(i).getPossibilityIterator();
+				if(!iter.hasNext()) return false;
+				iterators.set(i, iter);
+				combine(i, iter.next());
+			}
+			return true;
+		}
+		
+		void combine(int index, TemplateString str) {
+			combined.set(index, index == 0 ? str : combined.get(index - 1).append(str));
+		}
+		
+		@Override
+		public boolean hasNext() {
+			return hasNext;
+		}
+		
+		@Override
+		public TemplateString next() {
+			if(!hasNext) throw new NoSuchElementException();
+			TemplateString out = combined.get(children.size() - 1);
+			
+			// Advance the last child that still has strings, and restart all children after it
+			hasNext = false;
+			for(int i = children.size() - 1; i >= 0; i--) {
+				if(iterators.get(i).hasNext()) {
+					combine(i, iterators.get(i).next());
+					hasNext = reset(i + 1);
+					break;
+				}
+			}
+			return out;
+		}
+	}
 
 	public ArrayList<Item> getContent() {
 		return content;
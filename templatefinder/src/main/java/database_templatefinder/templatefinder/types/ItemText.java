@@ -1,6 +1,8 @@
 package database_templatefinder.templatefinder.types;
 
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
 import java.util.concurrent.atomic.AtomicInteger;
 
 /**
@@ -28,5 +30,10 @@ public class ItemText implements Item {
 		out.add(new TemplateString(tf, str));
 		return out;
 	}
+	
+	@Override
+	public Iterator<TemplateString> getPossibilityIterator() {
+		return Collections.singletonList(new TemplateString(tf, str)).iterator();
+	}
 
 }
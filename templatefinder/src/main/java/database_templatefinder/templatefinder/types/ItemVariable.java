@@ -2,6 +2,9 @@ package database_templatefinder.templatefinder.types;
 
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
 import java.util.concurrent.atomic.AtomicInteger;
 
 import com.google.gson.JsonArray;
@@ -51,8 +54,7 @@ public class ItemVariable implements Item {
 			ArrayList<TemplateString> childPossibilities = item.getPossibilities();
 			for(TemplateString possibility : childPossibilities) {
 				// Add mention of the current variable into the item
-				possibility.addVariable(varID, 0, possibility.string.length(), currentChoiceIndex);
-				out.add(possibility);
+				out.add(possibility.withVariable(varID, 0, possibility.string.length(), currentChoiceIndex));
 			}
 			
 			// Increment index as we loop through the different variable choices
@@ -60,5 +62,32 @@ public class ItemVariable implements Item {
 		}
 		return out;
 	}
+	
+	@Override
+	public Iterator<TemplateString> getPossibilityIterator() {
+		int varID = tf.variableData.indexOf(this);
+		return new Iterator<TemplateString>() {
+			int currentChoiceIndex = -1;
+			Iterator<TemplateString> current = Collections.emptyIterator();
+			
+			@Override
+			public boolean hasNext() {
+				// Move on to the next choice until one that still has strings is found
+				while(!current.hasNext() && currentChoiceIndex < content.size() - 1) {
+					currentChoiceIndex ++;
+					current = content.get(currentChoiceIndex).getPossibilityIterator();
+				}
+				return current.hasNext();
+			}
+			
+			@Override
+			public TemplateString next() {
+				if(!hasNext()) throw new NoSuchElementException();
+				TemplateString possibility = current.next();
+				// Add mention of the current variable into the item
+				return possibility.withVariable(varID, 0, possibility.string.length(), currentChoiceIndex);
+			}
+		};
+	}
 
 }
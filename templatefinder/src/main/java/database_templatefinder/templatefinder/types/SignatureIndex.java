@@ -0,0 +1,162 @@
+package database_templatefinder.templatefinder.types;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+
+/**
+ * Index of the strings of a template format by their variable choices ("signature"). Used to find the string of a format that
+ * corresponds to a string of another format of the same template.
+ * <p>
+ * The best match of a string only depends on its choices for the variables this format has (its "projection"), since those are
+ * the only ones the strings of the format can share with it. If a string of the format has exactly that projection as its
+ * signature, the best matches are the strings with all of its choices. That's just this string when no string has more
+ * variables, otherwise the first of them is found by stepping through the strings with each choice together. If no string has
+ * the projection, the strings with a conflicting choice are cleared and the matches of the rest are counted. Either way the match
+ * is kept for the next string with the same projection.
+ */
+public class SignatureIndex {
+	/**The first string with each distinct signature, in the original order*/
+	ArrayList<TemplateString> strings = new ArrayList<>();
+	/**Signature -> index of the string with exactly this signature*/
+	HashMap<ArrayList<Integer>, Integer> bySignature = new HashMap<>();
+	/**Variable ID and choice -> strings that made this choice*/
+	HashMap<Long, BitSet> byChoice = new HashMap<>();
+	/**Variable ID -> strings that have this variable*/
+	HashMap<Integer, BitSet> byVariable = new HashMap<>();
+	/**Most variables any string has*/
+	int maxVariableCount;
+	/**Projection -> best match found for it, which can be null*/
+	HashMap<ArrayList<Integer>, TemplateString> found = new HashMap<>();
+
+	/**
+	 * Create an index of the strings. Strings with the same signature as an earlier one are left out, since the earlier one would
+	 * always be picked instead of them.
+	 * @param allStrings
+	 */
+	public SignatureIndex(Iterable<TemplateString> allStrings) {
+		for(TemplateString str : allStrings) {
+			ArrayList<Integer> signature = new ArrayList<>(str.getVariableCount() * 2);
+			for(int i = 0; i < str.getVariableCount(); i++) {
+				signature.add(str.getVariableID(i));
+				signature.add(str.getVariableChoice(i));
+			}
+			if(bySignature.containsKey(signature)) continue;
+
+			int index = strings.size();
+			strings.add(str);
+			bySignature.put(signature, index);
+			maxVariableCount = Math.max(maxVariableCount, str.getVariableCount());
+			for(int i = 0; i < str.getVariableCount(); i++) {
+				getOrCreate(byChoice, key(str.getVariableID(i), str.getVariableChoice(i))).set(index);
+				getOrCreate(byVariable, str.getVariableID(i)).set(index);
+			}
+		}
+	}
+
+	/**
+	 * Find the string with the most variable choices in common with the given string, skipping any string that made a different
+	 * choice for a variable that both strings have. If several strings have the same number of matches, the first one is picked.
+	 * @param str
+	 * @return the best match, or null if every string has a conflicting choice
+	 */
+	public TemplateString findBestMatch(TemplateString str) {
+		if(strings.isEmpty()) return null;
+		ArrayList<Integer> projection = getProjection(str);
+		if(found.containsKey(projection)) return found.get(projection);
+
+		TemplateString match;
+		// No shared variables, so every string matches nothing and the first one wins
+		if(projection.isEmpty()) match = strings.get(0);
+		else if(bySignature.containsKey(projection)) {
+			// Any other string with all of the choices has more variables
+			if(projection.size() / 2 == maxVariableCount) match = strings.get(bySignature.get(projection));
+			else match = strings.get(findFirstWithChoices(projection));
+		}
+		else match = search(projection);
+		found.put(projection, match);
+		return match;
+	}
+
+	/**
+	 * Get the choices of a string for the variables of this format, in the same form as the signatures
+	 * @param str
+	 * @return
+	 */
+	ArrayList<Integer> getProjection(TemplateString str) {
+		ArrayList<Integer> projection = new ArrayList<>();
+		for(int i = 0; i < str.getVariableCount(); i++) {
+			if(!byVariable.containsKey(str.getVariableID(i))) continue;
+			projection.add(str.getVariableID(i));
+			projection.add(str.getVariableChoice(i));
+		}
+		return projection;
+	}
+
+	/**
+	 * Find the first string with all choices of a projection. There must be one.
+	 * @param projection
+	 * @return its index
+	 */
+	int findFirstWithChoices(ArrayList<Integer> projection) {
+		int choiceCount = projection.size() / 2;
+		BitSet[] sets = new BitSet[choiceCount];
+		for(int i = 0; i < choiceCount; i++) sets[i] = byChoice.get(key(projection.get(i * 2), projection.get(i * 2 + 1)));
+		// Move to the next string of each choice in turn until all of them agree
+		int candidate = 0;
+		int agreeing = 0;
+		for(int i = 0; agreeing < choiceCount; i = (i + 1) % choiceCount) {
+			int next = sets[i].nextSetBit(candidate);
+			if(next == candidate) agreeing++;
+			else {
+				candidate = next;
+				agreeing = 1;
+			}
+		}
+		return candidate;
+	}
+
+	/**
+	 * Find the best match of a projection that no string has exactly
+	 * @param projection
+	 * @return
+	 */
+	TemplateString search(ArrayList<Integer> projection) {
+		// Remove strings that have a variable of the projection but made a different choice
+		BitSet compatible = new BitSet(strings.size());
+		compatible.set(0, strings.size());
+		for(int i = 0; i < projection.size(); i += 2) {
+			BitSet conflicting = (BitSet) byVariable.get(projection.get(i)).clone();
+			BitSet sameChoice = byChoice.get(key(projection.get(i), projection.get(i + 1)));
+			if(sameChoice != null) conflicting.andNot(sameChoice);
+			compatible.andNot(conflicting);
+		}
+		if(compatible.isEmpty()) return null;
+
+		// Count the matching choices of the remaining strings
+		int[] matches = new int[strings.size()];
+		for(int i = 0; i < projection.size(); i += 2) {
+			BitSet sameChoice = byChoice.get(key(projection.get(i), projection.get(i + 1)));
+			if(sameChoice == null) continue;
+			for(int j = sameChoice.nextSetBit(0); j >= 0; j = sameChoice.nextSetBit(j + 1)) {
+				matches[j]++;
+			}
+		}
+
+		int best = -1;
+		for(int j = compatible.nextSetBit(0); j >= 0; j = compatible.nextSetBit(j + 1)) {
+			if(best == -1 || matches[j] > matches[best]) best = j;
+		}
+		return strings.get(best);
+	}
+
+	static long key(int varID, int choice) {
+		return ((long) varID << 32) | (choice & 0xFFFFFFFFL);
+	}
+
+	static <K> BitSet getOrCreate(HashMap<K, BitSet> map, K key) {
+		BitSet set = map.get(key);
+		if(set == null) map.put(key, set = new BitSet());
+		return set;
+	}
+}
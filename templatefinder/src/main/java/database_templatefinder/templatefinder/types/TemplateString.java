@@ -1,8 +1,7 @@
 package database_templatefinder.templatefinder.types;
 
 import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.Objects;
+import java.util.Arrays;
 
 import com.google.gson.Gson;
 import com.google.gson.GsonBuilder;
@@ -13,57 +12,213 @@ import com.google.gson.JsonPrimitive;
 import database_templatefinder.templatefinder.App;
 
 /**
- * A string result generated from a template
+ * A string result generated from a template.
+ * <p>
+ * Template strings are immutable. The variables are stored in one int array sorted by variable ID, which is shared between
+ * strings whenever it doesn't change.
  * @author Jason
  *
  */
 public class TemplateString {
-	public TemplateFormat tf;
-	public HashMap<Integer, VarData> variables = new HashMap<>();
-	public String string;
+	public final TemplateFormat tf;
+	public final String string;
+	/**ID, begin index, end index and choice of each variable, sorted by ID*/
+	final int[] variables;
+	/**Same value as string.hashCode(), but calculated from the parts when strings are appended*/
+	final int stringHash;
+	
+	static final int VAR_SIZE = 4;
+	static final int[] NO_VARIABLES = new int[0];
 	
 	/**
 	 * Creates a template string with no variables
 	 * @param string
 	 */
 	public TemplateString(TemplateFormat tf, String string) {
+		this(tf, string, NO_VARIABLES, string.hashCode());
+	}
+	
+	/**
+	 * Creates a template string from variable data saved with {@link #getVariableData()}
+	 * @param variables - ID, begin index, end index and choice of each variable, sorted by ID
+	 */
+	public TemplateString(TemplateFormat tf, String string, int[] variables) {
+		this(tf, string, variables.length == 0 ? NO_VARIABLES : variables, string.hashCode());
+	}
+	
+	TemplateString(TemplateFormat tf, String string, int[] variables, int stringHash) {
 		this.tf = tf;
 		this.string = string;
+		this.variables = variables;
+		this.stringHash = stringHash;
 	}
 	
 	/**
-	 * Adds a variable to this template string
+	 * Returns a copy of this template string with a variable added (or replaced if it already exists)
 	 * @param varID
 	 * @param beginIndex
 	 * @param endIndex
 	 * @param choice
 	 */
-	public void addVariable(int varID, int beginIndex, int endIndex, int choice) {
-		variables.put(varID, new VarData(varID, beginIndex, endIndex, choice));
+	public TemplateString withVariable(int varID, int beginIndex, int endIndex, int choice) {
+		int index = indexOfVariable(varID);
+		int[] newVariables;
+		int pos;
+		if(index >= 0) {
+			newVariables = variables.clone();
+			pos = index * VAR_SIZE;
+		}
+		else {
+			// Insert at the sorted position
+			int insertAt = -index - 1;
+			newVariables = new int[variables.length + VAR_SIZE];
+			pos = insertAt * VAR_SIZE;
+			System.arraycopy(variables, 0, newVariables, 0, pos);
+			System.arraycopy(variables, pos, newVariables, pos + VAR_SIZE, variables.length - pos);
+		}
+		newVariables[pos] = varID;
+		newVariables[pos + 1] = beginIndex;
+		newVariables[pos + 2] = endIndex;
+		newVariables[pos + 3] = choice;
+		return new TemplateString(tf, string, newVariables, stringHash);
+	}
+	
+	/**
+	 * Creates a new template string from this string followed by another one. The variables of the other string are
+	 * moved to their position in the new string.
+	 * @param next
+	 * @return
+	 */
+	public TemplateString append(TemplateString next) {
+		int currentLength = string.length();
+		int hash = stringHash * pow31(next.string.length()) + next.stringHash;
+		
+		int[] newVariables;
+		if(next.variables.length == 0) {
+			newVariables = variables;
+		}
+		else if(variables.length == 0 && currentLength == 0) {
+			newVariables = next.variables;
+		}
+		else {
+			// Merge the two sorted arrays, variables that already exist in this string take priority
+			int[] merged = new int[variables.length + next.variables.length];
+			int i = 0, j = 0, k = 0;
+			while(i < variables.length || j < next.variables.length) {
+				if(j >= next.variables.length || (i < variables.length && variables[i] <= next.variables[j])) {
+					if(j < next.variables.length && variables[i] == next.variables[j]) j += VAR_SIZE;
+					System.arraycopy(variables, i, merged, k, VAR_SIZE);
+					i += VAR_SIZE;
+				}
+				else {
+					merged[k] = next.variables[j];
+					merged[k + 1] = next.variables[j + 1] + currentLength;
+					merged[k + 2] = next.variables[j + 2] + currentLength;
+					merged[k + 3] = next.variables[j + 3];
+					j += VAR_SIZE;
+				}
+				k += VAR_SIZE;
+			}
+			newVariables = k == merged.length ? merged : Arrays.copyOf(merged, k);
+		}
+		return new TemplateString(tf, string + next.string, newVariables, hash);
+	}
+	
+	/**
+	 * 31 to the power of n with int overflow, the factor String.hashCode() multiplies the hash of a string by for every character
+	 * appended to it
+	 */
+	static int pow31(int n) {
+		int out = 1;
+		int base = 31;
+		while(n > 0) {
+			if((n & 1) != 0) out *= base;
+			base *= base;
+			n >>= 1;
+		}
+		return out;
 	}
 	
 	/**
-	 * Gets deep copy of self
+	 * Template strings are immutable, so this just returns the string itself
 	 * @return
 	 */
 	public TemplateString getDeepCopy() {
-		TemplateString copy = new TemplateString(tf, string);
-		for(VarData var : variables.values()) {
-			copy.addVariable(var.id, var.beginIndex, var.endIndex, var.choice);
+		return this;
+	}
+	
+	/**
+	 * Get a copy of the ID, begin index, end index and choice of each variable, sorted by ID
+	 */
+	public int[] getVariableData() {
+		return variables.clone();
+	}
+	
+	/**
+	 * Get the number of variables in this string
+	 */
+	public int getVariableCount() {
+		return variables.length / VAR_SIZE;
+	}
+	
+	/**
+	 * Get the ID of the variable at the index (variables are sorted by ID)
+	 */
+	public int getVariableID(int index) {
+		return variables[index * VAR_SIZE];
+	}
+	
+	public int getVariableBeginIndex(int index) {
+		return variables[index * VAR_SIZE + 1];
+	}
+	
+	public int getVariableEndIndex(int index) {
+		return variables[index * VAR_SIZE + 2];
+	}
+	
+	public int getVariableChoice(int index) {
+		return variables[index * VAR_SIZE + 3];
+	}
+	
+	/**
+	 * Get the choice made for the variable with this ID
+	 * @param varID
+	 * @return the choice, or -1 if this string doesn't have the variable
+	 */
+	public int getChoice(int varID) {
+		int index = indexOfVariable(varID);
+		return index >= 0 ? getVariableChoice(index) : -1;
+	}
+	
+	/**
+	 * Binary search for the variable with this ID
+	 * @return the index of the variable, or (-(insertion point) - 1) if it doesn't exist
+	 */
+	int indexOfVariable(int varID) {
+		int low = 0;
+		int high = getVariableCount() - 1;
+		while(low <= high) {
+			int mid = (low + high) >>> 1;
+			int id = getVariableID(mid);
+			if(id < varID) low = mid + 1;
+			else if(id > varID) high = mid - 1;
+			else return mid;
 		}
-		return copy;
+		return -(low + 1);
 	}
 	
 	// Implementing hashCode and equals because this object needs to be used in HashSets
 	@Override
 	public int hashCode() {
-		return this.string.hashCode();
+		return stringHash;
 	}
 	
 	@Override
 	public boolean equals(Object o) {
+		if(o == this) return true;
 		if(o == null || !(o instanceof TemplateString)) return false;
-		return Objects.equals(this.string, ((TemplateString) o).string) && Objects.equals(this.variables, ((TemplateString) o).variables);
+		TemplateString other = (TemplateString) o;
+		return stringHash == other.stringHash && Arrays.equals(variables, other.variables) && string.equals(other.string);
 	}
 	
 	@Override
@@ -74,35 +229,25 @@ public class TemplateString {
 	public String toImportantInfoString() {
 		String string = this.string.replace("\n", " ");
 		String trimmedString = string.length() >= 60 ? (string.substring(0,60) + "...") : string;
-		return trimmedString + "[" + tf.getTemplateName() + "]" + variables;
+		return trimmedString + "[" + tf.getTemplateName() + "]" + getVariableString();
 	}
 	
-	public static class VarData {
-		public int id;
-		public int beginIndex;
-		public int endIndex;
-		public int choice;
-		
-		public VarData(int id, int beginIndex, int endIndex, int choice) {
-			this.id = id; this.beginIndex = beginIndex; this.endIndex = endIndex; this.choice = choice;
-		}
-		
-		@Override
-		public boolean equals(Object o) {
-			if(o == null || !(o instanceof VarData)) return false;
-			VarData d = (VarData) o;
-			return id == d.id && beginIndex == d.beginIndex && endIndex == d.endIndex && choice == d.choice;
-		}
-		
-		public String toString() {
-			return String.valueOf(choice);
+	/**
+	 * Get the choices of the variables in the form {id=choice, id=choice}
+	 */
+	public String getVariableString() {
+		StringBuilder builder = new StringBuilder("{");
+		for(int i = 0; i < getVariableCount(); i++) {
+			if(i > 0) builder.append(", ");
+			builder.append(getVariableID(i)).append('=').append(getVariableChoice(i));
 		}
+		return builder.append('}').toString();
 	}
 	
 	public JsonArray getJsonVariableArray() {
 		JsonArray varArray = new JsonArray();
-		for(VarData variable : variables.values()) {
-			int index = variable.id;
+		for(int i = 0; i < getVariableCount(); i++) {
+			int index = getVariableID(i);
 			// Expand list until target index is reached, then set variable
 			while(varArray.size() <= index) {
 				varArray.add(-1);
@@ -110,7 +255,7 @@ public class TemplateString {
 			
 			JsonObject varObject = new JsonObject();
 			varObject.add("index", new JsonPrimitive(index));
-			varObject.add("choice", new JsonPrimitive(variable.choice));
+			varObject.add("choice", new JsonPrimitive(getVariableChoice(i)));
 			varObject.add("dropdown", tf.variableData.get(index).variableRoot);
 			
 			varArray.set(index, varObject);
@@ -0,0 +1,931 @@
+package database_templatefinder.templatefinder;
+
+import java.io.InputStreamReader;
+import java.text.BreakIterator;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map.Entry;
+import java.util.Random;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+
+import database_templatefinder.templatefinder.output.OutputSection;
+import database_templatefinder.templatefinder.output.OutputWeight;
+import database_templatefinder.templatefinder.types.SignatureIndex;
+import database_templatefinder.templatefinder.types.Template;
+import database_templatefinder.templatefinder.types.TemplateFormat;
+import database_templatefinder.templatefinder.types.TemplateString;
+
+/**
+ * Simple timing benchmarks for the loading steps. Uses the local templates.json and prints the results to the console.
+ * <p>
+ * Pass the names of the benchmarks to run as arguments, or nothing to run all of them.
+ * <p>
+ * Kept with the test sources so it isn't packaged with the application, run it on the test classpath.
+ */
+public class Benchmark {
+
+	public static final int WARMUP_ROUNDS = 3;
+	public static final int ROUNDS = 5;
+	/**Number of renamed copies of each template for the template weight benchmark*/
+	public static final int TEMPLATE_COPIES = 20;
+	
+	/**Number of times the sample sentences are scored in each round of the query benchmark*/
+	public static final int QUERY_REPEATS = 20;
+	
+	// Lowest portion of the suggestions (with the same weights) and of the most likely strings of scoring every string that a cascade
+	// setting must still find
+	public static final double CASCADE_MIN_SUGGESTION_RECALL = 0.99;
+	public static final double CASCADE_MIN_MOST_LIKELY_RECALL = 1;
+	
+	/**Keeps results of the timed loops in use so they aren't optimized away*/
+	static volatile int sink;
+	
+	public static final String[] SAMPLE_SENTENCES = {
+			"Patients must not have a known hypersensitivity to chinese hamster ovary cell products.",
+			"Patients must have serum albumin greater than 3 g/dL.",
+			"Patients must not be pregnant or breastfeeding.",
+			"Participants with a history of allergic reactions to compounds of similar chemical composition are excluded.",
+			"Women of child-bearing potential must have a negative pregnancy test within 7 days of registration.",
+			"The patient must have adequate organ and marrow function as defined below: leukocytes 3,000/mcL; absolute neutrophil count 1,500/mcL; haemoglobin normal."
+	};
+
+	public static void main(String[] args) {
+		App.loadWordLists();
+		ArrayList<Template> templates = loadLocalTemplates();
+		System.out.println("Loaded " + templates.size() + " templates.");
+
+		boolean all = args.length == 0;
+		for(String arg : args) {
+			if(arg.equals("all")) all = true;
+		}
+		if(all || contains(args, "idf")) benchmarkWithinTemplateIdf(templates);
+		if(all || contains(args, "alignment")) benchmarkAlignment(templates);
+		if(all || contains(args, "startup")) benchmarkStartupScaling();
+		if(all || contains(args, "templateweight")) benchmarkTemplateWeight(TEMPLATE_COPIES);
+		if(all || contains(args, "query")) benchmarkQuery();
+		if(all || contains(args, "fuzzy")) benchmarkFuzzyCandidates();
+		if(all || contains(args, "wordcache")) benchmarkWordCache();
+		if(all || contains(args, "tokenizer")) benchmarkTokenizer();
+		if(all || contains(args, "scores")) benchmarkScores();
+		if(all || contains(args, "pruning")) benchmarkPruning();
+		if(all || contains(args, "cascade")) benchmarkCascade();
+		if(all || contains(args, "sentences")) benchmarkSentences();
+		if(all || contains(args, "duplicates")) benchmarkDuplicateSentences();
+	}
+
+	/**
+	 * Read the local templates.json
+	 * @return
+	 */
+	public static JsonArray loadLocalTemplatesJson() {
+		return new JsonParser().parse(new InputStreamReader(App.class.getResourceAsStream("/templates.json"))).getAsJsonArray();
+	}
+	
+	/**
+	 * Parse all templates in the local templates.json
+	 * @return
+	 */
+	public static ArrayList<Template> loadLocalTemplates() {
+		JsonArray json = loadLocalTemplatesJson();
+		ArrayList<Template> templates = new ArrayList<>();
+		for(JsonElement tElement : json) {
+			if(tElement.isJsonObject()) templates.add(App.parseTemplate(tElement.getAsJsonObject()));
+		}
+		return templates;
+	}
+
+	/**
+	 * Compares the within-template idf computed from the word map sizes against scanning every string of the template for every word.
+	 */
+	public static void benchmarkWithinTemplateIdf(ArrayList<Template> templates) {
+		// Expand templates and get tf once, since both ways start from the same tf maps
+		ArrayList<HashMap<TemplateString, HashMap<String, Double>>> allStringWeights = new ArrayList<>();
+		int stringCount = 0;
+		for(Template t : templates) {
+			HashMap<TemplateString, HashMap<String, Double>> stringWeights = new HashMap<>();
+			for(HashMap<String, TemplateString> localeMapForString : TFIDFEngine.expandTemplate(t, App.BASE_FORMAT).values()) {
+				TemplateString tStr = localeMapForString.get(App.BASE_FORMAT);
+				stringWeights.put(tStr, TFIDFEngine.getStringWeights(tStr));
+			}
+			allStringWeights.add(stringWeights);
+			stringCount += stringWeights.size();
+		}
+		System.out.println("Within-template idf over " + stringCount + " expanded strings:");
+
+		for(int round = 0; round < WARMUP_ROUNDS + ROUNDS; round++) {
+			boolean print = round >= WARMUP_ROUNDS;
+
+			// Scan every string for every word
+			long startTime = System.nanoTime();
+			for(HashMap<TemplateString, HashMap<String, Double>> stringWeights : allStringWeights) {
+				HashMap<String, HashMap<TemplateString, Double>> byWord = TFIDFEngine.createStringWeightMapByWord(stringWeights);
+				for(Entry<String, HashMap<TemplateString, Double>> entry : byWord.entrySet()) {
+					int appearances = 0;
+					for(TemplateString tStr : stringWeights.keySet()) {
+						if(searchWordInTemplateString(tStr, entry.getKey())) appearances++;
+					}
+					double idf = Math.log(stringWeights.size() * 1.0 / (1 + appearances));
+					for(Entry<TemplateString, Double> tEntry : entry.getValue().entrySet()) {
+						tEntry.setValue(tEntry.getValue() * idf * TFIDFEngine.STRING_WEIGHT_WITHIN_TEMPLATE_MULTIPLIER);
+					}
+				}
+			}
+			long scanTime = System.nanoTime() - startTime;
+
+			// Use the word map sizes
+			startTime = System.nanoTime();
+			for(HashMap<TemplateString, HashMap<String, Double>> stringWeights : allStringWeights) {
+				HashMap<String, HashMap<TemplateString, Double>> byWord = TFIDFEngine.createStringWeightMapByWord(stringWeights);
+				TFIDFEngine.tfidfStringWeightsWithinTemplate(byWord, stringWeights.size());
+			}
+			long mapTime = System.nanoTime() - startTime;
+
+			if(print) System.out.println("  Scan: " + scanTime / 1000000 + "ms | Word map size: " + mapTime / 1000000 + "ms");
+		}
+	}
+
+	/**
+	 * The scan the within-template idf used to do: search for a word in a string, ignoring every character that isn't a letter or number
+	 * @param tStr
+	 * @param word
+	 * @return
+	 */
+	static boolean searchWordInTemplateString(TemplateString tStr, String word) {
+		String text = tStr.string;
+		int currentIndex = 0;
+		for(int j = 0; j < text.length() && currentIndex < word.length(); j++) {
+			char c = text.charAt(j);
+			// Check uppercase
+			if(c >= 'A' && c <= 'Z') c = (char) (c + 'a' - 'A');
+			// Check if equal to current word char
+			if(c == word.charAt(currentIndex)) {
+				// If last index then the word exists in template
+				if(currentIndex == word.length() - 1) return true;
+				// Otherwise add one to index
+				currentIndex++;
+				continue;
+			}
+			if(currentIndex > 0 && ((c >= 'A' && c <= 'Z') || (c >= 'a' && c <= 'z') || (c >= '0' && c <= '9'))) {
+				// If the char was alphanumerical but unequal, the word train was broken..
+				currentIndex = 0;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Compares aligning the strings of another format to the base strings with {@link SignatureIndex} against scanning every string
+	 * of the other format for every base string, the way expandTemplate used to. The bundled templates only have an English format,
+	 * so the other formats are copies of it: the same strings, the strings shuffled, and the strings shuffled and thinned out with
+	 * some of their variables removed, aligned both ways. Checks that both give the same match for every string, and counts the
+	 * base strings the old scan left without a match because it gave up on the whole format at the first conflicting string.
+	 */
+	public static void benchmarkAlignment(ArrayList<Template> templates) {
+		Random random = new Random(0);
+		ArrayList<ArrayList<TemplateString>> bases = new ArrayList<>();
+		ArrayList<ArrayList<TemplateString>> others = new ArrayList<>();
+		for(Template t : templates) {
+			TemplateFormat base = t.get(App.BASE_FORMAT);
+			if(base == null) continue;
+			ArrayList<TemplateString> strings = base.baseProgression.getPossibilities();
+			ArrayList<TemplateString> shuffled = new ArrayList<>(strings);
+			Collections.shuffle(shuffled, random);
+			ArrayList<TemplateString> thinned = new ArrayList<>();
+			for(TemplateString str : shuffled) {
+				if(random.nextInt(3) > 0) thinned.add(withoutSomeVariables(str, random));
+			}
+			bases.add(strings);
+			others.add(strings);
+			bases.add(strings);
+			others.add(shuffled);
+			bases.add(strings);
+			others.add(thinned);
+			bases.add(thinned);
+			others.add(strings);
+		}
+		
+		int baseStrings = 0;
+		int different = 0;
+		int unmatchedByOldScan = 0;
+		for(int i = 0; i < bases.size(); i++) {
+			SignatureIndex index = new SignatureIndex(others.get(i));
+			for(TemplateString str : bases.get(i)) {
+				baseStrings++;
+				TemplateString match = findBestMatchByScan(str, others.get(i), false);
+				if(match != index.findBestMatch(str)) different++;
+				if(match != null && findBestMatchByScan(str, others.get(i), true) == null) unmatchedByOldScan++;
+			}
+		}
+		System.out.println("Aligning " + baseStrings + " base strings of " + bases.size() + " formats, " + different + " different matches, "
+				+ unmatchedByOldScan + " left unmatched by the old scan:");
+		if(different > 0) System.out.println("Different matches!");
+		
+		for(int round = 0; round < WARMUP_ROUNDS + ROUNDS; round++) {
+			boolean print = round >= WARMUP_ROUNDS;
+			// The copies with the same variables as the base strings, then the thinned ones
+			long[] scanTimes = new long[2];
+			long[] indexTimes = new long[2];
+			int found = 0;
+			for(int i = 0; i < bases.size(); i++) {
+				int kind = i % 4 < 2 ? 0 : 1;
+				long startTime = System.nanoTime();
+				for(TemplateString str : bases.get(i)) {
+					if(findBestMatchByScan(str, others.get(i), false) != null) found++;
+				}
+				scanTimes[kind] += System.nanoTime() - startTime;
+				
+				startTime = System.nanoTime();
+				SignatureIndex index = new SignatureIndex(others.get(i));
+				for(TemplateString str : bases.get(i)) {
+					if(index.findBestMatch(str) != null) found++;
+				}
+				indexTimes[kind] += System.nanoTime() - startTime;
+			}
+			sink = found;
+			
+			if(print) System.out.println("  Same variables: scan " + scanTimes[0] / 1000000 + "ms, index " + indexTimes[0] / 1000000 + "ms | Thinned: scan "
+					+ scanTimes[1] / 1000000 + "ms, index " + indexTimes[1] / 1000000 + "ms");
+		}
+	}
+	
+	/**
+	 * The string with each variable removed with a chance of 1/3
+	 */
+	static TemplateString withoutSomeVariables(TemplateString str, Random random) {
+		int[] variables = str.getVariableData();
+		int[] kept = new int[variables.length];
+		int size = 0;
+		for(int i = 0; i < variables.length; i += 4) {
+			if(random.nextInt(3) == 0) continue;
+			System.arraycopy(variables, i, kept, size, 4);
+			size += 4;
+		}
+		return new TemplateString(str.tf, str.string, Arrays.copyOf(kept, size));
+	}
+	
+	/**
+	 * How expandTemplate used to align a base string: scan the strings of the other format for the most variable matches, the first
+	 * one winning ties
+	 * @param baseString
+	 * @param otherStrings
+	 * @param skipFormat - Give up at the first string with a conflicting choice, like the old scan did, instead of skipping the string
+	 * @return
+	 */
+	static TemplateString findBestMatchByScan(TemplateString baseString, ArrayList<TemplateString> otherStrings, boolean skipFormat) {
+		int maxMatches = -1;
+		TemplateString currentMatch = null;
+		outer:
+		for(TemplateString otherString : otherStrings) {
+			int matches = 0;
+			for(int i = 0; i < otherString.getVariableCount(); i++) {
+				int baseChoice = baseString.getChoice(otherString.getVariableID(i));
+				if(baseChoice == -1) continue; // If the variable simply doesn't exist in the base string do nothing
+				if(baseChoice != otherString.getVariableChoice(i)) {
+					if(skipFormat) return null;
+					continue outer; // Variable is mismatched so skip
+				}
+				matches++;
+			}
+			if(matches > maxMatches) { // Check for most matches
+				currentMatch = otherString;
+				maxMatches = matches;
+			}
+		}
+		return currentMatch;
+	}
+	
+	/**
+	 * Builds the whole index with 1, 2, 4... threads up to the number of processors.
+	 */
+	public static void benchmarkStartupScaling() {
+		JsonArray json = loadLocalTemplatesJson();
+		int processors = Runtime.getRuntime().availableProcessors();
+		ArrayList<Integer> threadCounts = new ArrayList<>();
+		for(int threads = 1; threads < processors; threads *= 2) threadCounts.add(threads);
+		threadCounts.add(processors);
+		
+		HashMap<Integer, Long> bestTimes = new HashMap<>();
+		for(int round = 0; round < WARMUP_ROUNDS + ROUNDS; round++) {
+			for(int threads : threadCounts) {
+				App.clearIndex();
+				long startTime = System.nanoTime();
+				new IndexBuilder(threads).build(json);
+				long time = System.nanoTime() - startTime;
+				if(round >= WARMUP_ROUNDS && (!bestTimes.containsKey(threads) || time < bestTimes.get(threads))) bestTimes.put(threads, time);
+			}
+		}
+		
+		System.out.println("Startup scaling (best of " + ROUNDS + "):");
+		for(int threads : threadCounts) {
+			System.out.println("  " + threads + " threads: " + bestTimes.get(threads) / 1000000 + "ms");
+		}
+	}
+
+	/**
+	 * Compares looping over every template for every word (the old way) against only visiting the templates in the word's postings,
+	 * on the local templates with a number of renamed copies each. Only the template weights are built, since the strings are not
+	 * needed.
+	 * @param copies
+	 */
+	public static void benchmarkTemplateWeight(int copies) {
+		// Enlarge the template set
+		App.clearIndex();
+		for(JsonElement tElement : loadLocalTemplatesJson()) {
+			if(!tElement.isJsonObject()) continue;
+			for(int i = 0; i < copies; i++) {
+				JsonObject tObj = tElement.getAsJsonObject().deepCopy();
+				tObj.addProperty("name", tObj.get("name").getAsString() + " #" + i);
+				// Copies get their own words, so most words are only in a few templates like in a real large template set
+				if(i > 0) {
+					for(Entry<String, JsonElement> tfEntry : tObj.entrySet()) {
+						if(tfEntry.getValue().isJsonObject()) addSuffixToWords(tfEntry.getValue().getAsJsonObject(), "qz" + Integer.toString(i, 26).replace('0', 'x'));
+					}
+				}
+				App.templates.add(App.parseTemplate(tObj));
+			}
+		}
+		
+		// Template weights only
+		ArrayList<TemplateFormat> baseFormats = TFIDFEngine.listForFormat(App.templates, App.BASE_FORMAT);
+		HashMap<String, Integer> appearances = TFIDFEngine.getTemplateWordAppearances(baseFormats);
+		for(TemplateFormat baseFormat : baseFormats) {
+			HashMap<String, Double> wordWeights = TFIDFEngine.getTemplateWeights(baseFormat);
+			TFIDFEngine.tfidfTemplateWeights(wordWeights, appearances, baseFormats.size());
+			for(Entry<String, Double> wordEntry : wordWeights.entrySet()) {
+				if(!App.templateWordWeights.containsKey(wordEntry.getKey())) App.templateWordWeights.put(wordEntry.getKey(), new HashMap<String, Double>());
+				App.templateWordWeights.get(wordEntry.getKey()).put(baseFormat.getTemplateName(), wordEntry.getValue());
+			}
+		}
+		App.templateWordWeightsByOrdinal.putAll(TFIDFEngine.getTemplateWeightsByOrdinal(App.templateWordWeights, App.templates));
+		App.addToReverseTree(App.templateWordWeights);
+		System.out.println("Template weight accumulation of " + SAMPLE_SENTENCES.length + " sentences with " + App.templates.size() + " templates and "
+				+ App.templateWordWeights.size() + " words:");
+		
+		// Fuzzy matching is the same both ways, so only do it once
+		ArrayList<HashMap<String, Double>> candidates = new ArrayList<>();
+		for(String sentence : SAMPLE_SENTENCES) {
+			for(String word : TFIDFEngine.getWordsInString(sentence)) candidates.add(TFIDFEngine.lenientWordSimilarityMap(word, App.index.templateWordIndex));
+		}
+		
+		for(int round = 0; round < WARMUP_ROUNDS + ROUNDS; round++) {
+			boolean print = round >= WARMUP_ROUNDS;
+			
+			long startTime = System.nanoTime();
+			HashMap<Template, Double> scanResult = new HashMap<>();
+			for(HashMap<String, Double> wordCandidates : candidates) {
+				for(Entry<String, Double> entry : wordCandidates.entrySet()) accumulateTemplateWeightByScan(scanResult, entry.getKey(), entry.getValue());
+			}
+			long scanTime = System.nanoTime() - startTime;
+			
+			startTime = System.nanoTime();
+			HashMap<Template, Double> postingsResult = new HashMap<>();
+			for(HashMap<String, Double> wordCandidates : candidates) {
+				for(Entry<String, Double> entry : wordCandidates.entrySet()) TFIDFEngine.accumulateTemplateWeight(postingsResult, App.index.templateWordIndex, entry.getKey(), entry.getValue());
+			}
+			long postingsTime = System.nanoTime() - startTime;
+			
+			if(print) System.out.println("  Scan: " + scanTime / 1000 + "us | Postings: " + postingsTime / 1000 + "us | Same results: " + scanResult.equals(postingsResult));
+		}
+		App.clearIndex();
+	}
+	
+	/**
+	 * Add a suffix to every word in the text items of a template format
+	 */
+	static void addSuffixToWords(JsonObject item, String suffix) {
+		JsonElement content = item.get("content");
+		if(content == null) return;
+		if(content.isJsonArray()) {
+			for(JsonElement child : content.getAsJsonArray()) {
+				if(child.isJsonObject()) addSuffixToWords(child.getAsJsonObject(), suffix);
+			}
+		}
+		else if(item.has("type") && item.get("type").getAsString().equals("text")) {
+			item.addProperty("content", content.getAsString().replaceAll("([A-Za-z]+)", "$1" + suffix));
+		}
+	}
+	
+	/**
+	 * The template weight accumulation that loops over all templates and looks up the weight by name
+	 */
+	static void accumulateTemplateWeightByScan(HashMap<Template, Double> templateWeight, String word, double weightScale) {
+		HashMap<String, Double> wordWeightMap = App.templateWordWeights.get(word);
+		if(wordWeightMap == null) return;
+		for(Template template : App.templates) {
+			Double weight = wordWeightMap.get(template.getName());
+			if(weight != null) {
+				if(!templateWeight.containsKey(template))
+					templateWeight.put(template, 0d);
+				double current = templateWeight.get(template);
+				
+				weight *= weightScale;
+				templateWeight.put(template, (current+weight) * (current+weight) / (Math.sqrt((current*current) + (weight*weight)) + Double.MIN_NORMAL));
+			}
+		}
+	}
+
+	/**
+	 * Builds the index from the local templates (equivalence.json is not loaded, so there are no prefix/suffix rules)
+	 */
+	public static void buildLocalIndex() {
+		App.clearIndex();
+		new IndexBuilder(Runtime.getRuntime().availableProcessors()).build(loadLocalTemplatesJson());
+	}
+	
+	/**
+	 * Compares scoring the sample sentences with separate template and string weight passes (each splitting and fuzzy matching the
+	 * input again) against the fused scoring in {@link TFIDFEngine#getFinalWeight(String)}.
+	 */
+	public static void benchmarkQuery() {
+		buildLocalIndex();
+		System.out.println("Scoring " + SAMPLE_SENTENCES.length + " sentences " + QUERY_REPEATS + " times, average per sentence:");
+		
+		for(int round = 0; round < WARMUP_ROUNDS + ROUNDS; round++) {
+			boolean print = round >= WARMUP_ROUNDS;
+			
+			long startTime = System.nanoTime();
+			for(int i = 0; i < QUERY_REPEATS; i++) {
+				for(String sentence : SAMPLE_SENTENCES) {
+					TFIDFEngine.getFinalWeight(TFIDFEngine.getTemplateWeight(sentence), TFIDFEngine.getStringWeight(sentence, App.index.stringInTemplateIndex),
+							TFIDFEngine.getStringWeight(sentence, App.index.stringAcrossTemplatesIndex));
+				}
+			}
+			long separateTime = System.nanoTime() - startTime;
+			
+			startTime = System.nanoTime();
+			for(int i = 0; i < QUERY_REPEATS; i++) {
+				for(String sentence : SAMPLE_SENTENCES) {
+					TFIDFEngine.getFinalWeight(sentence);
+				}
+			}
+			long fusedTime = System.nanoTime() - startTime;
+			
+			long queries = QUERY_REPEATS * SAMPLE_SENTENCES.length;
+			if(print) System.out.println("  Separate passes: " + separateTime / queries / 1000 + "us | Fused: " + fusedTime / queries / 1000 + "us");
+		}
+	}
+
+	/**
+	 * Compares fuzzy matching the words of the sample sentences by scanning every word with the same first and last letter
+	 * ({@link TFIDFEngine#lenientWordSimilarityMap(String, WordIndex)}) against only scoring the candidates from {@link FuzzyIndex}.
+	 * Also checks that both give the same matches.
+	 */
+	public static void benchmarkFuzzyCandidates() {
+		buildLocalIndex();
+		ArrayList<String> words = new ArrayList<>();
+		for(String sentence : SAMPLE_SENTENCES) words.addAll(TFIDFEngine.getWordsInString(sentence));
+		
+		// Same matches, in the same order
+		int scanned = 0;
+		int candidates = 0;
+		for(String word : words) {
+			scanned += App.index.fuzzyIndex.countWords(word);
+			candidates += App.index.fuzzyIndex.getPrefixCandidates(word).length + App.index.fuzzyIndex.getSuffixCandidates(word).length;
+			TFIDFEngine.FuzzyMatches matches = new TFIDFEngine.FuzzyMatches(word);
+			if(!new ArrayList<>(TFIDFEngine.lenientWordSimilarityMap(word, App.index.templateWordIndex).entrySet()).equals(new ArrayList<>(matches.getMatches(App.TEMPLATE_TABLE).entrySet()))
+					|| !new ArrayList<>(TFIDFEngine.lenientWordSimilarityMap(word, App.index.stringInTemplateIndex).entrySet()).equals(new ArrayList<>(matches.getMatches(App.IN_TEMPLATE_TABLE).entrySet()))
+					|| !new ArrayList<>(TFIDFEngine.lenientWordSimilarityMap(word, App.index.stringAcrossTemplatesIndex).entrySet()).equals(new ArrayList<>(matches.getMatches(App.ACROSS_TEMPLATES_TABLE).entrySet()))) {
+				System.out.println("Different matches for '" + word + "'!");
+			}
+		}
+		System.out.println("Fuzzy matching " + words.size() + " words " + QUERY_REPEATS + " times, scoring " + scanned + " words by scan and "
+				+ candidates + " candidates by index:");
+		
+		for(int round = 0; round < WARMUP_ROUNDS + ROUNDS; round++) {
+			boolean print = round >= WARMUP_ROUNDS;
+			
+			long startTime = System.nanoTime();
+			for(int i = 0; i < QUERY_REPEATS; i++) {
+				for(String word : words) TFIDFEngine.lenientWordSimilarityMap(word, App.index.stringInTemplateIndex);
+			}
+			long scanTime = System.nanoTime() - startTime;
+			
+			startTime = System.nanoTime();
+			for(int i = 0; i < QUERY_REPEATS; i++) {
+				for(String word : words) new TFIDFEngine.FuzzyMatches(word).getMatches(App.IN_TEMPLATE_TABLE);
+			}
+			long indexTime = System.nanoTime() - startTime;
+			
+			if(print) System.out.println("  Scan: " + scanTime / 1000000 + "ms | Index: " + indexTime / 1000000 + "ms");
+		}
+	}
+
+	/**
+	 * Compares scoring the sample sentences without the word cache against scoring them with it, and checks that both give the
+	 * same weights.
+	 */
+	public static void benchmarkWordCache() {
+		buildLocalIndex();
+		QueryIndex cached = App.index;
+		
+		for(String sentence : SAMPLE_SENTENCES) {
+			App.index = cached.withWordCacheSize(0);
+			HashMap<TemplateString, OutputWeight> uncached = TFIDFEngine.getFinalWeight(sentence);
+			App.index = cached;
+			TFIDFEngine.getFinalWeight(sentence);
+			if(!sameWeights(uncached, TFIDFEngine.getFinalWeight(sentence))) System.out.println("Different weights for '" + sentence + "'!");
+		}
+		System.out.println("Scoring " + SAMPLE_SENTENCES.length + " sentences " + QUERY_REPEATS + " times, average per sentence:");
+		
+		for(int round = 0; round < WARMUP_ROUNDS + ROUNDS; round++) {
+			boolean print = round >= WARMUP_ROUNDS;
+			
+			App.index = cached.withWordCacheSize(0);
+			long startTime = System.nanoTime();
+			for(int i = 0; i < QUERY_REPEATS; i++) {
+				for(String sentence : SAMPLE_SENTENCES) TFIDFEngine.getFinalWeight(sentence);
+			}
+			long uncachedTime = System.nanoTime() - startTime;
+			
+			App.index = cached;
+			startTime = System.nanoTime();
+			for(int i = 0; i < QUERY_REPEATS; i++) {
+				for(String sentence : SAMPLE_SENTENCES) TFIDFEngine.getFinalWeight(sentence);
+			}
+			long cachedTime = System.nanoTime() - startTime;
+			
+			long queries = QUERY_REPEATS * SAMPLE_SENTENCES.length;
+			if(print) System.out.println("  Uncached: " + uncachedTime / queries / 1000 + "us | Cached: " + cachedTime / queries / 1000 + "us");
+		}
+		System.out.println("Cache: " + cached.wordCache.getStats());
+	}
+	
+	/**
+	 * Compares splitting the sample sentences into words with String.split and a StringBuilder per word (how the words were split
+	 * before {@link Tokenizer}) against the tokenizer with term IDs, in time and allocated bytes per sentence. Also checks that both
+	 * give the same words.
+	 */
+	public static void benchmarkTokenizer() {
+		buildLocalIndex();
+		com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+		long thread = Thread.currentThread().getId();
+		Tokenizer tokenizer = Tokenizer.forThread();
+		
+		for(String sentence : SAMPLE_SENTENCES) {
+			if(!splitWords(sentence).equals(TFIDFEngine.getWordsInString(sentence))) System.out.println("Different words for '" + sentence + "'!");
+		}
+		System.out.println("Splitting " + SAMPLE_SENTENCES.length + " sentences " + QUERY_REPEATS * 100 + " times, average per sentence:");
+		
+		int found = 0;
+		for(int round = 0; round < WARMUP_ROUNDS + ROUNDS; round++) {
+			boolean print = round >= WARMUP_ROUNDS;
+			
+			long startBytes = threads.getThreadAllocatedBytes(thread);
+			long startTime = System.nanoTime();
+			for(int i = 0; i < QUERY_REPEATS * 100; i++) {
+				for(String sentence : SAMPLE_SENTENCES) found += splitWords(sentence).size();
+			}
+			long splitTime = System.nanoTime() - startTime;
+			long splitBytes = threads.getThreadAllocatedBytes(thread) - startBytes;
+			
+			TermDictionary terms = App.index.terms;
+			startBytes = threads.getThreadAllocatedBytes(thread);
+			startTime = System.nanoTime();
+			for(int i = 0; i < QUERY_REPEATS * 100; i++) {
+				for(String sentence : SAMPLE_SENTENCES) {
+					int size = tokenizer.tokenize(sentence, true);
+					for(int j = 0; j < size; j++) found += tokenizer.getTermId(j, terms);
+				}
+			}
+			long tokenizerTime = System.nanoTime() - startTime;
+			long tokenizerBytes = threads.getThreadAllocatedBytes(thread) - startBytes;
+			
+			long sentences = QUERY_REPEATS * 100 * SAMPLE_SENTENCES.length;
+			if(print) System.out.println("  Split: " + splitTime / sentences + "ns, " + splitBytes / sentences + " bytes | Tokenizer: "
+					+ tokenizerTime / sentences + "ns, " + tokenizerBytes / sentences + " bytes");
+		}
+		sink = found;
+	}
+	
+	/**
+	 * Split a string into lowercased words with String.split and a StringBuilder per word
+	 */
+	static ArrayList<String> splitWords(String s) {
+		String[] split = s.replace('-', ' ').split(" ");
+		ArrayList<String> words = new ArrayList<String>(split.length);
+		for(String str : split) {
+			if(str.isEmpty()) continue;
+			StringBuilder wordBuilder = new StringBuilder();
+			for(int j = 0; j < str.length(); j++) {
+				char c = str.charAt(j);
+				if(c >= 'A' && c <= 'Z') c = (char) (c + 'a' - 'A');
+				if((c >= 'a' && c <= 'z') || (c >= '0' && c <= '9')) {
+					wordBuilder.append(c);
+				}
+			}
+			words.add(wordBuilder.toString());
+		}
+		return words;
+	}
+	
+	/**
+	 * Compares scoring the sample sentences into a map with an OutputWeight for every string ({@link TFIDFEngine#getFinalWeight(String)})
+	 * against reading the weights from the per-thread score arrays ({@link TFIDFEngine#scoreInput(String)}), in time and allocated
+	 * bytes per sentence. The words are cached first. Also checks that both give the same weights as the separate passes.
+	 */
+	public static void benchmarkScores() {
+		buildLocalIndex();
+		com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+		long thread = Thread.currentThread().getId();
+		
+		for(String sentence : SAMPLE_SENTENCES) {
+			HashMap<TemplateString, OutputWeight> separate = TFIDFEngine.getFinalWeight(TFIDFEngine.getTemplateWeight(sentence),
+					TFIDFEngine.getStringWeight(sentence, App.index.stringInTemplateIndex), TFIDFEngine.getStringWeight(sentence, App.index.stringAcrossTemplatesIndex));
+			if(!sameWeights(separate, TFIDFEngine.getFinalWeight(sentence))) System.out.println("Different weights for '" + sentence + "'!");
+		}
+		System.out.println("Scoring " + SAMPLE_SENTENCES.length + " sentences " + QUERY_REPEATS + " times, average per sentence:");
+		
+		double total = 0;
+		for(int round = 0; round < WARMUP_ROUNDS + ROUNDS; round++) {
+			boolean print = round >= WARMUP_ROUNDS;
+			
+			long startBytes = threads.getThreadAllocatedBytes(thread);
+			long startTime = System.nanoTime();
+			for(int i = 0; i < QUERY_REPEATS; i++) {
+				for(String sentence : SAMPLE_SENTENCES) {
+					for(OutputWeight weight : TFIDFEngine.getFinalWeight(sentence).values()) total += weight.doubleValue();
+				}
+			}
+			long mapTime = System.nanoTime() - startTime;
+			long mapBytes = threads.getThreadAllocatedBytes(thread) - startBytes;
+			
+			startBytes = threads.getThreadAllocatedBytes(thread);
+			startTime = System.nanoTime();
+			for(int i = 0; i < QUERY_REPEATS; i++) {
+				for(String sentence : SAMPLE_SENTENCES) {
+					InputScores scores = TFIDFEngine.scoreInput(sentence);
+					for(int j = 0; j < scores.getCandidateCount(); j++) total += scores.getWeight(scores.getCandidate(j));
+				}
+			}
+			long arrayTime = System.nanoTime() - startTime;
+			long arrayBytes = threads.getThreadAllocatedBytes(thread) - startBytes;
+			
+			long queries = QUERY_REPEATS * SAMPLE_SENTENCES.length;
+			if(print) System.out.println("  Map: " + mapTime / queries / 1000 + "us, " + mapBytes / queries + " bytes | Arrays: "
+					+ arrayTime / queries / 1000 + "us, " + arrayBytes / queries + " bytes");
+		}
+		sink = (int) total;
+	}
+	
+	/**
+	 * Compares scoring every string of the sample sentences against skipping the strings that can't reach the suggestion threshold
+	 * of {@link InputProcessing#preProcessInput(String)}. The words are cached first. Also checks that both find the same strings
+	 * above the threshold with the same weights.
+	 */
+	public static void benchmarkPruning() {
+		buildLocalIndex();
+		boolean pruneScores = App.pruneScores;
+		App.pruneScores = true;
+		double[] thresholds = new double[SAMPLE_SENTENCES.length];
+		int skipped = 0;
+		int strings = 0;
+		for(int i = 0; i < SAMPLE_SENTENCES.length; i++) {
+			String sentence = SAMPLE_SENTENCES[i];
+			thresholds[i] = InputProcessing.MINIMUM_WEIGHT + InputProcessing.MINIMUM_WEIGHT_PER_SQRT_WORDCOUNT * Math.sqrt(TFIDFEngine.countWordsInString(sentence));
+			HashMap<TemplateString, Double> all = getWeightsAbove(TFIDFEngine.scoreInput(sentence), thresholds[i]);
+			InputScores scores = TFIDFEngine.scoreInput(sentence, thresholds[i], 0);
+			skipped += scores.getSkippedCount();
+			strings += scores.getSkippedCount() + scores.getCandidateCount();
+			if(!new ArrayList<>(all.entrySet()).equals(new ArrayList<>(getWeightsAbove(scores, thresholds[i]).entrySet()))) {
+				System.out.println("Different strings for '" + sentence + "'!");
+			}
+		}
+		System.out.println("Scoring " + SAMPLE_SENTENCES.length + " sentences " + QUERY_REPEATS + " times, skipping " + skipped + " of "
+				+ strings + " strings, average per sentence:");
+		
+		double total = 0;
+		for(int round = 0; round < WARMUP_ROUNDS + ROUNDS; round++) {
+			boolean print = round >= WARMUP_ROUNDS;
+			
+			long startTime = System.nanoTime();
+			for(int i = 0; i < QUERY_REPEATS; i++) {
+				for(String sentence : SAMPLE_SENTENCES) {
+					InputScores scores = TFIDFEngine.scoreInput(sentence);
+					for(int j = 0; j < scores.getCandidateCount(); j++) total += scores.getWeight(scores.getCandidate(j));
+				}
+			}
+			long fullTime = System.nanoTime() - startTime;
+			
+			startTime = System.nanoTime();
+			for(int i = 0; i < QUERY_REPEATS; i++) {
+				for(int s = 0; s < SAMPLE_SENTENCES.length; s++) {
+					InputScores scores = TFIDFEngine.scoreInput(SAMPLE_SENTENCES[s], thresholds[s], 0);
+					for(int j = 0; j < scores.getCandidateCount(); j++) total += scores.getWeight(scores.getCandidate(j));
+				}
+			}
+			long prunedTime = System.nanoTime() - startTime;
+			
+			long queries = QUERY_REPEATS * SAMPLE_SENTENCES.length;
+			if(print) System.out.println("  All strings: " + fullTime / queries / 1000 + "us | Pruned: " + prunedTime / queries / 1000 + "us");
+		}
+		sink = (int) total;
+		App.pruneScores = pruneScores;
+	}
+	
+	/**
+	 * Compares finding the most likely strings of the sample sentences without and with the template shortlist cascade with a few
+	 * coverages, in time and in how many strings are scored. Also checks how many of the strings above the suggestion threshold (and
+	 * the most likely strings) of scoring every string the cascade still finds, and reports the settings that find less than
+	 * {@link #CASCADE_MIN_SUGGESTION_RECALL} or {@link #CASCADE_MIN_MOST_LIKELY_RECALL}.
+	 */
+	public static void benchmarkCascade() {
+		buildLocalIndex();
+		double cascadeCoverage = App.cascadeCoverage;
+		double cascadeMinPortion = App.cascadeMinPortion;
+		App.cascadeCoverage = 0;
+		double[] thresholds = new double[SAMPLE_SENTENCES.length];
+		ArrayList<HashMap<TemplateString, Double>> fullWeights = new ArrayList<>();
+		ArrayList<TemplateString> fullMostLikely = new ArrayList<>();
+		for(int i = 0; i < SAMPLE_SENTENCES.length; i++) {
+			thresholds[i] = InputProcessing.MINIMUM_WEIGHT + InputProcessing.MINIMUM_WEIGHT_PER_SQRT_WORDCOUNT * Math.sqrt(TFIDFEngine.countWordsInString(SAMPLE_SENTENCES[i]));
+			fullWeights.add(getWeightsAbove(TFIDFEngine.scoreInput(SAMPLE_SENTENCES[i]), thresholds[i]));
+			fullMostLikely.add(InputProcessing.legacyProcessInput(SAMPLE_SENTENCES[i], null));
+		}
+		System.out.println("Most likely strings of " + SAMPLE_SENTENCES.length + " sentences " + QUERY_REPEATS + " times, average per sentence:");
+		
+		double total = 0;
+		double[][] settings = {{0, 0}, {0.8, 0.2}, {0.95, 0.2}, {0.95, 0.5}, {0.95, 0.8}};
+		// Twice, so the first setting isn't slower from warming up
+		for(int pass = 0; pass < 2; pass++) {
+			for(double[] setting : settings) {
+				App.cascadeCoverage = setting[0];
+				App.cascadeMinPortion = setting[1];
+				int found = 0;
+				int suggestions = 0;
+				int sameMostLikely = 0;
+				int cascaded = 0;
+				long strings = 0;
+				for(int i = 0; i < SAMPLE_SENTENCES.length; i++) {
+					InputScores scores = TFIDFEngine.scoreInput(SAMPLE_SENTENCES[i], Double.NEGATIVE_INFINITY, 1);
+					if(scores.isCascaded()) cascaded++;
+					strings += scores.getCandidateCount();
+					HashMap<TemplateString, Double> weights = getWeightsAbove(TFIDFEngine.scoreInput(SAMPLE_SENTENCES[i], thresholds[i], 0), thresholds[i]);
+					for(Entry<TemplateString, Double> entry : fullWeights.get(i).entrySet()) {
+						if(entry.getValue().equals(weights.get(entry.getKey()))) found++;
+					}
+					suggestions += fullWeights.get(i).size();
+					if(InputProcessing.legacyProcessInput(SAMPLE_SENTENCES[i], null) == fullMostLikely.get(i)) sameMostLikely++;
+				}
+				
+				long time = 0;
+				for(int round = 0; round < WARMUP_ROUNDS + ROUNDS; round++) {
+					long startTime = System.nanoTime();
+					for(int i = 0; i < QUERY_REPEATS; i++) {
+						for(String sentence : SAMPLE_SENTENCES) {
+							InputScores scores = TFIDFEngine.scoreInput(sentence, Double.NEGATIVE_INFINITY, 1);
+							for(int j = 0; j < scores.getCandidateCount(); j++) total += scores.getWeight(scores.getCandidate(j));
+						}
+					}
+					if(round >= WARMUP_ROUNDS) time += System.nanoTime() - startTime;
+				}
+				
+				long queries = QUERY_REPEATS * SAMPLE_SENTENCES.length * ROUNDS;
+				if(pass == 1) System.out.println("  Coverage " + setting[0] + ", guard " + setting[1] + ": " + time / queries / 1000 + "us, " + strings / SAMPLE_SENTENCES.length + " strings, "
+						+ cascaded + " cascaded, " + found + "/" + suggestions + " suggestions, " + sameMostLikely + "/" + SAMPLE_SENTENCES.length
+						+ " same most likely");
+				if(pass == 1 && (found < CASCADE_MIN_SUGGESTION_RECALL * suggestions || sameMostLikely < CASCADE_MIN_MOST_LIKELY_RECALL * SAMPLE_SENTENCES.length)) {
+					System.out.println("  Coverage " + setting[0] + ", guard " + setting[1] + " is below the recall tolerance!");
+				}
+			}
+		}
+		App.cascadeCoverage = cascadeCoverage;
+		App.cascadeMinPortion = cascadeMinPortion;
+		sink = (int) total;
+	}
+	
+	/**
+	 * Processes a document of the sample sentences repeated to about 200 sentences with 1, 2, 4... threads scoring its sentences, up
+	 * to the size of the pool. Also checks that the output is the same as with one thread.
+	 */
+	public static void benchmarkSentences() {
+		buildLocalIndex();
+		StringBuilder document = new StringBuilder();
+		int sentences = 0;
+		while(sentences < 200) {
+			for(String sentence : SAMPLE_SENTENCES) document.append(sentence).append(' ');
+			sentences += SAMPLE_SENTENCES.length;
+		}
+		String input = document.toString();
+		String sequential = InputProcessing.toJson(InputProcessing.process(input, 1)).toString();
+		System.out.println("Processing a document of " + sentences + " sentences on a pool of " + App.scoringThreads + " threads:");
+		
+		for(int parallelism = 1; ; parallelism *= 2) {
+			parallelism = Math.min(parallelism, App.scoringThreads);
+			if(!InputProcessing.toJson(InputProcessing.process(input, parallelism)).toString().equals(sequential)) {
+				System.out.println("Different output with " + parallelism + " threads!");
+			}
+			long time = 0;
+			for(int round = 0; round < WARMUP_ROUNDS + ROUNDS; round++) {
+				long startTime = System.nanoTime();
+				sink += InputProcessing.process(input, parallelism).size();
+				if(round >= WARMUP_ROUNDS) time += System.nanoTime() - startTime;
+			}
+			System.out.println("  " + parallelism + " threads: " + time / ROUNDS / 1000000 + "ms");
+			if(parallelism >= App.scoringThreads) break;
+		}
+	}
+	
+	/**
+	 * Compares scoring every sentence of a document one by one against scoring each distinct sentence once ({@link DocumentBatch}), on
+	 * one thread, for the sample sentences repeated to about 200 sentences. The same document with every sentence numbered so that
+	 * none repeat shows the cost of looking for the duplicates. Also checks that both give the same output.
+	 */
+	public static void benchmarkDuplicateSentences() {
+		buildLocalIndex();
+		StringBuilder repeated = new StringBuilder();
+		StringBuilder numbered = new StringBuilder();
+		int sentences = 0;
+		while(sentences < 200) {
+			for(String sentence : SAMPLE_SENTENCES) {
+				repeated.append(sentence).append(' ');
+				numbered.append("Item ").append(sentences++).append(": ").append(sentence).append(' ');
+			}
+		}
+		System.out.println("Processing documents of " + sentences + " sentences:");
+		
+		for(String input : new String[] {repeated.toString(), numbered.toString()}) {
+			ArrayList<OutputSection> sections = new ArrayList<>();
+			BreakIterator iterator = BreakIterator.getSentenceInstance(Locale.US);
+			iterator.setText(input);
+			for(int start = iterator.first(), end = iterator.next(); end != BreakIterator.DONE; start = end, end = iterator.next()) {
+				sections.add(new OutputSection(input, start, end));
+			}
+			DocumentBatch batch = new DocumentBatch(input, sections);
+			if(!InputProcessing.toJson(scoreSentences(input, sections)).equals(InputProcessing.toJson(InputProcessing.preProcessInput(input, 1)))) {
+				System.out.println("Different output!");
+			}
+			System.out.println(" " + sections.size() + " sentences, " + batch.getRowCount() + " distinct, " + batch.getTermCount() + " distinct words:");
+			
+			for(int round = 0; round < WARMUP_ROUNDS + ROUNDS; round++) {
+				long startTime = System.nanoTime();
+				sink += scoreSentences(input, sections).size();
+				long sentenceTime = System.nanoTime() - startTime;
+				
+				startTime = System.nanoTime();
+				sink += InputProcessing.preProcessInput(input, 1).size();
+				long distinctTime = System.nanoTime() - startTime;
+				
+				if(round >= WARMUP_ROUNDS) System.out.println("  One by one: " + sentenceTime / 1000000 + "ms | Distinct once: " + distinctTime / 1000000 + "ms");
+			}
+		}
+	}
+	
+	/**
+	 * Score the sentences of a document one by one, like preProcessInput did before {@link DocumentBatch}
+	 */
+	static ArrayList<OutputSection> scoreSentences(String input, ArrayList<OutputSection> sections) {
+		ArrayList<OutputSection> out = new ArrayList<>();
+		for(OutputSection section : sections) {
+			String text = input.substring(section.beginIndex, section.endIndex);
+			double threshold = InputProcessing.MINIMUM_WEIGHT + InputProcessing.MINIMUM_WEIGHT_PER_SQRT_WORDCOUNT * Math.sqrt(TFIDFEngine.countWordsInString(text));
+			InputScores scores = TFIDFEngine.scoreInput(text, threshold, 0);
+			for(int i = 0; i < scores.getCandidateCount(); i++) {
+				int ordinal = scores.getCandidate(i);
+				if(scores.getWeight(ordinal) > threshold) {
+					OutputSection newSection = section.clone();
+					newSection.outputSource = scores.getString(ordinal);
+					newSection.output = newSection.outputSource.string;
+					newSection.outputWeight = scores.getOutputWeight(ordinal);
+					out.add(newSection);
+				}
+			}
+		}
+		return out;
+	}
+	
+	/**
+	 * The strings of the scores above a threshold with their weights, in ordinal order
+	 */
+	static HashMap<TemplateString, Double> getWeightsAbove(InputScores scores, double threshold) {
+		LinkedHashMap<TemplateString, Double> out = new LinkedHashMap<>();
+		for(int i = 0; i < scores.getCandidateCount(); i++) {
+			int ordinal = scores.getCandidate(i);
+			if(scores.getWeight(ordinal) > threshold) out.put(scores.getString(ordinal), scores.getWeight(ordinal));
+		}
+		return out;
+	}
+	
+	static boolean sameWeights(HashMap<TemplateString, OutputWeight> a, HashMap<TemplateString, OutputWeight> b) {
+		if(!a.keySet().equals(b.keySet())) return false;
+		for(Entry<TemplateString, OutputWeight> entry : a.entrySet()) {
+			if(entry.getValue().doubleValue() != b.get(entry.getKey()).doubleValue()) return false;
+		}
+		return true;
+	}
+
+	static boolean contains(String[] args, String name) {
+		for(String arg : args) {
+			if(arg.equals(name)) return true;
+		}
+		return false;
+	}
+}
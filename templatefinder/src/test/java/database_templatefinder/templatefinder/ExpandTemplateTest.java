@@ -0,0 +1,125 @@
+package database_templatefinder.templatefinder;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map.Entry;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+
+import database_templatefinder.templatefinder.types.Template;
+import database_templatefinder.templatefinder.types.TemplateFormat;
+import database_templatefinder.templatefinder.types.TemplateString;
+import junit.framework.TestCase;
+
+/**
+ * Checks that {@link TFIDFEngine#expandTemplate(Template, String)} matches the strings of the other formats to the base strings the
+ * same way as scanning every string of the other format for the most variable matches ({@link Benchmark#findBestMatchByScan}).
+ * <p>
+ * The bundled templates only have an English format, so the other formats are made from it: a copy, one with the choices of every
+ * dropdown reversed, and one with every other dropdown replaced by its first choice, so its strings have fewer variables and the
+ * variables have other IDs.
+ */
+public class ExpandTemplateTest extends TestCase {
+
+	public void testAlignmentMatchesScan() {
+		int aligned = 0;
+		for(JsonElement element : Benchmark.loadLocalTemplatesJson()) {
+			JsonObject json = element.getAsJsonObject();
+			JsonArray content = json.getAsJsonObject(App.BASE_FORMAT).getAsJsonArray("content");
+			json.add("Copy", format(content.deepCopy()));
+			json.add("Reversed", format(reverseChoices(content.deepCopy())));
+			json.add("Thinned", format(fixEveryOtherDropdown(content.deepCopy(), new int[1])));
+			Template template = App.parseTemplate(json);
+
+			HashMap<String, HashMap<String, TemplateString>> expanded = TFIDFEngine.expandTemplate(template, App.BASE_FORMAT);
+			HashMap<String, HashMap<String, TemplateString>> expected = expandByScan(template);
+			assertEquals(template.getName(), expected.keySet(), expanded.keySet());
+			for(Entry<String, HashMap<String, TemplateString>> entry : expected.entrySet()) {
+				HashMap<String, TemplateString> strings = expanded.get(entry.getKey());
+				for(Entry<String, TemplateString> format : entry.getValue().entrySet()) {
+					TemplateString match = strings.get(format.getKey());
+					assertEquals(template.getName() + " " + format.getKey() + ": " + entry.getKey(), format.getValue(), match);
+					// Equal strings can have other variable positions, which equals() doesn't compare
+					if(match != null) assertEquals(format.getValue().getVariableString(), match.getVariableString());
+				}
+				assertEquals(entry.getValue().size(), strings.size());
+				aligned++;
+			}
+		}
+		assertTrue(aligned > 0);
+	}
+
+	/**
+	 * How expandTemplate aligned the strings before the {@link database_templatefinder.templatefinder.types.SignatureIndex}, for
+	 * every string of the formats
+	 */
+	static HashMap<String, HashMap<String, TemplateString>> expandByScan(Template template) {
+		HashMap<String, ArrayList<TemplateString>> formats = new HashMap<>();
+		for(TemplateFormat format : template.values()) formats.put(format.formatName, format.baseProgression.getPossibilities());
+		HashMap<String, HashMap<String, TemplateString>> out = new HashMap<>();
+		for(TemplateString baseString : formats.get(App.BASE_FORMAT)) {
+			HashMap<String, TemplateString> strings = new HashMap<>();
+			strings.put(App.BASE_FORMAT, baseString);
+			for(Entry<String, ArrayList<TemplateString>> format : formats.entrySet()) {
+				if(format.getKey().equals(App.BASE_FORMAT)) continue;
+				TemplateString match = Benchmark.findBestMatchByScan(baseString, format.getValue(), false);
+				if(match != null) strings.put(format.getKey(), match);
+			}
+			out.put(baseString.string, strings);
+		}
+		return out;
+	}
+
+	static JsonObject format(JsonArray content) {
+		JsonObject out = new JsonObject();
+		out.add("content", content);
+		return out;
+	}
+
+	/**
+	 * Reverse the order of the choices of every dropdown
+	 */
+	static JsonArray reverseChoices(JsonArray content) {
+		for(JsonElement element : content) {
+			JsonObject item = element.getAsJsonObject();
+			if(!hasItems(item)) continue;
+			JsonArray children = reverseChoices(item.getAsJsonArray("content"));
+			if(!isDropdown(item)) continue;
+			JsonArray reversed = new JsonArray();
+			for(int i = children.size() - 1; i >= 0; i--) reversed.add(children.get(i));
+			item.add("content", reversed);
+		}
+		return content;
+	}
+
+	/**
+	 * Replace every other dropdown with its first choice
+	 * @param content
+	 * @param dropdowns - Number of dropdowns so far
+	 */
+	static JsonArray fixEveryOtherDropdown(JsonArray content, int[] dropdowns) {
+		for(int i = 0; i < content.size(); i++) {
+			JsonObject item = content.get(i).getAsJsonObject();
+			if(!hasItems(item)) continue;
+			JsonArray children = item.getAsJsonArray("content");
+			if(isDropdown(item) && dropdowns[0]++ % 2 == 0 && children.size() > 0) {
+				content.set(i, children.get(0));
+				// The choice is checked again, its dropdowns are counted too
+				i--;
+				continue;
+			}
+			fixEveryOtherDropdown(children, dropdowns);
+		}
+		return content;
+	}
+
+	static boolean hasItems(JsonObject item) {
+		return item.has("content") && item.get("content").isJsonArray();
+	}
+
+	static boolean isDropdown(JsonObject item) {
+		return item.has("type") && item.get("type").getAsString().equals("dropdown");
+	}
+}
@@ -0,0 +1,47 @@
+package database_templatefinder.templatefinder;
+
+import java.util.ArrayList;
+
+import database_templatefinder.templatefinder.output.OutputSection;
+import junit.framework.TestCase;
+
+/**
+ * Checks that inputs with words without letters or digits, which the tokenizer gives as empty words, are scored like the same
+ * inputs without them.
+ */
+public class InputProcessingTest extends TestCase {
+
+	static final String SENTENCE = "Patients must not have a known hypersensitivity to chinese hamster ovary cell products.";
+	static final String WITH_EMPTY_WORDS = "Patients must not have a known hypersensitivity / to ... chinese hamster ovary cell products.";
+
+	static boolean indexBuilt;
+
+	@Override
+	protected void setUp() {
+		if(!indexBuilt) {
+			App.loadWordLists();
+			Benchmark.buildLocalIndex();
+			indexBuilt = true;
+		}
+	}
+
+	public void testEmptyWordsAreSkipped() {
+		assertEquals(TFIDFEngine.countWordsInString(SENTENCE) + 2, TFIDFEngine.countWordsInString(WITH_EMPTY_WORDS));
+		assertEquals(InputScoresTest.getWeightsAbove(TFIDFEngine.scoreInput(SENTENCE), Double.NEGATIVE_INFINITY),
+				InputScoresTest.getWeightsAbove(TFIDFEngine.scoreInput(WITH_EMPTY_WORDS), Double.NEGATIVE_INFINITY));
+		assertSame(InputProcessing.legacyProcessInput(SENTENCE, null), InputProcessing.legacyProcessInput(WITH_EMPTY_WORDS, null));
+	}
+
+	public void testDocumentWithEmptyWords() {
+		String document = WITH_EMPTY_WORDS + " " + SENTENCE + " ...";
+		ArrayList<OutputSection> out = InputProcessing.process(document, 1);
+		assertFalse(out.isEmpty());
+		assertEquals(getOutputs(out), getOutputs(InputProcessing.process(document, 2)));
+	}
+
+	static ArrayList<String> getOutputs(ArrayList<OutputSection> sections) {
+		ArrayList<String> out = new ArrayList<>();
+		for(OutputSection section : sections) out.add(section.beginIndex + " " + section.output);
+		return out;
+	}
+}
@@ -0,0 +1,140 @@
+package database_templatefinder.templatefinder;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.Map.Entry;
+
+import database_templatefinder.templatefinder.types.TemplateString;
+import junit.framework.TestCase;
+
+/**
+ * Checks that skipping strings when scoring the sample sentences ({@link Benchmark#SAMPLE_SENTENCES}) doesn't change the strings
+ * that are needed or their weights, with pruning and with the template shortlist cascade.
+ */
+public class InputScoresTest extends TestCase {
+
+	static boolean indexBuilt;
+
+	boolean pruneScores;
+	double cascadeCoverage;
+	double cascadeMinPortion;
+
+	@Override
+	protected void setUp() {
+		if(!indexBuilt) {
+			App.loadWordLists();
+			Benchmark.buildLocalIndex();
+			indexBuilt = true;
+		}
+		pruneScores = App.pruneScores;
+		cascadeCoverage = App.cascadeCoverage;
+		cascadeMinPortion = App.cascadeMinPortion;
+	}
+
+	@Override
+	protected void tearDown() {
+		App.pruneScores = pruneScores;
+		App.cascadeCoverage = cascadeCoverage;
+		App.cascadeMinPortion = cascadeMinPortion;
+	}
+
+	public void testPruningKeepsStringsAboveThreshold() {
+		int skipped = 0;
+		for(String sentence : Benchmark.SAMPLE_SENTENCES) {
+			double threshold = getThreshold(sentence);
+			App.pruneScores = false;
+			LinkedHashMap<String, Double> all = getWeightsAbove(TFIDFEngine.scoreInput(sentence), threshold);
+			App.pruneScores = true;
+			InputScores scores = TFIDFEngine.scoreInput(sentence, threshold, 0);
+			skipped += scores.getSkippedCount();
+			assertEquals(sentence, all, getWeightsAbove(scores, threshold));
+		}
+		assertTrue(skipped > 0);
+	}
+
+	public void testPruningKeepsTopStrings() {
+		for(int topCount : new int[] {1, 10}) {
+			for(String sentence : Benchmark.SAMPLE_SENTENCES) {
+				App.pruneScores = false;
+				LinkedHashMap<String, Double> all = getTop(TFIDFEngine.scoreInput(sentence), topCount);
+				App.pruneScores = true;
+				assertEquals(sentence, all, getTop(TFIDFEngine.scoreInput(sentence, Double.NEGATIVE_INFINITY, topCount), topCount));
+			}
+		}
+	}
+
+	/**
+	 * Same check as {@link Benchmark#benchmarkCascade()}, for the settings it reports
+	 */
+	public void testCascadeRecall() {
+		App.pruneScores = true;
+		App.cascadeCoverage = 0;
+		ArrayList<LinkedHashMap<String, Double>> allWeights = new ArrayList<>();
+		ArrayList<TemplateString> allMostLikely = new ArrayList<>();
+		for(String sentence : Benchmark.SAMPLE_SENTENCES) {
+			allWeights.add(getWeightsAbove(TFIDFEngine.scoreInput(sentence), getThreshold(sentence)));
+			allMostLikely.add(InputProcessing.legacyProcessInput(sentence, null));
+		}
+
+		double[][] settings = {{0.8, 0.2}, {0.95, 0.2}, {0.95, 0.5}, {0.95, 0.8}};
+		int cascaded = 0;
+		for(double[] setting : settings) {
+			App.cascadeCoverage = setting[0];
+			App.cascadeMinPortion = setting[1];
+			int found = 0;
+			int suggestions = 0;
+			int sameMostLikely = 0;
+			for(int i = 0; i < Benchmark.SAMPLE_SENTENCES.length; i++) {
+				String sentence = Benchmark.SAMPLE_SENTENCES[i];
+				double threshold = getThreshold(sentence);
+				InputScores scores = TFIDFEngine.scoreInput(sentence, threshold, 0);
+				if(scores.isCascaded()) cascaded++;
+				LinkedHashMap<String, Double> weights = getWeightsAbove(scores, threshold);
+				for(Entry<String, Double> entry : allWeights.get(i).entrySet()) {
+					if(entry.getValue().equals(weights.get(entry.getKey()))) found++;
+				}
+				suggestions += allWeights.get(i).size();
+				if(InputProcessing.legacyProcessInput(sentence, null) == allMostLikely.get(i)) sameMostLikely++;
+			}
+			String name = "Coverage " + setting[0] + ", guard " + setting[1];
+			assertTrue(name + ": " + found + "/" + suggestions + " suggestions", found >= Benchmark.CASCADE_MIN_SUGGESTION_RECALL * suggestions);
+			assertTrue(name + ": " + sameMostLikely + " same most likely",
+					sameMostLikely >= Benchmark.CASCADE_MIN_MOST_LIKELY_RECALL * Benchmark.SAMPLE_SENTENCES.length);
+		}
+		assertTrue(cascaded > 0);
+	}
+
+	/**
+	 * Same threshold as the suggestions of a sentence get in {@link DocumentBatch}
+	 */
+	static double getThreshold(String sentence) {
+		return InputProcessing.MINIMUM_WEIGHT + InputProcessing.MINIMUM_WEIGHT_PER_SQRT_WORDCOUNT * Math.sqrt(TFIDFEngine.countWordsInString(sentence));
+	}
+
+	/**
+	 * The strings above a threshold with their weights, in ordinal order. Strings are compared with their variables.
+	 */
+	static LinkedHashMap<String, Double> getWeightsAbove(InputScores scores, double threshold) {
+		LinkedHashMap<String, Double> out = new LinkedHashMap<>();
+		for(int i = 0; i < scores.getCandidateCount(); i++) {
+			int ordinal = scores.getCandidate(i);
+			if(scores.getWeight(ordinal) > threshold) out.put(getKey(scores.getString(ordinal)), scores.getWeight(ordinal));
+		}
+		return out;
+	}
+
+	/**
+	 * The top strings with their weights, lowest ranked first
+	 */
+	static LinkedHashMap<String, Double> getTop(InputScores scores, int topCount) {
+		TopStrings top = new TopStrings(Math.min(topCount, scores.getCandidateCount()));
+		for(int i = 0; i < scores.getCandidateCount(); i++) top.offer(scores.getCandidate(i), scores.getWeight(scores.getCandidate(i)));
+		LinkedHashMap<String, Double> out = new LinkedHashMap<>();
+		for(int ordinal : top.drain()) out.put(getKey(scores.getString(ordinal)), scores.getWeight(ordinal));
+		return out;
+	}
+
+	static String getKey(TemplateString string) {
+		return string.toImportantInfoString() + " " + string.string.length();
+	}
+}